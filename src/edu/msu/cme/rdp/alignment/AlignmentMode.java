@@ -26,5 +26,6 @@ public enum AlignmentMode {
     /**Align seqi and seqj from seqi's start and end points*/glocal,
     /**Align sequence with no leading/trailing gap penalty*/overlap,
     /**Align sequences with no leading/training gap penalty, only return the overlapping region*/overlap_trim,
-    /**Global alignment*/global
+    /**Global alignment*/global,
+    /**Gapped extension left and right from a shared k-mer, stops when the score drops too far below the best seen*/xdrop
 }
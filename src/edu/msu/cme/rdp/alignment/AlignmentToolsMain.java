@@ -18,7 +18,13 @@ package edu.msu.cme.rdp.alignment;
 
 import edu.msu.cme.rdp.alignment.errorcheck.CompareErrorType;
 import edu.msu.cme.rdp.alignment.errorcheck.RmPartialSeqs;
+import edu.msu.cme.rdp.alignment.pairwise.KNNBinary;
+import edu.msu.cme.rdp.alignment.pairwise.KNNClient;
+import edu.msu.cme.rdp.alignment.pairwise.KNNMerge;
+import edu.msu.cme.rdp.alignment.pairwise.KNNServer;
+import edu.msu.cme.rdp.alignment.pairwise.KmerIndex;
 import edu.msu.cme.rdp.alignment.pairwise.PairwiseKNN;
+import edu.msu.cme.rdp.alignment.pairwise.ReferenceClusters;
 import java.util.Arrays;
 
 /**
@@ -34,6 +40,12 @@ public class AlignmentToolsMain {
         System.err.println("\tcompare-error-type   - Detect insertion, deletion and substitution errors in sequences comparing to reference sequences");
         System.err.println("\talign-nucl-to-prot   - Transfer a sequence alignment from protein sequences to nucleotide sequences");
         System.err.println("\trm-partialseq        - remove partial sequences based on pairwise alignment to reference sequences");
+        System.err.println("\tindex                - Write a k-mer index of reference sequences for pairwise-knn and rm-partialseq");
+        System.err.println("\tcluster              - Cluster reference sequences so pairwise-knn --clusters can skip them");
+        System.err.println("\tknn-merge            - Combine the outputs of pairwise-knn --shard runs");
+        System.err.println("\tknn-view             - Print a pairwise-knn --out-format binary output as text");
+        System.err.println("\tserve                - Keep reference sets loaded and answer knn-client queries on a localhost port");
+        System.err.println("\tknn-client           - Run pairwise-knn queries against a running serve");
         System.exit(1);
     }
 
@@ -57,6 +69,18 @@ public class AlignmentToolsMain {
             AlignNucleotideToProtein.main(args);
         } else if (command.equals("rm-partialseq")) {
             RmPartialSeqs.main(args);
+        } else if (command.equals("index")) {
+            KmerIndex.main(args);
+        } else if (command.equals("cluster")) {
+            ReferenceClusters.main(args);
+        } else if (command.equals("knn-merge")) {
+            KNNMerge.main(args);
+        } else if (command.equals("knn-view")) {
+            KNNBinary.main(args);
+        } else if (command.equals("serve")) {
+            KNNServer.main(args);
+        } else if (command.equals("knn-client")) {
+            KNNClient.main(args);
         }else {
             printUsageAndExit();
             System.err.println("Unknown command: " + command);
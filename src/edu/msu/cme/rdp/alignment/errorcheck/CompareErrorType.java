@@ -19,7 +19,11 @@ package edu.msu.cme.rdp.alignment.errorcheck;
 import edu.msu.cme.rdp.alignment.AlignmentMode;
 import edu.msu.cme.rdp.alignment.pairwise.PairwiseAligner;
 import edu.msu.cme.rdp.alignment.pairwise.PairwiseAlignment;
+import edu.msu.cme.rdp.alignment.pairwise.PairwiseScore;
+import edu.msu.cme.rdp.alignment.pairwise.QueryCache;
 import edu.msu.cme.rdp.alignment.pairwise.ScoringMatrix;
+import edu.msu.cme.rdp.alignment.pairwise.ScoringMatrixRegistry;
+import edu.msu.cme.rdp.alignment.pairwise.StrandClassifier;
 import edu.msu.cme.rdp.readseq.QSequence;
 import edu.msu.cme.rdp.readseq.readers.IndexedSeqReader;
 import edu.msu.cme.rdp.readseq.readers.QSeqReader;
@@ -32,9 +36,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
@@ -69,6 +71,7 @@ public class CompareErrorType {
         }
     }
     private static final char gapChar = '-';
+    private static final int cacheSize = 10000;  // distinct query sequences whose best match is remembered
     private PrintStream misMatch_writer = null;
     private PrintStream indel_writer = null;
     private PrintStream qualOut = null;
@@ -249,13 +252,15 @@ public class CompareErrorType {
     public static void main(String[] args) throws IOException {
         Options options = new Options();
         options.addOption("s", "stem", true, "Output stem (default <query_nucl.fasta>)");
+        options.addOption("v", "strand-vote", false, "Only align the strand of a query that a k-mer vote against the references clearly favors, both when the vote is close");
 
         final SeqReader queryReader;
         final List<Sequence> refSeqList;
         final PrintStream alignOutStream;
         final CompareErrorType errorProcessor;
+        StrandClassifier strandVote = null;
         Sequence seq;
-        Map<String, PAObject> matchMap = new HashMap();
+        QueryCache<PAObject> matchMap = new QueryCache<PAObject>(cacheSize);
 
 
         try {
@@ -283,6 +288,12 @@ public class CompareErrorType {
             File qualOutFile = null;
 
             refSeqList = SequenceReader.readFully(refFile);
+            if (line.hasOption("strand-vote")) {
+                strandVote = new StrandClassifier(StrandClassifier.defaultWordSize);
+                for (Sequence refSeq : refSeqList) {
+                    strandVote.add(refSeq.getSeqString());
+                }
+            }
             if (args.length == 3) {
                 queryReader = new QSeqReader(queryFile, new File(args[2]));
             } else {
@@ -322,7 +333,9 @@ public class CompareErrorType {
 
         //ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
         // use a simple scoring function, match score 0, mismatch -1, gap opening -1, gap extension -1.
-        ScoringMatrix scoringMatrix = new ScoringMatrix(ScoringMatrix.class.getResourceAsStream("/data/simple_scoringmatrix.txt"), -1, -1);
+        // this is unit cost, so the aligner uses the bit-parallel edit distance engine
+        ScoringMatrix scoringMatrix = ScoringMatrixRegistry.getResourceMatrix("/data/simple_scoringmatrix.txt", -1, -1, ScoringMatrix.DEFAULT_FRAME_SHIFT_PENALTY);
+        PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, AlignmentMode.global);
 
         do {
             try {
@@ -330,24 +343,23 @@ public class CompareErrorType {
                 Sequence bestSeq = null;
                 boolean bestReversed = false;
                 String querySeqStr = seq.getSeqString().toLowerCase();
-                String reversedQuery = IUBUtilities.reverseComplement(querySeqStr);
-                PAObject bestMatch = null;
+                StrandClassifier.Strand strand = (strandVote == null) ? StrandClassifier.Strand.both : strandVote.classify(querySeqStr);
+                String reversedQuery = (strand == StrandClassifier.Strand.forward) ? null : IUBUtilities.reverseComplement(querySeqStr);
                 
                 //checking if sequence has been seen before
-                if(matchMap.containsKey(seq.getSeqString())){
-                    bestMatch = matchMap.get(seq.getSeqString());
-                }
-                else{
+                PAObject bestMatch = matchMap.get(seq.getSeqString());
+                if(bestMatch == null){
+                    PairwiseScore bestScore = null;
                     for (Sequence refSeq : refSeqList) {
                             String refSeqStr = refSeq.getSeqString().toLowerCase();
-                            PairwiseAlignment result = PairwiseAligner.align(refSeqStr, querySeqStr, scoringMatrix, AlignmentMode.global);
-                            PairwiseAlignment reversedResult = PairwiseAligner.align(refSeqStr, IUBUtilities.reverseComplement(querySeqStr), scoringMatrix, AlignmentMode.global);
+                            PairwiseScore result = (strand == StrandClassifier.Strand.reverse) ? null : aligner.score(refSeqStr, querySeqStr);
+                            PairwiseScore reversedResult = (strand == StrandClassifier.Strand.forward) ? null : aligner.score(refSeqStr, reversedQuery);
 
 
-                            PairwiseAlignment currBest = (result.getScore() > reversedResult.getScore()) ? result : reversedResult;
+                            PairwiseScore currBest = (reversedResult == null || (result != null && result.getScore() > reversedResult.getScore())) ? result : reversedResult;
 
-                            if (bestResult == null || currBest.getScore() > bestResult.getScore()) {
-                                bestResult = currBest;
+                            if (bestScore == null || currBest.getScore() > bestScore.getScore()) {
+                                bestScore = currBest;
                                 bestSeq = refSeq;
                                 if (currBest == reversedResult) {
                                     bestReversed = true;
@@ -356,11 +368,14 @@ public class CompareErrorType {
                                 }
 
                             }
-                     
-                     //Since this is a new sequence, make a new PAObject to put into the map to compare against later
-                     bestMatch = new PAObject(bestResult, bestReversed, bestSeq);
-                     matchMap.put(seq.getSeqString(), bestMatch);
                     }
+
+                    //only the best reference gets the full alignment
+                    bestResult = aligner.align(bestSeq.getSeqString().toLowerCase(), (bestReversed) ? reversedQuery : querySeqStr);
+
+                    //Since this is a new sequence, make a new PAObject to put into the map to compare against later
+                    bestMatch = new PAObject(bestResult, bestReversed, bestSeq);
+                    matchMap.put(seq.getSeqString(), bestMatch);
                 }
                 int refStart = bestMatch.getPA().getStarti();
                 int refEnd = bestMatch.getPA().getEndi();
@@ -383,5 +398,9 @@ public class CompareErrorType {
         queryReader.close();
         alignOutStream.close();
         errorProcessor.close();     
+        if (strandVote != null) {
+            System.err.println(strandVote.getStats());
+        }
+        System.err.println("Repeated sequences: " + matchMap.getHits() + " of " + (matchMap.getHits() + matchMap.getMisses()));
     }
 }
\ No newline at end of file
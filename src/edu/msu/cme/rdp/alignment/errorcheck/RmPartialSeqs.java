@@ -18,8 +18,10 @@
 package edu.msu.cme.rdp.alignment.errorcheck;
 
 import edu.msu.cme.rdp.alignment.AlignmentMode;
+import edu.msu.cme.rdp.alignment.pairwise.KmerIndex;
 import edu.msu.cme.rdp.alignment.pairwise.PairwiseAligner;
 import edu.msu.cme.rdp.alignment.pairwise.PairwiseAlignment;
+import edu.msu.cme.rdp.alignment.pairwise.PairwiseScore;
 import edu.msu.cme.rdp.alignment.pairwise.ScoringMatrix;
 import edu.msu.cme.rdp.alignment.pairwise.rna.DistanceModel;
 import edu.msu.cme.rdp.alignment.pairwise.rna.IdentityDistanceModel;
@@ -37,6 +39,7 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
@@ -49,6 +52,7 @@ import org.apache.commons.cli.PosixParser;
 public class RmPartialSeqs {
     private static final char gapChar = '-';     
     private ScoringMatrix scoringMatrix ;
+    private PairwiseAligner aligner;
     private SequenceType seqType ;
     private AlignmentMode mode = AlignmentMode.overlap;
     private static final Options options = new Options();
@@ -56,6 +60,7 @@ public class RmPartialSeqs {
     private HashMap<String, Sequence> refSeqMap = new HashMap<String, Sequence>();
     private ArrayList<Sequence> seqList = new ArrayList<Sequence>();
     private KmerMatchCore sabCalculator = null;
+    private KmerIndex refIndex = null;  // set when the reference file is a k-mer index
     private int knn = 20;
     private int min_begin_gaps = 50;
     private int min_end_gaps = 50;
@@ -75,16 +80,22 @@ public class RmPartialSeqs {
         this.min_begin_gaps = min_gaps;
         this.min_end_gaps = min_gaps;
         
-        SequenceReader parser = new SequenceReader(new File(trainseqFile));
+        SequenceReader parser;
         Sequence seq;
         SequenceType seqType = null;
-        while ( (seq=parser.readNextSequence()) != null) {
-            if ( seqType == null){
-                seqType = SeqUtils.guessSequenceType(seq);
+        if (KmerIndex.isIndex(new File(trainseqFile))) {
+            refIndex = KmerIndex.open(new File(trainseqFile));
+            seqType = refIndex.getSequenceType();
+        } else {
+            parser = new SequenceReader(new File(trainseqFile));
+            while ( (seq=parser.readNextSequence()) != null) {
+                if ( seqType == null){
+                    seqType = SeqUtils.guessSequenceType(seq);
+                }
+                refSeqMap.put(seq.getSeqName(), seq);
             }
-            refSeqMap.put(seq.getSeqName(), seq);
+            parser.close();
         }
-        parser.close();
    
         parser = new SequenceReader(new File(testFile));        
         while ( (seq=parser.readNextSequence()) != null) {
@@ -94,11 +105,16 @@ public class RmPartialSeqs {
         
         if (seqType == SequenceType.Nucleotide) {
             scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
-            sabCalculator = new NuclSeqMatch(trainseqFile);
+            if (refIndex == null) {
+                sabCalculator = new NuclSeqMatch(trainseqFile);
+            }
         } else {
             scoringMatrix = ScoringMatrix.getDefaultProteinMatrix();
-            sabCalculator = new ProteinSeqMatch(trainseqFile);
+            if (refIndex == null) {
+                sabCalculator = new ProteinSeqMatch(trainseqFile);
+            }
         }
+        aligner = new PairwiseAligner(scoringMatrix, mode);
                 
     }
        
@@ -106,15 +122,22 @@ public class RmPartialSeqs {
         HashSet<Sequence> partialSeqs = new HashSet<Sequence>();
         for ( int i= 0; i < seqList.size(); i++){
             Sequence seqx = seqList.get(i);
-            PairwiseAlignment bestResult = null;
+            PairwiseScore bestResult = null;
             int bestScore = Integer.MIN_VALUE;
             Sequence bestSeqy = null;
+            String seqxString = seqx.getSeqString().replaceAll("U", "T");
             
-            ArrayList<NuclSeqMatch.BestMatch> matchResults = sabCalculator.findTopKMatch(seqx, knn);
-            for (NuclSeqMatch.BestMatch match: matchResults){
+            List<Sequence> candidates = new ArrayList<Sequence>();
+            if (refIndex != null) {
+                candidates = refIndex.findTopKMatch(seqx, knn);
+            } else {
+                for (NuclSeqMatch.BestMatch match : sabCalculator.findTopKMatch(seqx, knn)) {
+                    candidates.add(refSeqMap.get(match.getBestMatch().getSeqName()));
+                }
+            }
+            for (Sequence seqy : candidates){
             
-                Sequence seqy = refSeqMap.get(match.getBestMatch().getSeqName());
-                PairwiseAlignment result = PairwiseAligner.align(seqx.getSeqString().replaceAll("U", "T"), seqy.getSeqString().replaceAll("U", "T"), scoringMatrix, mode);
+                PairwiseScore result = aligner.score(seqxString, seqy.getSeqString().replaceAll("U", "T"));
                
                 if ( bestResult == null || result.getScore() >= bestScore){               
                     bestResult = result;
@@ -123,10 +146,12 @@ public class RmPartialSeqs {
                 }
                 
             }
-            double distance = dist.getDistance(bestResult.getAlignedSeqj().getBytes(), bestResult.getAlignedSeqi().getBytes(), 0);
+            // only the winner needs the traceback
+            PairwiseAlignment bestAlignment = aligner.align(seqxString, bestSeqy.getSeqString().replaceAll("U", "T"));
+            double distance = dist.getDistance(bestAlignment.getAlignedSeqj().getBytes(), bestAlignment.getAlignedSeqi().getBytes(), 0);
             
-            int beginGaps = getBeginGapLength(bestResult.getAlignedSeqi());
-            int endGaps = getEndGapLength(bestResult.getAlignedSeqi()) ;
+            int beginGaps = getBeginGapLength(bestAlignment.getAlignedSeqi());
+            int endGaps = getEndGapLength(bestAlignment.getAlignedSeqi()) ;
             if ( ( beginGaps >= this.min_begin_gaps) || ( endGaps >= this.min_end_gaps)){
                 partialSeqs.add(seqx);                
             }else {
@@ -136,8 +161,8 @@ public class RmPartialSeqs {
                 alignOutstream.println(">\t" + seqx.getSeqName() + "\t" + bestSeqy.getSeqName() + "\t" + String.format("%.3f", distance) 
                         + "\tmissingBegin=" + ( beginGaps >= this.min_begin_gaps) + "\tmissingEnd=" + ( endGaps >= this.min_end_gaps)
                         + "\tbeginGaps=" + beginGaps + "\tendGaps=" + endGaps);
-                alignOutstream.print(bestResult.getAlignedSeqi() + "\n");
-                alignOutstream.print(bestResult.getAlignedSeqj() + "\n");
+                alignOutstream.print(bestAlignment.getAlignedSeqi() + "\n");
+                alignOutstream.print(bestAlignment.getAlignedSeqj() + "\n");
             }
         }   
         seqOutstream.close();
@@ -225,7 +250,7 @@ public class RmPartialSeqs {
             seqOutStream = new PrintStream(new File(args[2]));
          }catch (Exception e) {
              System.err.println("Error: " + e.getMessage());
-             new HelpFormatter().printHelp(80, " [options] fulllengthSeqFile queryFile passedSeqOutFile\n  sequences can be either protein or nucleotide", "", options, "");
+             new HelpFormatter().printHelp(80, " [options] fulllengthSeqFile queryFile passedSeqOutFile\n  sequences can be either protein or nucleotide, fulllengthSeqFile can be a k-mer index written by the index subcommand", "", options, "");
             return;
         }
               
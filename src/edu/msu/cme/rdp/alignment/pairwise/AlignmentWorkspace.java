@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+/**
+ * Growable dynamic programming planes used by PairwiseAligner. Cell (i, j) of
+ * a rows x cols matrix lives at index i * cols + j in the match plane, the
+ * planes are only ever grown so one workspace can be reused for many
+ * alignments. Gap scores are only needed while filling so they're kept in
+ * the rolling rows.
+ *
+ * The match plane is either 32 bit (match) or, when every score fits in a
+ * short, 16 bit (narrowMatch) which halves the memory the quadratic fill
+ * streams through. matchAt reads whichever the last ensureCapacity picked.
+ *
+ * The trace plane holds 2 bit trace codes, 4 cells per byte. Rows are padded
+ * to traceStride cells (a multiple of 4) so every row starts on a byte and
+ * can be written a byte at a time, cell (i, j) is bits 2 * (j % 4) of byte
+ * (i * traceStride + j) / 4.
+ *
+ * Not thread safe, each thread should use its own workspace
+ *
+ * @author fishjord
+ */
+final class AlignmentWorkspace {
+
+    int[] match = new int[0];
+    short[] narrowMatch = new short[0];
+    boolean narrow;
+    byte[] trace = new byte[0];
+    int cols;
+    int traceStride;
+    /**
+     * Rolling rows for score only alignments and the gap scores of full ones
+     */
+    int[] prevMatch = new int[0];
+    int[] prevGap = new int[0];
+    int[] curMatch = new int[0];
+    int[] curGap = new int[0];
+    /**
+     * Striped columns for the 16 bit score only kernel
+     */
+    short[] stripePrevMatch = new short[0];
+    short[] stripePrevGap = new short[0];
+    short[] stripeCurMatch = new short[0];
+    short[] stripeCurGap = new short[0];
+
+    /**
+     * Make sure the planes can hold a rows x cols matrix, the contents of the
+     * planes are NOT cleared
+     */
+    void ensureCapacity(int rows, int cols) {
+        ensureCapacity(rows, cols, false);
+    }
+
+    /**
+     * Like ensureCapacity(int, int), with a 16 bit match plane if narrow is
+     * set
+     */
+    void ensureCapacity(int rows, int cols, boolean narrow) {
+        int stride = (cols + 3) & ~3;
+        long cells = (long) rows * cols;
+        if (cells > Integer.MAX_VALUE || (long) rows * stride > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't allocate a " + rows + " x " + cols + " alignment matrix");
+        }
+
+        this.cols = cols;
+        this.traceStride = stride;
+        this.narrow = narrow;
+        if (narrow) {
+            if (cells > narrowMatch.length) {
+                int size = (int) Math.min(Integer.MAX_VALUE, Math.max(cells, narrowMatch.length + (narrowMatch.length >> 1)));
+                narrowMatch = new short[size];
+            }
+        } else if (cells > match.length) {
+            int size = (int) Math.min(Integer.MAX_VALUE, Math.max(cells, match.length + (match.length >> 1)));
+            match = new int[size];
+        }
+        int traceBytes = (rows * stride) >> 2;
+        if (traceBytes > trace.length) {
+            trace = new byte[Math.max(traceBytes, trace.length + (trace.length >> 1))];
+        }
+    }
+
+    int matchAt(int index) {
+        return narrow ? narrowMatch[index] : match[index];
+    }
+
+    void setMatch(int index, int score) {
+        if (narrow) {
+            narrowMatch[index] = (short) score;
+        } else {
+            match[index] = score;
+        }
+    }
+
+    byte traceAt(int i, int j) {
+        int cell = i * traceStride + j;
+        return (byte) ((trace[cell >> 2] >> ((cell & 3) << 1)) & 3);
+    }
+
+    void setTrace(int i, int j, byte traceVal) {
+        int cell = i * traceStride + j;
+        int shift = (cell & 3) << 1;
+        trace[cell >> 2] = (byte) ((trace[cell >> 2] & ~(3 << shift)) | (traceVal << shift));
+    }
+
+    /**
+     * Make sure the rolling rows can hold length cells
+     */
+    void ensureRowCapacity(int length) {
+        if (length > curMatch.length) {
+            int size = Math.max(length, curMatch.length + (curMatch.length >> 1));
+            prevMatch = new int[size];
+            prevGap = new int[size];
+            curMatch = new int[size];
+            curGap = new int[size];
+        }
+    }
+
+    /**
+     * Make sure the striped columns can hold length cells
+     */
+    void ensureStripeCapacity(int length) {
+        if (length > stripeCurMatch.length) {
+            int size = Math.max(length, stripeCurMatch.length + (stripeCurMatch.length >> 1));
+            stripePrevMatch = new short[size];
+            stripePrevGap = new short[size];
+            stripeCurMatch = new short[size];
+            stripeCurGap = new short[size];
+        }
+    }
+}
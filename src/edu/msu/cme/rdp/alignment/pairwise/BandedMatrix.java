@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.alignment.AlignmentMode;
+
+/**
+ * Dynamic programming restricted to the diagonals lo <= j - i <= hi. Row i of
+ * the band is stored at i * width + (j - i - lo) in the workspace match plane
+ * (and at column j - i - lo of the trace plane and gap rows), so the diagonal
+ * neighbor of a cell is at the same offset in the previous row and the
+ * vertical neighbor one to the right. Row 0 and column 0 are never
+ * stored, their scores are the same closed forms PairwiseAligner uses. Cells
+ * outside the band are treated as unreachable.
+ *
+ * The recurrence, trace pointers, end cell selection and traceback all match
+ * PairwiseAligner, so a band covering every diagonal gives exactly the full
+ * matrix's alignment. A narrower band is a heuristic: the result is the best
+ * path among those that stay in the band, scored by the band's cells. An
+ * alignment outside the band (one the seeds missed, or a short overlap in a
+ * corner of the matrix) isn't found, and a cell whose best predecessor in
+ * the full matrix lies outside the band gets a lower score, so even a path
+ * the full matrix also picks can report lower column scores.
+ *
+ * @author fishjord
+ */
+final class BandedMatrix {
+
+    private static final int unreachable = Integer.MIN_VALUE / 4;
+    private final ScoringMatrix matrix;
+    private final AlignmentMode mode;
+    private final AlignmentWorkspace workspace;
+    private final int gapOpen;
+    private final int gapExtend;
+    private int lo;
+    private int width;
+    private int rows;
+    private int cols;
+    int endi, endj;
+    boolean fillFromJ;
+    int tailScore;
+    TracePath path;
+
+    BandedMatrix(ScoringMatrix matrix, AlignmentMode mode, AlignmentWorkspace workspace) {
+        this.matrix = matrix;
+        this.mode = mode;
+        this.workspace = workspace;
+        this.gapOpen = matrix.getGapOpen();
+        this.gapExtend = matrix.getGapExtend();
+    }
+
+    /**
+     * Fills the band and traces back, the result is left in endi, endj,
+     * fillFromJ, tailScore and path
+     *
+     * @return false if the path touched the edge of the band, meaning a wider
+     * band could give a better alignment
+     */
+    boolean align(char[] seqi, char[] seqj, int lo, int hi) {
+        this.lo = lo;
+        this.width = hi - lo + 1;
+        this.rows = seqi.length;
+        this.cols = seqj.length;
+
+        fill(seqi, seqj);
+        selectEnd();
+        return traceback();
+    }
+
+    private int boundaryMatch(int i, int j) {
+        if (i == 0 && j == 0) {
+            return 0;
+        } else if (j == 0) {
+            return (mode == AlignmentMode.global) ? (i - 1) * gapExtend + gapOpen : 0;
+        } else {
+            return (mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? (j - 1) * gapExtend + gapOpen : 0;
+        }
+    }
+
+    private int boundaryGap(int i, int j) {
+        return (i == 0 && j == 0) ? Integer.MIN_VALUE : boundaryMatch(i, j) + gapExtend;
+    }
+
+    private int matchAt(int i, int j) {
+        if (i == 0 || j == 0) {
+            return boundaryMatch(i, j);
+        }
+        return workspace.match[i * width + j - i - lo];
+    }
+
+    private void fill(char[] seqi, char[] seqj) {
+        workspace.ensureCapacity(rows + 1, width);
+        workspace.ensureRowCapacity(width);
+        final int[] matchPlane = workspace.match;
+        final byte[] tracePlane = workspace.trace;
+        final int traceStride = workspace.traceStride;
+        final byte[] codes = matrix.encode(seqi);
+        final int[][] profile = matrix.buildProfile(matrix.encode(seqj));
+        int[] prevGap = workspace.prevGap;
+        int[] curGap = workspace.curGap;
+
+        for (int i = 1; i < rows + 1; i++) {
+            int row = i * width;
+            int prevRow = row - width;
+            int traceRow = (i * traceStride) >> 2;
+            final int[] scores = profile[codes[i - 1]];
+            int packed = 0;
+
+            for (int k = 0; k < width; k++) {
+                int j = i + lo + k;
+                int traceVal = PairwiseAligner.left;
+                if (j < 1 || j > cols) {
+                    matchPlane[row + k] = unreachable;
+                    curGap[k] = unreachable;
+                } else {
+                    int diagMatch, diagGap, vertMatch, vertGap, horizMatch, horizGap;
+                    if (i == 1 || j == 1) {
+                        diagMatch = boundaryMatch(i - 1, j - 1);
+                        diagGap = boundaryGap(i - 1, j - 1);
+                    } else {
+                        diagMatch = matchPlane[prevRow + k];
+                        diagGap = prevGap[k];
+                    }
+                    if (i == 1) {
+                        vertMatch = boundaryMatch(0, j);
+                        vertGap = boundaryGap(0, j);
+                    } else if (k + 1 < width) {
+                        vertMatch = matchPlane[prevRow + k + 1];
+                        vertGap = prevGap[k + 1];
+                    } else {
+                        vertMatch = vertGap = unreachable;
+                    }
+                    if (j == 1) {
+                        horizMatch = boundaryMatch(i, 0);
+                        horizGap = boundaryGap(i, 0);
+                    } else if (k > 0) {
+                        horizMatch = matchPlane[row + k - 1];
+                        horizGap = curGap[k - 1];
+                    } else {
+                        horizMatch = horizGap = unreachable;
+                    }
+
+                    int sxy = scores[j - 1];
+
+                    int scoreUp = Math.max(vertGap + gapExtend, vertMatch + gapOpen);
+                    int scoreLeft = Math.max(horizGap + gapExtend, horizMatch + gapOpen);
+                    int m = Math.max(diagMatch, diagGap) + sxy;
+
+                    if (mode == AlignmentMode.local) {
+                        matchPlane[row + k] = (m < 0) ? 0 : m;
+                        curGap[k] = Math.min(0, Math.max(scoreLeft, scoreUp));
+                    } else {
+                        matchPlane[row + k] = m;
+                        curGap[k] = Math.max(scoreLeft, scoreUp);
+                    }
+
+                    if (m >= scoreLeft && m >= scoreUp) {
+                        traceVal = PairwiseAligner.diag;
+                    } else if (scoreLeft >= m && scoreLeft >= scoreUp) {
+                        traceVal = PairwiseAligner.up;
+                    }
+                }
+
+                packed |= traceVal << ((k & 3) << 1);
+                if ((k & 3) == 3) {
+                    tracePlane[traceRow + (k >> 2)] = (byte) packed;
+                    packed = 0;
+                }
+            }
+            if ((width & 3) != 0) {
+                tracePlane[traceRow + ((width - 1) >> 2)] = (byte) packed;
+            }
+
+            int[] tmp = prevGap;
+            prevGap = curGap;
+            curGap = tmp;
+        }
+    }
+
+    private boolean inBand(int i, int j) {
+        int d = j - i - lo;
+        return d >= 0 && d < width;
+    }
+
+    private void selectEnd() {
+        endi = rows;
+        endj = cols;
+        fillFromJ = false;
+        int bestEdge = Integer.MIN_VALUE;
+
+        switch (mode) {
+            case overlap:
+            case overlap_trim:
+            case glocal:
+                for (int index = 1; index < rows + 1; index++) {
+                    if (inBand(index, cols) && matchAt(index, cols) > bestEdge) {
+                        bestEdge = matchAt(index, cols);
+                        endi = index;
+                    }
+                }
+
+                if (mode != AlignmentMode.glocal) {
+                    for (int index = 1; index < cols + 1; index++) {
+                        if (inBand(rows, index) && matchAt(rows, index) > bestEdge) {
+                            bestEdge = matchAt(rows, index);
+                            endi = rows;
+                            endj = index;
+                            fillFromJ = true;
+                        }
+                    }
+                }
+                break;
+            case local:
+                for (int row = 1; row < rows + 1; row++) {
+                    for (int k = 0; k < width; k++) {
+                        int col = row + lo + k;
+                        if (col >= 1 && col <= cols && workspace.match[row * width + k] > bestEdge) {
+                            bestEdge = workspace.match[row * width + k];
+                            endi = row;
+                            endj = col;
+                        }
+                    }
+                }
+                break;
+        }
+
+        tailScore = matchAt(endi, endj);
+    }
+
+    private boolean traceback() {
+        path = new TracePath();
+        boolean insideBand = true;
+        int i = endi, j = endj;
+        boolean done = false;
+
+        while (!done) {
+            byte traceVal;
+            if (j == 0) {
+                traceVal = PairwiseAligner.left;
+            } else if (i == 0) {
+                traceVal = PairwiseAligner.up;
+            } else {
+                int k = j - i - lo;
+                if ((k == 0 && j > 1) || (k == width - 1 && i > 1)) {
+                    insideBand = false;
+                }
+                traceVal = workspace.traceAt(i, k);
+            }
+
+            if (traceVal == PairwiseAligner.diag) {
+                i--;
+                j--;
+            } else if (traceVal == PairwiseAligner.up) {
+                j--;
+            } else {
+                i--;
+            }
+
+            int score = matchAt(i, j);
+            path.add(traceVal, (mode == AlignmentMode.local && score < 0) ? 0 : score);
+
+            switch (mode) {
+                case global:
+                    done = (i == 0) && (j == 0);
+                    break;
+                case local:
+                    done = ((i == 0) && (j == 0)) || (score <= 0);
+                    break;
+                case overlap:
+                case overlap_trim:
+                    done = (i == 0) || (j == 0);
+                    break;
+                case glocal:
+                    done = i == 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown alignment mode " + mode);
+            }
+        }
+
+        return insideBand;
+    }
+}
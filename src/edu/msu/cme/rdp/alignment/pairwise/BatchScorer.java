@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.alignment.AlignmentMode;
+
+/**
+ * Scores one query against many references at once, each lane holds a
+ * different reference. The matrices are filled one reference row at a time
+ * (exactly like PairwiseAligner.scoreByRows), cell j of lane k is stored at
+ * j * lanes + k so the loop over lanes has no dependencies between
+ * iterations. Every lane works through its own reference, as soon as a lane
+ * finishes (or its reference is pruned) the next reference is started in it.
+ *
+ * @author fishjord
+ */
+final class BatchScorer {
+
+    static final int lanes = 8;
+    private final PairwiseAligner aligner;
+    private final ScoringMatrix matrix;
+    private final AlignmentMode mode;
+    private final int gapOpen;
+    private final int gapExtend;
+    private final int[] laneMax = new int[lanes];
+    private final int[][] laneProfile = new int[lanes][];
+    /**
+     * Reference in each lane, -1 for an idle lane, and the row being filled
+     */
+    private final int[] laneRef = new int[lanes];
+    private final int[] laneRow = new int[lanes];
+    private final PairwiseAligner.EndCells[] ends = new PairwiseAligner.EndCells[lanes];
+    private int[] prevM, prevG, curM, curG;
+
+    BatchScorer(PairwiseAligner aligner) {
+        this.aligner = aligner;
+        this.matrix = aligner.getScoringMatrix();
+        this.mode = aligner.getMode();
+        this.gapOpen = matrix.getGapOpen();
+        this.gapExtend = matrix.getGapExtend();
+    }
+
+    private int rowZeroMatch(int j) {
+        if (j == 0) {
+            return 0;
+        }
+        return (mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? (j - 1) * gapExtend + gapOpen : 0;
+    }
+
+    /**
+     * @return score, endi and endj of each reference, 3 ints per reference.
+     * References that can't reach minScore may be pruned, their score is an
+     * upper bound below minScore and endi and endj are -1
+     */
+    int[] score(char[] query, char[][] refs, int minScore) {
+        byte[][] codes = new byte[refs.length][];
+        for (int index = 0; index < refs.length; index++) {
+            codes[index] = matrix.encode(refs[index]);
+        }
+        return score(query, codes, minScore);
+    }
+
+    /**
+     * Like score(char[], char[][], int) but the references are already
+     * encoded with the scoring matrix's alphabet
+     */
+    int[] score(char[] query, byte[][] codes, int minScore) {
+        final int cols = query.length;
+        final int size = (cols + 1) * lanes;
+        final int last = cols * lanes;
+        final boolean local = mode == AlignmentMode.local;
+        final boolean prune = minScore > Integer.MIN_VALUE && gapOpen <= 0 && gapExtend <= 0;
+        final int maxScore = Math.max(0, matrix.getMaxScore());
+        int[] ret = new int[codes.length * 3];
+
+        if (cols == 0) {
+            for (int index = 0; index < codes.length; index++) {
+                scoreAligner(query, codes, index, ret);
+            }
+            return ret;
+        }
+
+        int[][] profile = matrix.buildProfile(matrix.encode(query));
+        int[] zeroProfile = new int[cols];
+        prevM = new int[size];
+        prevG = new int[size];
+        curM = new int[size];
+        curG = new int[size];
+        int next = 0;
+        for (int k = 0; k < lanes; k++) {
+            laneRef[k] = -1;
+        }
+
+        while (true) {
+            boolean active = false;
+            for (int k = 0; k < lanes; k++) {
+                while (laneRef[k] == -1 && next < codes.length) {
+                    if (codes[next].length == 0) {
+                        scoreAligner(query, codes, next++, ret);
+                    } else {
+                        start(k, next++);
+                    }
+                }
+                active |= laneRef[k] != -1;
+            }
+            if (!active) {
+                break;
+            }
+
+            for (int k = 0; k < lanes; k++) {
+                int i = laneRow[k];
+                int initScore = (laneRef[k] != -1 && mode == AlignmentMode.global) ? (i - 1) * gapExtend + gapOpen : 0;
+                curM[k] = initScore;
+                curG[k] = initScore + gapExtend;
+                laneMax[k] = Integer.MIN_VALUE;
+                laneProfile[k] = (laneRef[k] != -1) ? profile[codes[laneRef[k]][i - 1]] : zeroProfile;
+            }
+
+            for (int j = 1; j < cols + 1; j++) {
+                int base = j * lanes;
+                for (int k = 0; k < lanes; k++) {
+                    int scoreUp = Math.max(prevG[base + k] + gapExtend, prevM[base + k] + gapOpen);
+                    int scoreLeft = Math.max(curG[base - lanes + k] + gapExtend, curM[base - lanes + k] + gapOpen);
+                    int m = Math.max(prevM[base - lanes + k], prevG[base - lanes + k]) + laneProfile[k][j - 1];
+
+                    if (local) {
+                        m = Math.max(m, 0);
+                        curM[base + k] = m;
+                        curG[base + k] = Math.min(0, Math.max(scoreLeft, scoreUp));
+                        laneMax[k] = Math.max(laneMax[k], m);
+                    } else {
+                        curM[base + k] = m;
+                        curG[base + k] = Math.max(scoreLeft, scoreUp);
+                    }
+                }
+            }
+
+            for (int k = 0; k < lanes; k++) {
+                if (laneRef[k] == -1) {
+                    continue;
+                }
+                int i = laneRow[k];
+                int refLength = codes[laneRef[k]].length;
+                PairwiseAligner.EndCells end = ends[k];
+
+                if (local && laneMax[k] > end.bestLocal) {
+                    int j = 1;
+                    while (curM[j * lanes + k] != laneMax[k]) {
+                        j++;
+                    }
+                    end.local(laneMax[k], i, j, predecessor(k, j));
+                }
+
+                if (curM[last + k] > end.bestRight) {
+                    end.bestRight = curM[last + k];
+                    end.rightI = i;
+                    end.rightPred = predecessor(k, cols);
+                }
+
+                if (i == refLength) {
+                    for (int j = 1; j < cols + 1; j++) {
+                        if (curM[j * lanes + k] > end.bestBottom) {
+                            end.bestBottom = curM[j * lanes + k];
+                            end.bottomJ = j;
+                            end.bottomPred = predecessor(k, j);
+                        }
+                    }
+                    end.cornerPred = predecessor(k, cols);
+
+                    PairwiseScore score = end.toScore(mode, refLength, cols);
+                    finish(k, score.getScore(), score.getEndi(), score.getEndj(), ret);
+                } else if (prune && i % PairwiseAligner.EndCells.pruneInterval == 0) {
+                    int remaining = refLength - i;
+                    int bound = Math.max(end.bestPicked(), ((mode == AlignmentMode.global) ? i * gapExtend + gapOpen : 0) + maxScore * Math.min(remaining - 1, cols));
+                    for (int j = 0, index = k; j < cols + 1; j++, index += lanes) {
+                        bound = Math.max(bound, Math.max(curM[index], curG[index]) + maxScore * Math.min(remaining, cols - j));
+                    }
+                    if (bound < minScore) {
+                        finish(k, bound, -1, -1, ret);
+                    }
+                }
+            }
+
+            int[] tmp = prevM;
+            prevM = curM;
+            curM = tmp;
+            tmp = prevG;
+            prevG = curG;
+            curG = tmp;
+            for (int k = 0; k < lanes; k++) {
+                if (laneRef[k] != -1) {
+                    laneRow[k]++;
+                }
+            }
+        }
+
+        prevM = prevG = curM = curG = null;
+        return ret;
+    }
+
+    /**
+     * Starts reference ref in lane k, the lane's previous row is reset to row
+     * 0
+     */
+    private void start(int k, int ref) {
+        laneRef[k] = ref;
+        laneRow[k] = 1;
+        ends[k] = new PairwiseAligner.EndCells();
+        for (int index = k, j = 0; index < prevM.length; index += lanes, j++) {
+            prevM[index] = rowZeroMatch(j);
+            prevG[index] = (j == 0) ? Integer.MIN_VALUE : rowZeroMatch(j) + gapExtend;
+        }
+    }
+
+    private void finish(int k, int score, int endi, int endj, int[] ret) {
+        ret[laneRef[k] * 3] = score;
+        ret[laneRef[k] * 3 + 1] = endi;
+        ret[laneRef[k] * 3 + 2] = endj;
+        laneRef[k] = -1;
+    }
+
+    /**
+     * Empty sequences are left to the aligner
+     */
+    private void scoreAligner(char[] query, byte[][] codes, int index, int[] ret) {
+        PairwiseScore score = aligner.score(new String(matrix.decode(codes[index])), new String(query));
+        ret[index * 3] = score.getScore();
+        ret[index * 3 + 1] = score.getEndi();
+        ret[index * 3 + 2] = score.getEndj();
+    }
+
+    private int predecessor(int k, int j) {
+        int base = j * lanes + k;
+        return aligner.predecessorMatch(prevM[base - lanes], prevG[base - lanes], prevM[base], prevG[base], curM[base - lanes], curG[base - lanes], laneProfile[k][j - 1]);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+/**
+ * Global alignment for unit cost scoring matrices (see
+ * ScoringMatrix.isUnitCost()) using Myers' bit-vector edit distance
+ * algorithm, blocked into 64 bit words so seqj can be any length.
+ *
+ * With a gap open and extend of -1 and substitution scores of 0 or -1 the
+ * best of the match and gap scores of every cell is minus the edit distance
+ * of the prefixes, and the traceback pointers and match scores
+ * PairwiseAligner uses only depend on those values. Each column (residue of
+ * seqi) is computed 64 rows (residues of seqj) at a time and stored as the
+ * bit vectors of the +1 and -1 differences between vertically adjacent
+ * cells, any cell's value is recovered by counting bits. The traceback then
+ * takes exactly the path (and reports exactly the scores) the full matrix
+ * traceback does.
+ *
+ * @author fishjord
+ */
+final class BitVectorAligner {
+
+    private static final long allOnes = -1L;
+    private final ScoringMatrix matrix;
+    private int blocks;
+    /**
+     * Vertical differences of column i start at slot(i) * blocks, bit r of
+     * a column is set in plus (minus) when the cell in row r + 1 is one more
+     * (one less) than the cell in row r
+     */
+    private long[] plus = new long[0];
+    private long[] minus = new long[0];
+    private boolean keepAll;
+    private int[][] profile;
+    private byte[] codes;
+
+    BitVectorAligner(ScoringMatrix matrix) {
+        this.matrix = matrix;
+    }
+
+    /**
+     * Score and end cell align(seqi, seqj) reports, only the last three
+     * columns are kept
+     */
+    PairwiseScore score(char[] seqi, char[] seqj) {
+        fill(seqi, seqj, false);
+        int m = seqi.length, n = seqj.length;
+        byte move = move(m, n);
+        int score = (move == PairwiseAligner.diag) ? match(m - 1, n - 1) : (move == PairwiseAligner.up) ? match(m, n - 1) : match(m - 1, n);
+        return new PairwiseScore(score, m, n);
+    }
+
+    /**
+     * Traces back from (seqi.length, seqj.length) to (0, 0)
+     */
+    TracePath align(char[] seqi, char[] seqj) {
+        fill(seqi, seqj, true);
+        TracePath path = new TracePath();
+        int i = seqi.length, j = seqj.length;
+
+        while (i > 0 || j > 0) {
+            byte move = move(i, j);
+            if (move == PairwiseAligner.diag) {
+                i--;
+                j--;
+            } else if (move == PairwiseAligner.up) {
+                j--;
+            } else {
+                i--;
+            }
+            path.add(move, match(i, j));
+        }
+
+        return path;
+    }
+
+    private void fill(char[] seqi, char[] seqj, boolean keepAll) {
+        final int n = seqj.length;
+        this.keepAll = keepAll;
+        this.blocks = (n + 63) >>> 6;
+        final int last = blocks - 1;
+        this.codes = matrix.encode(seqi);
+        this.profile = matrix.buildProfile(matrix.encode(seqj));
+
+        // match[a] has bit j set when residue a scores 0 against seqj[j]
+        long[] match = new long[profile.length * blocks];
+        for (int a = 0; a < profile.length; a++) {
+            int[] scores = profile[a];
+            for (int j = 0; j < n; j++) {
+                if (scores[j] == 0) {
+                    match[a * blocks + (j >>> 6)] |= 1L << j;
+                }
+            }
+        }
+
+        int size = (keepAll ? seqi.length + 1 : 3) * blocks;
+        if (plus.length < size) {
+            plus = new long[size];
+            minus = new long[size];
+        }
+
+        // column 0 goes up by one every row
+        for (int b = 0; b < blocks; b++) {
+            plus[b] = allOnes;
+            minus[b] = 0;
+        }
+
+        for (int i = 1; i < seqi.length + 1; i++) {
+            final int prev = slot(i - 1) * blocks;
+            final int cur = slot(i) * blocks;
+            final int eqBase = codes[i - 1] * blocks;
+            // row 0 goes up by one every column
+            int carry = 1;
+
+            for (int b = 0; b < blocks; b++) {
+                long pv = plus[prev + b];
+                long mv = minus[prev + b];
+                long eq = match[eqBase + b];
+
+                long xv = eq | mv;
+                if (carry < 0) {
+                    eq |= 1L;
+                }
+                long xh = (((eq & pv) + pv) ^ pv) | eq;
+                long ph = mv | ~(xh | pv);
+                long mh = pv & xh;
+
+                int carryOut = 0;
+                if (b < last) {
+                    carryOut = (ph < 0) ? 1 : (mh < 0) ? -1 : 0;
+                }
+
+                ph <<= 1;
+                mh <<= 1;
+                if (carry < 0) {
+                    mh |= 1L;
+                } else if (carry > 0) {
+                    ph |= 1L;
+                }
+
+                plus[cur + b] = mh | ~(xv | ph);
+                minus[cur + b] = ph & xv;
+                carry = carryOut;
+            }
+        }
+    }
+
+    private int slot(int i) {
+        return keepAll ? i : i % 3;
+    }
+
+    /**
+     * Best of the match and gap scores of cell (i, j), minus the edit
+     * distance
+     */
+    private int best(int i, int j) {
+        if (i == 0) {
+            return -j;
+        }
+
+        int base = slot(i) * blocks;
+        int distance = i;
+        int full = j >>> 6;
+        for (int b = 0; b < full; b++) {
+            distance += Long.bitCount(plus[base + b]) - Long.bitCount(minus[base + b]);
+        }
+        if ((j & 63) != 0) {
+            long mask = (1L << j) - 1;
+            distance += Long.bitCount(plus[base + full] & mask) - Long.bitCount(minus[base + full] & mask);
+        }
+
+        return -distance;
+    }
+
+    /**
+     * Match score of cell (i, j)
+     */
+    private int match(int i, int j) {
+        if (i == 0 || j == 0) {
+            return -(i + j);
+        }
+        return best(i - 1, j - 1) + profile[codes[i - 1]][j - 1];
+    }
+
+    /**
+     * The trace pointer PairwiseAligner stores for cell (i, j)
+     */
+    private byte move(int i, int j) {
+        if (j == 0) {
+            return PairwiseAligner.left;
+        } else if (i == 0) {
+            return PairwiseAligner.up;
+        }
+
+        int m = match(i, j);
+        int scoreLeft = best(i, j - 1) - 1;
+        int scoreUp = best(i - 1, j) - 1;
+        if (m >= scoreLeft && m >= scoreUp) {
+            return PairwiseAligner.diag;
+        } else if (scoreLeft >= m && scoreLeft >= scoreUp) {
+            return PairwiseAligner.up;
+        }
+        return PairwiseAligner.left;
+    }
+}
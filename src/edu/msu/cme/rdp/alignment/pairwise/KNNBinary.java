@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * The binary output of PairwiseKNN --out-format binary, and knn-view which
+ * prints it as the text output.
+ *
+ * The file starts with int magic, int version, boolean cigars, string header
+ * line and the reference table: int number of references then each
+ * reference's name and description, in reference file order. Then for each
+ * query (in output order) boolean true, int query index (position in the
+ * query file), string query name, int query length, int count, count fixed
+ * width hit records and, if cigars is set, count times string CIGAR, string
+ * aligned query residues and string aligned reference residues. Finally
+ * boolean false. Strings are an int length followed by UTF-8, numbers are
+ * big endian.
+ *
+ * A hit record is 41 bytes: int query index, int rank (1 is the nearest),
+ * byte strand (1 if reversed), int score, double identity, int query start,
+ * int query end, int reference start, int reference end and int reference
+ * index into the reference table.
+ *
+ * @author fishjord
+ */
+public final class KNNBinary {
+
+    static final int magic = 0x4B4E4E42;
+    static final int version = 1;
+    static final int recordSize = 41;
+    private static final String dformat = "%1$.3f";
+    private static final String newline = System.getProperty("line.separator");
+
+    public static final class Hit {
+
+        private int query;
+        private int rank;
+        private boolean reverse;
+        private int score;
+        private double ident;
+        private int queryStart, queryEnd;
+        private int refStart, refEnd;
+        private int ref;
+        private String cigar;
+        private String alignedQuery, alignedRef;
+
+        public int getQuery() {
+            return query;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        public boolean isReverse() {
+            return reverse;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public double getIdent() {
+            return ident;
+        }
+
+        public int getQueryStart() {
+            return queryStart;
+        }
+
+        public int getQueryEnd() {
+            return queryEnd;
+        }
+
+        public int getRefStart() {
+            return refStart;
+        }
+
+        public int getRefEnd() {
+            return refEnd;
+        }
+
+        /**
+         * Index of the reference in the reference table
+         */
+        public int getRef() {
+            return ref;
+        }
+
+        /**
+         * The alignment's CIGAR (see PairwiseAlignment.getCigar()), null if
+         * the file has no cigars
+         */
+        public String getCigar() {
+            return cigar;
+        }
+
+        /**
+         * The aligned query as the text output prints it, null if the file
+         * has no cigars
+         */
+        public String getAlignedQuery() {
+            return alignedQuery;
+        }
+
+        public String getAlignedRef() {
+            return alignedRef;
+        }
+    }
+
+    public static final class QueryResult {
+
+        private int index;
+        private String name;
+        private int length;
+        private List<Hit> hits;
+
+        /**
+         * Position of the query in the query file
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Nearest first
+         */
+        public List<Hit> getHits() {
+            return hits;
+        }
+    }
+
+    /**
+     * Reads a binary output one query at a time
+     */
+    public static final class Reader {
+
+        private final DataInputStream in;
+        private final boolean cigars;
+        private final String header;
+        private final String[] refNames;
+        private final String[] refDescs;
+        private boolean done = false;
+
+        public Reader(InputStream is) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(is));
+            if (in.readInt() != magic || in.readInt() != version) {
+                throw new IOException("Not a pairwise-knn binary output");
+            }
+            cigars = in.readBoolean();
+            header = Utf8Strings.read(in);
+            int numRefs = in.readInt();
+            refNames = new String[numRefs];
+            refDescs = new String[numRefs];
+            for (int ref = 0; ref < numRefs; ref++) {
+                refNames[ref] = Utf8Strings.read(in);
+                refDescs[ref] = Utf8Strings.read(in);
+            }
+        }
+
+        /**
+         * The header line of the text output
+         */
+        public String getHeader() {
+            return header;
+        }
+
+        public boolean hasCigars() {
+            return cigars;
+        }
+
+        public int getNumRefs() {
+            return refNames.length;
+        }
+
+        public String getRefName(int ref) {
+            return refNames[ref];
+        }
+
+        public String getRefDesc(int ref) {
+            return refDescs[ref];
+        }
+
+        /**
+         * The next query's neighbors, null after the last query
+         */
+        public QueryResult next() throws IOException {
+            if (done || !in.readBoolean()) {
+                done = true;
+                return null;
+            }
+            QueryResult ret = new QueryResult();
+            ret.index = in.readInt();
+            ret.name = Utf8Strings.read(in);
+            ret.length = in.readInt();
+            int count = in.readInt();
+
+            byte[] records = new byte[count * recordSize];
+            in.readFully(records);
+            ByteBuffer buf = ByteBuffer.wrap(records);
+            List<Hit> hits = new ArrayList<Hit>(count);
+            for (int index = 0; index < count; index++) {
+                Hit hit = new Hit();
+                hit.query = buf.getInt();
+                hit.rank = buf.getInt();
+                hit.reverse = buf.get() != 0;
+                hit.score = buf.getInt();
+                hit.ident = buf.getDouble();
+                hit.queryStart = buf.getInt();
+                hit.queryEnd = buf.getInt();
+                hit.refStart = buf.getInt();
+                hit.refEnd = buf.getInt();
+                hit.ref = buf.getInt();
+                hits.add(hit);
+            }
+            if (cigars) {
+                for (Hit hit : hits) {
+                    hit.cigar = Utf8Strings.read(in);
+                    String[] aligned = expand(hit.cigar, Utf8Strings.read(in), Utf8Strings.read(in));
+                    hit.alignedQuery = aligned[0];
+                    hit.alignedRef = aligned[1];
+                }
+            }
+            ret.hits = Collections.unmodifiableList(hits);
+            return ret;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static void writeHeader(DataOutputStream out, String header, boolean cigars, List<String> refNames, List<String> refDescs) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(version);
+        out.writeBoolean(cigars);
+        Utf8Strings.write(out, header);
+        out.writeInt(refNames.size());
+        for (int ref = 0; ref < refNames.size(); ref++) {
+            Utf8Strings.write(out, refNames.get(ref));
+            Utf8Strings.write(out, refDescs.get(ref));
+        }
+    }
+
+    /**
+     * One query's block, refs are the neighbors' indices in the reference
+     * table
+     */
+    static byte[] formatQuery(int queryIndex, String queryName, int queryLength, List<PairwiseKNN.Neighbor> neighbors, int[] refs, boolean cigars) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + neighbors.size() * recordSize);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBoolean(true);
+        out.writeInt(queryIndex);
+        Utf8Strings.write(out, queryName);
+        out.writeInt(queryLength);
+        out.writeInt(neighbors.size());
+        for (int index = 0; index < neighbors.size(); index++) {
+            PairwiseKNN.Neighbor n = neighbors.get(index);
+            PairwiseAlignment alignment = n.getAlignment();
+            out.writeInt(queryIndex);
+            out.writeInt(index + 1);
+            out.writeByte(n.isReverse() ? 1 : 0);
+            out.writeInt(alignment.getScore());
+            out.writeDouble(alignment.getIdent());
+            out.writeInt(alignment.getStartj());
+            out.writeInt(alignment.getEndj());
+            out.writeInt(alignment.getStarti());
+            out.writeInt(alignment.getEndi());
+            out.writeInt(refs[index]);
+        }
+        if (cigars) {
+            for (PairwiseKNN.Neighbor n : neighbors) {
+                PairwiseAlignment alignment = n.getAlignment();
+                String cigar = alignment.getCigar();
+                Utf8Strings.write(out, cigar);
+                Utf8Strings.write(out, residues(cigar, alignment.getAlignedSeqj(), 'D'));
+                Utf8Strings.write(out, residues(cigar, alignment.getAlignedSeqi(), 'I'));
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The residues of aligned in the columns whose operation isn't gapOp
+     */
+    private static String residues(String cigar, String aligned, char gapOp) {
+        StringBuilder ret = new StringBuilder(aligned.length());
+        int column = 0;
+        int count = 0;
+        for (int index = 0; index < cigar.length(); index++) {
+            char c = cigar.charAt(index);
+            if (Character.isDigit(c)) {
+                count = count * 10 + (c - '0');
+                continue;
+            }
+            if (c != gapOp) {
+                ret.append(aligned, column, column + count);
+            }
+            column += count;
+            count = 0;
+        }
+        return ret.toString();
+    }
+
+    /**
+     * The aligned query and reference rebuilt from a CIGAR and their residues
+     */
+    private static String[] expand(String cigar, String query, String ref) throws IOException {
+        StringBuilder alignedQuery = new StringBuilder();
+        StringBuilder alignedRef = new StringBuilder();
+        int q = 0, r = 0;
+        int count = 0;
+        try {
+            for (int index = 0; index < cigar.length(); index++) {
+                char c = cigar.charAt(index);
+                if (Character.isDigit(c)) {
+                    count = count * 10 + (c - '0');
+                    continue;
+                }
+                for (; count > 0; count--) {
+                    alignedQuery.append((c == 'D') ? '-' : query.charAt(q++));
+                    alignedRef.append((c == 'I') ? '-' : ref.charAt(r++));
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new EOFException("CIGAR " + cigar + " is longer than its residues");
+        }
+        return new String[]{alignedQuery.toString(), alignedRef.toString()};
+    }
+
+    /**
+     * Prints a binary output as the text output, without the aligned
+     * sequences if the file has no cigars
+     */
+    public static void view(Reader reader, PrintStream out) throws IOException {
+        out.println(reader.getHeader());
+        out.println(PairwiseKNN.columnHeader);
+        QueryResult result;
+        while ((result = reader.next()) != null) {
+            for (Hit hit : result.getHits()) {
+                StringBuilder line = new StringBuilder();
+                line.append("@").append(result.getName()).append("\t").append(hit.getRank())
+                        .append("\t").append(hit.isReverse() ? "-" : "+")
+                        .append("\t").append(hit.getScore())
+                        .append("\t").append(String.format(dformat, hit.getIdent()))
+                        .append("\t").append(hit.getQueryStart())
+                        .append("\t").append(hit.getQueryEnd())
+                        .append("\t").append(result.getLength())
+                        .append("\t").append(hit.getRefStart())
+                        .append("\t").append(hit.getRefEnd())
+                        .append("\t").append(reader.getRefName(hit.getRef()))
+                        .append("\t").append(reader.getRefDesc(hit.getRef())).append(newline);
+                if (reader.hasCigars()) {
+                    line.append(">").append(hit.getAlignedQuery()).append(newline);
+                    line.append(">").append(hit.getAlignedRef()).append(newline);
+                }
+                out.print(line);
+            }
+        }
+        out.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("o", "out", true, "Redirect output to file instead of stdout");
+
+        Reader reader;
+        PrintStream out;
+        try {
+            CommandLine line = new PosixParser().parse(options, args);
+            args = line.getArgs();
+            if (args.length != 1) {
+                throw new Exception("Unexpected number of command line arguments");
+            }
+            reader = new Reader(new FileInputStream(args[0]));
+            if (line.hasOption("out")) {
+                out = new PrintStream(new BufferedOutputStream(new FileOutputStream(line.getOptionValue("out"))));
+            } else {
+                out = new PrintStream(new BufferedOutputStream(System.out));
+            }
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("knn-view <options> <binaryOutput>\n  prints a pairwise-knn --out-format binary output as text", options);
+            System.err.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        try {
+            view(reader, out);
+        } finally {
+            reader.close();
+            out.close();
+        }
+    }
+}
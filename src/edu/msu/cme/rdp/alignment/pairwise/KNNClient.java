@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.readers.SeqReader;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import edu.msu.cme.rdp.readseq.readers.SequenceReader;
+import edu.msu.cme.rdp.readseq.utils.SeqUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Sends a query file to a running KNNServer and writes the neighbors in the
+ * same format (and query order) as PairwiseKNN
+ *
+ * @author fishjord
+ */
+public class KNNClient {
+
+    /**
+     * Sends every query from reader to the server on port, prints the header
+     * and results to out. Throws an IOException with the server's message if
+     * it refuses the batch.
+     */
+    public static void query(int port, final String refName, final SequenceType queryType, final SeqReader reader, final boolean removeBaseN,
+            String queryName, PrintStream out) throws IOException, InterruptedException {
+        final Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            final DataOutputStream sockOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream sockIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // the server answers while the queries are still going out, so
+            // they're sent from their own thread
+            final IOException[] sendError = new IOException[1];
+            Thread sender = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        sockOut.writeInt(KNNServer.magic);
+                        Utf8Strings.write(sockOut, refName);
+                        Utf8Strings.write(sockOut, queryType.toString());
+                        sockOut.writeBoolean(removeBaseN);
+                        Sequence seq;
+                        while ((seq = reader.readNextSequence()) != null) {
+                            sockOut.writeBoolean(true);
+                            Utf8Strings.write(sockOut, seq.getSeqName());
+                            Utf8Strings.write(sockOut, seq.getDesc());
+                            Utf8Strings.write(sockOut, seq.getSeqString());
+                        }
+                        sockOut.writeBoolean(false);
+                        sockOut.flush();
+                    } catch (IOException e) {
+                        sendError[0] = e;
+                    }
+                }
+            }, "knn-client-sender");
+            sender.setDaemon(true);
+            sender.start();
+
+            if (sockIn.readInt() != KNNServer.ok) {
+                throw new IOException(Utf8Strings.read(sockIn, KNNServer.maxStringLength));
+            }
+            out.println("#query file: " + queryName + " db file: " + refName + " " + Utf8Strings.read(sockIn, KNNServer.maxStringLength));
+            out.println(PairwiseKNN.columnHeader);
+
+            int length;
+            byte[] buf = new byte[8192];
+            while ((length = sockIn.readInt()) != KNNServer.endOfResults) {
+                if (length == KNNServer.failedResults) {
+                    throw new IOException(Utf8Strings.read(sockIn, KNNServer.maxStringLength));
+                }
+                if (length > buf.length) {
+                    buf = new byte[Math.max(length, buf.length * 2)];
+                }
+                sockIn.readFully(buf, 0, length);
+                out.print(new String(buf, 0, length, "UTF-8"));
+            }
+            sender.join();
+            if (sendError[0] != null) {
+                throw sendError[0];
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = KNNServer.defaultPort;
+        boolean removeBaseN;
+        File queryFile;
+        String refName;
+        PrintStream out;
+
+        Options options = new Options();
+        options.addOption("P", "port", true, "Localhost port the server listens on (default " + KNNServer.defaultPort + ")");
+        options.addOption("o", "out", true, "Redirect output to file instead of stdout");
+        options.addOption("n", false, "Remove Ns from the query. Default is false");
+
+        try {
+            CommandLine line = new PosixParser().parse(options, args);
+
+            if (line.hasOption("port")) {
+                port = Integer.parseInt(line.getOptionValue("port"));
+            }
+            removeBaseN = line.hasOption('n');
+            args = line.getArgs();
+            if (args.length != 2) {
+                throw new Exception("Unexpected number of command line arguments");
+            }
+            queryFile = new File(args[0]);
+            refName = args[1];
+
+            if (line.hasOption("out")) {
+                out = new PrintStream(new BufferedOutputStream(new FileOutputStream(line.getOptionValue("out"))));
+            } else {
+                out = new PrintStream(new BufferedOutputStream(System.out));
+            }
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("knn-client <options> <queryFile> <dbName>\n  dbName is the file name of a reference set loaded by serve", options);
+            System.err.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        SequenceType querySeqType = SeqUtils.guessSequenceType(queryFile);
+        SeqReader reader = new SequenceReader(queryFile);
+        try {
+            query(port, refName, querySeqType, reader, removeBaseN, queryFile.getName(), out);
+        } finally {
+            reader.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Combines the partial results of PairwiseKNN --shard runs into the output
+ * an unsharded run writes.
+ *
+ * A partial result file is int magic, int version, int shard, int number
+ * of shards, int k, string header line, then for each query (in query file
+ * order) boolean true, string query name, int count, and count times int
+ * rank, int score, string output lines, finally boolean false. Strings are
+ * an int length followed by UTF-8.
+ *
+ * Every shard keeps its top k by score, the lower rank (the reference's
+ * position in the unsharded scan order) winning ties, so the overall top k
+ * is the top k of the shards' neighbors in the same order.
+ *
+ * @author fishjord
+ */
+public class KNNMerge {
+
+    static final int magic = 0x4B4E4E50;
+    static final int version = 1;
+
+    private static class Partial {
+
+        final int rank;
+        final int score;
+        final String lines;
+
+        Partial(int rank, int score, String lines) {
+            this.rank = rank;
+            this.score = score;
+            this.lines = lines;
+        }
+    }
+
+    private static final Comparator<Partial> bestFirst = new Comparator<Partial>() {
+
+        public int compare(Partial a, Partial b) {
+            if (a.score != b.score) {
+                return (a.score > b.score) ? -1 : 1;
+            }
+            return (a.rank < b.rank) ? -1 : (a.rank > b.rank) ? 1 : 0;
+        }
+    };
+
+    static void writeHeader(DataOutputStream out, int shard, int numShards, int k, String header) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(version);
+        out.writeInt(shard);
+        out.writeInt(numShards);
+        out.writeInt(k);
+        Utf8Strings.write(out, header);
+    }
+
+    /**
+     * Merges the partial results of every shard of one run into out
+     */
+    public static void merge(List<File> partFiles, PrintStream out) throws IOException {
+        List<DataInputStream> parts = new ArrayList<DataInputStream>();
+        try {
+            boolean[] seen = new boolean[partFiles.size()];
+            String header = null;
+            int k = 0;
+            for (File partFile : partFiles) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(partFile)));
+                parts.add(in);
+                if (in.readInt() != magic || in.readInt() != version) {
+                    throw new IOException(partFile + " isn't a pairwise-knn --shard output");
+                }
+                int shard = in.readInt();
+                int numShards = in.readInt();
+                int partK = in.readInt();
+                String partHeader = Utf8Strings.read(in);
+                if (numShards != partFiles.size()) {
+                    throw new IOException(partFile + " is one of " + numShards + " shards but " + partFiles.size() + " files were given");
+                }
+                if (seen[shard]) {
+                    throw new IOException("Shard " + shard + " given twice");
+                }
+                seen[shard] = true;
+                if (header == null) {
+                    header = partHeader;
+                    k = partK;
+                } else if (!header.equals(partHeader) || k != partK) {
+                    throw new IOException(partFile + " is from a different run: " + partHeader);
+                }
+            }
+
+            out.println(header);
+            out.println(PairwiseKNN.columnHeader);
+
+            List<Partial> neighbors = new ArrayList<Partial>();
+            while (true) {
+                String queryName = null;
+                int more = 0;
+                for (DataInputStream in : parts) {
+                    if (!in.readBoolean()) {
+                        continue;
+                    }
+                    more++;
+                    String name = Utf8Strings.read(in);
+                    if (queryName != null && !queryName.equals(name)) {
+                        throw new IOException("Shards disagree on the query order at " + queryName + " and " + name);
+                    }
+                    queryName = name;
+                    int count = in.readInt();
+                    for (int index = 0; index < count; index++) {
+                        neighbors.add(new Partial(in.readInt(), in.readInt(), Utf8Strings.read(in)));
+                    }
+                }
+                if (more == 0) {
+                    break;
+                } else if (more != parts.size()) {
+                    throw new IOException("Shards have different numbers of queries, stopped at " + queryName);
+                }
+
+                Collections.sort(neighbors, bestFirst);
+                for (int index = 0; index < Math.min(k, neighbors.size()); index++) {
+                    out.print("@" + queryName + "\t" + (index + 1) + neighbors.get(index).lines);
+                }
+                neighbors.clear();
+            }
+        } finally {
+            for (DataInputStream in : parts) {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("o", "out", true, "Redirect output to file instead of stdout");
+
+        List<File> partFiles = new ArrayList<File>();
+        PrintStream out;
+        try {
+            CommandLine line = new PosixParser().parse(options, args);
+            for (String arg : line.getArgs()) {
+                partFiles.add(new File(arg));
+            }
+            if (partFiles.isEmpty()) {
+                throw new Exception("At least one shard output is required");
+            }
+            if (line.hasOption("out")) {
+                out = new PrintStream(new BufferedOutputStream(new FileOutputStream(line.getOptionValue("out"))));
+            } else {
+                out = new PrintStream(new BufferedOutputStream(System.out));
+            }
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("knn-merge <options> <shardOutput> [shardOutput ...]\n  every output of one pairwise-knn --shard i/N run, in any order", options);
+            System.err.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        merge(partFiles, out);
+        out.close();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.readseq.readers.SeqReader;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs PairwiseKNN over a query file as a pipeline: the calling thread reads
+ * queries into a bounded queue, worker threads find and format the
+ * neighbors of each query and a single writer thread prints the results.
+ *
+ * At most maxInFlight queries are between the reader and the writer at any
+ * time, the reader blocks until the writer has printed an earlier query.
+ * With ordered set the writer holds results back until every earlier query
+ * has been printed, so the output is in query file order no matter how many
+ * workers there are. A query that fails is reported and skipped, it doesn't
+ * hold up the pipeline. If a worker dies (an Error such as OutOfMemoryError)
+ * or the writer fails the reader stops and run throws instead of waiting for
+ * them.
+ *
+ * Each query is written as text, as a shard record for KNNMerge (partial)
+ * or as a KNNBinary query block (binary), a failed query gets a record
+ * with no neighbors.
+ *
+ * @author fishjord
+ */
+final class KNNPipeline {
+
+    static enum Format {
+
+        text, partial, binary
+    }
+
+    /**
+     * Results the writer takes off the queue before it writes them out
+     */
+    private static final int writeBatch = 64;
+    /**
+     * How often (ms) a blocked reader checks that the workers and writer are
+     * still running
+     */
+    private static final long pollInterval = 100;
+    private static final Query endOfInput = new Query(-1, null);
+    private static final Result endOfResults = new Result(-1, null);
+    private final PairwiseKNN knn;
+    private final boolean removeBaseN;
+    private final int threads;
+    private final boolean ordered;
+    private final Format format;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Query> queries;
+    private final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+
+    private static class Query {
+
+        final long index;
+        final Sequence seq;
+
+        Query(long index, Sequence seq) {
+            this.index = index;
+            this.seq = seq;
+        }
+    }
+
+    private static class Result {
+
+        final long index;
+        final byte[] text;
+
+        Result(long index, byte[] text) {
+            this.index = index;
+            this.text = text;
+        }
+    }
+
+    KNNPipeline(PairwiseKNN knn, boolean removeBaseN, int threads, int maxInFlight, boolean ordered, Format format) {
+        this.knn = knn;
+        this.removeBaseN = removeBaseN;
+        this.threads = threads;
+        this.ordered = ordered;
+        this.format = format;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.queries = new ArrayBlockingQueue<Query>(maxInFlight);
+    }
+
+    /**
+     * Reads every query from reader and writes its neighbors to out, returns
+     * once everything has been written
+     *
+     * @return the number of queries that failed
+     */
+    int run(SeqReader reader, final OutputStream out) throws IOException, InterruptedException {
+        ExecutorService service = Executors.newFixedThreadPool(threads + 1);
+        List<Future<Integer>> workers = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(service.submit(new Callable<Integer>() {
+
+                public Integer call() throws IOException, InterruptedException {
+                    return work();
+                }
+            }));
+        }
+        Future<Object> writer = service.submit(new Callable<Object>() {
+
+            public Object call() throws IOException, InterruptedException {
+                write(out);
+                return null;
+            }
+        });
+
+        List<Future<?>> tasks = new ArrayList<Future<?>>(workers);
+        tasks.add(writer);
+        try {
+            Sequence seq;
+            long index = 0;
+            while ((seq = reader.readNextSequence()) != null) {
+                while (!inFlight.tryAcquire(pollInterval, TimeUnit.MILLISECONDS)) {
+                    checkRunning(tasks);
+                }
+                enqueue(new Query(index++, seq), tasks);
+            }
+            for (int t = 0; t < threads; t++) {
+                enqueue(endOfInput, tasks);
+            }
+
+            int failed = 0;
+            for (Future<Integer> worker : workers) {
+                failed += worker.get();
+            }
+            writer.get();
+            return failed;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("KNN pipeline failed", e.getCause());
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    private void enqueue(Query query, List<Future<?>> tasks) throws InterruptedException, ExecutionException {
+        while (!queries.offer(query, pollInterval, TimeUnit.MILLISECONDS)) {
+            checkRunning(tasks);
+        }
+    }
+
+    /**
+     * The workers and writer only finish once the input has ended, before
+     * that a finished task has failed
+     *
+     * @throws ExecutionException with the failed task's cause
+     */
+    private static void checkRunning(List<Future<?>> tasks) throws InterruptedException, ExecutionException {
+        for (Future<?> task : tasks) {
+            if (task.isDone()) {
+                task.get();
+                throw new IllegalStateException("KNN pipeline task stopped early");
+            }
+        }
+    }
+
+    /**
+     * Worker loop, returns the number of queries that failed. Every query
+     * taken gets a result, even when an Error ends the loop, so the writer
+     * never waits for a query that won't come.
+     */
+    private int work() throws IOException, InterruptedException {
+        int failed = 0;
+        try {
+            Query query;
+            while ((query = queries.take()) != endOfInput) {
+                byte[] text = null;
+                try {
+                    List<PairwiseKNN.Neighbor> neighbors = knn.findMatch(query.seq, removeBaseN);
+                    text = format(query, neighbors);
+                } catch (Exception e) {
+                    System.err.println("Failed to find the neighbors of " + query.seq.getSeqName());
+                    e.printStackTrace();
+                    text = format(query, new ArrayList<PairwiseKNN.Neighbor>());
+                    failed++;
+                } finally {
+                    // an Error is on its way out, run will fail
+                    results.put(new Result(query.index, (text != null) ? text : new byte[0]));
+                }
+            }
+        } finally {
+            results.put(endOfResults);
+        }
+
+        return failed;
+    }
+
+    private byte[] format(Query query, List<PairwiseKNN.Neighbor> neighbors) throws IOException {
+        switch (format) {
+            case partial:
+                return knn.formatPartial(query.seq, neighbors);
+            case binary:
+                return knn.formatBinary((int) query.index, query.seq, neighbors);
+            default:
+                return knn.formatNeighbors(query.seq, neighbors).getBytes();
+        }
+    }
+
+    private void write(OutputStream out) throws IOException, InterruptedException {
+        Map<Long, byte[]> pending = new HashMap<Long, byte[]>();
+        List<Result> batch = new ArrayList<Result>(writeBatch);
+        long next = 0;
+        int running = threads;
+
+        while (running > 0) {
+            batch.add(results.take());
+            results.drainTo(batch, writeBatch - 1);
+
+            for (Result result : batch) {
+                if (result == endOfResults) {
+                    running--;
+                } else if (!ordered) {
+                    out.write(result.text);
+                    inFlight.release();
+                } else {
+                    pending.put(result.index, result.text);
+                    byte[] text;
+                    while ((text = pending.remove(next)) != null) {
+                        out.write(text);
+                        inFlight.release();
+                        next++;
+                    }
+                }
+            }
+            batch.clear();
+        }
+
+        out.flush();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.alignment.AlignmentMode;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Keeps one or more reference sets (and their k-mer prefilters) loaded and
+ * answers PairwiseKNN queries over a localhost socket, so a pipeline that
+ * runs many small batches pays for JVM start up and reference loading once.
+ * KNNClient is the matching client.
+ *
+ * Every connection is one batch against one reference set. The client
+ * sends
+ *
+ * int magic, string reference name, string query sequence type,
+ * boolean removeBaseN, then for each query boolean true, string name,
+ * string description, string sequence, and finally boolean false
+ *
+ * and the server answers int ok (or error followed by a string message),
+ * string settings (k, mode and prefilter for the output header), then for
+ * each query in the order they were sent int length and that many bytes of
+ * formatted neighbors, and finally int -1 (or int -2 followed by a string
+ * message if the server gave up on the batch part way). Strings are an int
+ * length, at most 64MB, followed by UTF-8. Results are written while
+ * queries are still arriving so clients must read and write at the same
+ * time.
+ *
+ * Queries from every connection are aligned by one shared pool of worker
+ * threads.
+ *
+ * @author fishjord
+ */
+public class KNNServer {
+
+    static final int magic = 0x4B4E4E31;
+    static final int ok = 0;
+    static final int error = 1;
+    static final int endOfResults = -1;
+    static final int failedResults = -2;
+    static final int defaultPort = 7370;
+    private static final int maxInFlight = 1000;  // queries per connection read ahead of the writer
+    static final int maxStringLength = 64 * 1024 * 1024;
+    private static final Future<String> endOfQueries = new FutureTask<String>(new Callable<String>() {
+
+        public String call() {
+            return null;
+        }
+    });
+    private final Map<String, PairwiseKNN> refSets;
+    private final ExecutorService workers;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    public KNNServer(Map<String, PairwiseKNN> refSets, int threads) {
+        this.refSets = refSets;
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Accepts connections on the loopback interface until the server socket
+     * fails
+     */
+    public void serve(ServerSocket server) throws IOException {
+        try {
+            while (true) {
+                final Socket socket = server.accept();
+                connections.submit(new Callable<Object>() {
+
+                    public Object call() {
+                        handle(socket);
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            if (in.readInt() != magic) {
+                throw new IOException("Not a KNN client");
+            }
+            String refName;
+            String queryType;
+            try {
+                refName = Utf8Strings.read(in, maxStringLength);
+                queryType = Utf8Strings.read(in, maxStringLength);
+            } catch (ProtocolException e) {
+                reject(out, e.getMessage());
+                throw e;
+            }
+            final boolean removeBaseN = in.readBoolean();
+            final PairwiseKNN knn = refSets.get(refName);
+            if (knn == null || !queryType.equals(knn.getRefSeqType().toString())) {
+                reject(out, (knn == null) ? "Unknown reference set " + refName + ", serving " + refSets.keySet()
+                        : "reference seqs and query seqs must be the same type, " + refName + " is " + knn.getRefSeqType());
+                return;
+            }
+            out.writeInt(ok);
+            Utf8Strings.write(out, knn.describe());
+            out.flush();
+
+            final BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<Future<String>>(maxInFlight);
+            Future<Object> writer = connections.submit(new Callable<Object>() {
+
+                public Object call() throws IOException, InterruptedException, ExecutionException {
+                    write(pending, out);
+                    return null;
+                }
+            });
+
+            ProtocolException failure = null;
+            Future<String> end = endOfQueries;
+            try {
+                while (in.readBoolean()) {
+                    String name = Utf8Strings.read(in, maxStringLength);
+                    String desc = Utf8Strings.read(in, maxStringLength);
+                    final Sequence seq = new Sequence(name, desc, Utf8Strings.read(in, maxStringLength));
+                    enqueue(pending, writer, workers.submit(new Callable<String>() {
+
+                        public String call() {
+                            try {
+                                return knn.formatNeighbors(seq, knn.findMatch(seq, removeBaseN));
+                            } catch (Exception e) {
+                                System.err.println("Failed to find the neighbors of " + seq.getSeqName());
+                                e.printStackTrace();
+                                return "";
+                            }
+                        }
+                    }));
+                }
+            } catch (ProtocolException e) {
+                // the results so far still go out, then the reason
+                failure = e;
+                end = new FailedBatch(e.getMessage());
+            } finally {
+                enqueue(pending, writer, end);
+            }
+            writer.get();
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (Exception e) {
+            System.err.println("Connection from " + socket.getRemoteSocketAddress() + " failed: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static void reject(DataOutputStream out, String message) throws IOException {
+        out.writeInt(error);
+        Utf8Strings.write(out, message);
+        out.close();
+    }
+
+    /**
+     * Ends the results of a batch the server gave up on
+     */
+    private static class FailedBatch extends FutureTask<String> {
+
+        final String message;
+
+        FailedBatch(String message) {
+            super(new Callable<String>() {
+
+                public String call() {
+                    return null;
+                }
+            });
+            this.message = message;
+        }
+    }
+
+    /**
+     * Waits for room in pending, gives up if the writer has failed (the
+     * client went away) rather than waiting forever
+     */
+    private static void enqueue(BlockingQueue<Future<String>> pending, Future<Object> writer, Future<String> result) throws InterruptedException, ExecutionException {
+        while (!pending.offer(result, 1, TimeUnit.SECONDS)) {
+            if (writer.isDone()) {
+                writer.get();
+                throw new IllegalStateException("Result writer stopped early");
+            }
+        }
+    }
+
+    /**
+     * Writes results in the order the queries arrived
+     */
+    private static void write(BlockingQueue<Future<String>> pending, DataOutputStream out) throws IOException, InterruptedException, ExecutionException {
+        Future<String> result;
+        while ((result = pending.take()) != endOfQueries) {
+            if (result instanceof FailedBatch) {
+                out.writeInt(failedResults);
+                Utf8Strings.write(out, ((FailedBatch) result).message);
+                out.flush();
+                return;
+            }
+            // only flush when the next result isn't ready
+            if (!result.isDone()) {
+                out.flush();
+            }
+            Utf8Strings.write(out, result.get());
+        }
+        out.writeInt(endOfResults);
+        out.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = defaultPort;
+        int threads = 1;
+        AlignmentMode mode = AlignmentMode.glocal;
+        int k = 1;
+        int wordSize = 0;
+        int prefilter = 10;
+        boolean banded = false;
+        int cacheSize = PairwiseKNN.defaultCacheSize;
+
+        Options options = new Options();
+        options.addOption("P", "port", true, "Localhost port to listen on (default " + defaultPort + ")");
+        options.addOption("t", "threads", true, "#Threads aligning queries, shared by all connections (default 1)");
+        options.addOption("m", "mode", true, "Alignment mode {global, glocal, local, overlap, overlap_trim, xdrop} (default= glocal)");
+        options.addOption("k", true, "K-nearest neighbors to return. (default = 1)");
+        options.addOption("p", "prefilter", true, "The top p closest targets from kmer prefilter step. Set p=0 to disable the prefilter step. (default = 10) ");
+        options.addOption("w", "word-size", true, "The word size used to find closest targets during prefilter");
+        options.addOption("b", "banded", false, "Only align a band around the diagonals the query and reference share k-mers on, faster but may miss the best alignment");
+        options.addOption("c", "cache", true, "Remember the neighbors of up to this many distinct queries per reference set, shared by all connections, 0 turns the cache off. (default " + PairwiseKNN.defaultCacheSize + ")");
+
+        List<File> refFiles = new ArrayList<File>();
+        try {
+            CommandLine line = new PosixParser().parse(options, args);
+
+            if (line.hasOption("port")) {
+                port = Integer.parseInt(line.getOptionValue("port"));
+            }
+            if (line.hasOption("threads")) {
+                threads = Integer.parseInt(line.getOptionValue("threads"));
+                if (threads < 1) {
+                    throw new Exception("threads must be at least 1");
+                }
+            }
+            if (line.hasOption("mode")) {
+                mode = AlignmentMode.valueOf(line.getOptionValue("mode"));
+            }
+            if (line.hasOption('k')) {
+                k = Integer.parseInt(line.getOptionValue('k'));
+                if (k < 1) {
+                    throw new Exception("k must be at least 1");
+                }
+            }
+            if (line.hasOption("word-size")) {
+                wordSize = Integer.parseInt(line.getOptionValue("word-size"));
+                if (wordSize < 3) {
+                    throw new Exception("Word size must be at least 3");
+                }
+            }
+            if (line.hasOption("prefilter")) {
+                prefilter = Integer.parseInt(line.getOptionValue("prefilter"));
+                if (prefilter > 0 && prefilter < k) {
+                    throw new Exception("prefilter must be at least as big as k " + k);
+                }
+            }
+            banded = line.hasOption("banded");
+            if (line.hasOption("cache")) {
+                cacheSize = Integer.parseInt(line.getOptionValue("cache"));
+            }
+
+            for (String arg : line.getArgs()) {
+                refFiles.add(new File(arg));
+            }
+            if (refFiles.isEmpty()) {
+                throw new Exception("At least one reference file is required");
+            }
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("serve <options> <dbFile> [dbFile ...]\n  clients pick a reference set by its file name, see knn-client", options);
+            System.err.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        Map<String, PairwiseKNN> refSets = new LinkedHashMap<String, PairwiseKNN>();
+        for (File refFile : refFiles) {
+            if (refSets.containsKey(refFile.getName())) {
+                throw new IllegalArgumentException("Two reference files named " + refFile.getName());
+            }
+            PairwiseKNN knn = new PairwiseKNN(refFile, mode, k, wordSize, prefilter);
+            knn.setBanded(banded);
+            knn.setCacheSize(cacheSize);
+            refSets.put(refFile.getName(), knn);
+        }
+
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+        System.err.println("Serving " + refSets.keySet() + " on " + server.getLocalSocketAddress());
+        new KNNServer(refSets, threads).serve(server);
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import edu.msu.cme.rdp.readseq.readers.SequenceReader;
+import edu.msu.cme.rdp.readseq.utils.SeqUtils;
+import edu.msu.cme.rdp.readseq.utils.orientation.GoodWordIterator;
+import edu.msu.cme.rdp.readseq.utils.orientation.ProteinWordGenerator;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * On disk k-mer index of a reference file, written once with the index
+ * subcommand and memory mapped by PairwiseKNN and RmPartialSeqs instead of
+ * rebuilding a NuclSeqMatch/ProteinSeqMatch from the reference file on
+ * every run. Candidates are ranked by the number of distinct k-mers they
+ * share with the query (ties go to the earlier reference).
+ *
+ * Nucleotide k-mers are packed 2 bits per base (U is read as T), protein
+ * k-mers 5 bits per residue, k-mers containing anything else are skipped.
+ * The file is big endian, after the header come:
+ * <ul>
+ * <li>the sequences, as a PackedSequenceStore section</li>
+ * <li>the distinct k-mers in increasing order (longs)</li>
+ * <li>the offset of each k-mer's postings (one more long than k-mers)</li>
+ * <li>the postings, the increasing indexes of the sequences containing the
+ * k-mer (ints)</li>
+ * </ul>
+ * Every section starts on an 8 byte boundary.
+ *
+ * @author fishjord
+ */
+public class KmerIndex {
+
+    private static final int magic = 0x4B4D4958;
+    private static final int version = 2;
+    private static final int headerSize = 64;
+    /**
+     * Largest packed k-mer the index builder counts with a flat table
+     */
+    private static final int maxKmerBits = 25;
+    /**
+     * Postings gathered in memory per pass over the reference file when
+     * writing an index
+     */
+    private static final int postingsPerPass = 1 << 27;
+    private final MappedFile file;
+    private final SequenceType seqType;
+    private final int wordSize;
+    private final int numSeqs;
+    private final long numKmers;
+    private final long kmersPos;
+    private final long offsetsPos;
+    private final long postingsPos;
+    private final PackedSequenceStore store;
+
+    private KmerIndex(File indexFile) throws IOException {
+        file = new MappedFile(indexFile);
+        if (file.length() < headerSize || file.getInt(0) != magic) {
+            throw new IOException(indexFile + " isn't a k-mer index");
+        }
+        if (file.getInt(4) != version) {
+            throw new IOException(indexFile + " is a version " + file.getInt(4) + " k-mer index, expected version " + version + ", rerun the index subcommand");
+        }
+        seqType = (file.getInt(8) == 0) ? SequenceType.Nucleotide : SequenceType.Protein;
+        wordSize = file.getInt(12);
+        numSeqs = file.getInt(16);
+        numKmers = file.getLong(24);
+        store = new PackedSequenceStore(file, file.getLong(32), seqType);
+        kmersPos = file.getLong(40);
+        offsetsPos = file.getLong(48);
+        postingsPos = file.getLong(56);
+    }
+
+    /**
+     * True if the file starts with the k-mer index header
+     */
+    public static boolean isIndex(File file) throws IOException {
+        if (!file.isFile() || file.length() < headerSize) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == magic;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static KmerIndex open(File file) throws IOException {
+        return new KmerIndex(file);
+    }
+
+    public SequenceType getSequenceType() {
+        return seqType;
+    }
+
+    public int getWordSize() {
+        return wordSize;
+    }
+
+    public int size() {
+        return numSeqs;
+    }
+
+    /**
+     * The indexed sequences, in reference file order
+     */
+    public PackedSequenceStore getSequences() {
+        return store;
+    }
+
+    /**
+     * The (at most) k references sharing the most distinct k-mers with the
+     * query, best first. References sharing none are never returned.
+     */
+    public List<Sequence> findTopKMatch(Sequence seq, int k) {
+        int[] top = findTopK(seq, k);
+        List<Sequence> ret = new ArrayList<Sequence>(top.length);
+        for (int index : top) {
+            ret.add(store.getSequence(index));
+        }
+        return ret;
+    }
+
+    /**
+     * Like findTopKMatch but returns the references' positions in the index
+     */
+    public int[] findTopK(Sequence seq, int k) {
+        return findTopK(seq, k, null);
+    }
+
+    /**
+     * Like findTopK(Sequence, int), if shared isn't null the number of
+     * distinct k-mers each reference shares with the query goes in it too
+     */
+    public int[] findTopK(Sequence seq, int k, int[] shared) {
+        long[] kmers = kmers(seq.getSeqString(), seqType, wordSize);
+        int[] counts = new int[numSeqs];
+        int[] touched = new int[64];
+        int numTouched = 0;
+
+        for (long kmer : kmers) {
+            long slot = find(kmer);
+            if (slot < 0) {
+                continue;
+            }
+            long end = file.getLong(offsetsPos + 8 * (slot + 1));
+            for (long p = file.getLong(offsetsPos + 8 * slot); p < end; p++) {
+                int ref = file.getInt(postingsPos + 4 * p);
+                if (counts[ref]++ == 0) {
+                    if (numTouched == touched.length) {
+                        touched = Arrays.copyOf(touched, numTouched * 2);
+                    }
+                    touched[numTouched++] = ref;
+                }
+            }
+        }
+
+        // count in the high bits, lower index wins ties
+        long[] ranked = new long[numTouched];
+        for (int t = 0; t < numTouched; t++) {
+            ranked[t] = ((long) counts[touched[t]] << 32) | (Integer.MAX_VALUE - touched[t]);
+        }
+        Arrays.sort(ranked);
+
+        int[] ret = new int[Math.min(k, numTouched)];
+        for (int t = 0; t < ret.length; t++) {
+            ret[t] = Integer.MAX_VALUE - (int) ranked[numTouched - 1 - t];
+            if (shared != null) {
+                shared[t] = (int) (ranked[numTouched - 1 - t] >>> 32);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Slot of the k-mer in the sorted k-mer section, or -1
+     */
+    private long find(long kmer) {
+        long lo = 0, hi = numKmers - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long value = file.getLong(kmersPos + 8 * mid);
+            if (value < kmer) {
+                lo = mid + 1;
+            } else if (value > kmer) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bits per residue of a packed k-mer
+     */
+    private static int residueBits(SequenceType seqType) {
+        return (seqType == SequenceType.Protein) ? 5 : 2;
+    }
+
+    /**
+     * The distinct packed k-mers of seq in increasing order
+     */
+    static long[] kmers(String seq, SequenceType seqType, int wordSize) {
+        final int bits = residueBits(seqType);
+        final long mask = (1L << (bits * wordSize)) - 1;
+        long[] ret = new long[Math.max(seq.length() - wordSize + 1, 0)];
+        int count = 0;
+        long kmer = 0;
+        int valid = 0;
+
+        for (int index = 0; index < seq.length(); index++) {
+            int code = encode(seq.charAt(index), seqType);
+            if (code < 0) {
+                valid = 0;
+                continue;
+            }
+            kmer = ((kmer << bits) | code) & mask;
+            if (++valid >= wordSize) {
+                ret[count++] = kmer;
+            }
+        }
+
+        Arrays.sort(ret, 0, count);
+        int distinct = 0;
+        for (int index = 0; index < count; index++) {
+            if (distinct == 0 || ret[index] != ret[distinct - 1]) {
+                ret[distinct++] = ret[index];
+            }
+        }
+        return Arrays.copyOf(ret, distinct);
+    }
+
+    private static int encode(char c, SequenceType seqType) {
+        if (seqType == SequenceType.Protein) {
+            return ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) ? (c & 31) : -1;
+        }
+        switch (c) {
+            case 'A':
+            case 'a':
+                return 0;
+            case 'C':
+            case 'c':
+                return 1;
+            case 'G':
+            case 'g':
+                return 2;
+            case 'T':
+            case 't':
+            case 'U':
+            case 'u':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Writes the index of refFile to indexFile, wordSize 0 picks the same
+     * default PairwiseKNN uses for the sequence type
+     */
+    public static void write(File refFile, File indexFile, int wordSize) throws IOException {
+        SequenceType seqType = SeqUtils.guessSequenceType(refFile);
+        if (wordSize == 0) {
+            wordSize = (seqType == SequenceType.Protein) ? ProteinWordGenerator.WORDSIZE : GoodWordIterator.DEFAULT_WORDSIZE;
+        }
+        if (wordSize < 1 || residueBits(seqType) * wordSize > maxKmerBits) {
+            throw new IllegalArgumentException("Word size must be between 1 and " + (maxKmerBits / residueBits(seqType)) + " for " + seqType + " sequences");
+        }
+
+        // pass one, the sequences and the number of sequences containing each k-mer
+        int[] counts = new int[1 << (residueBits(seqType) * wordSize)];
+        PackedSequenceStore.Writer sequences = new PackedSequenceStore.Writer(seqType, indexFile.getAbsoluteFile().getParentFile());
+        SequenceReader reader = new SequenceReader(refFile);
+        try {
+            Sequence seq;
+            while ((seq = reader.readNextSequence()) != null) {
+                sequences.add(seq);
+                for (long kmer : kmers(seq.getSeqString(), seqType, wordSize)) {
+                    counts[(int) kmer]++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        int numSeqs = sequences.size();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.write(new byte[headerSize]);
+            long storePos = headerSize;
+            long pos = sequences.writeTo(out, storePos);
+
+            long kmersPos = pos;
+            long numKmers = 0;
+            for (int kmer = 0; kmer < counts.length; kmer++) {
+                if (counts[kmer] > 0) {
+                    out.writeLong(kmer);
+                    numKmers++;
+                }
+            }
+            pos += 8 * numKmers;
+
+            long offsetsPos = pos;
+            long postings = 0;
+            for (int kmer = 0; kmer < counts.length; kmer++) {
+                if (counts[kmer] > 0) {
+                    out.writeLong(postings);
+                    postings += counts[kmer];
+                }
+            }
+            out.writeLong(postings);
+            pos += 8 * (numKmers + 1);
+            long postingsPos = pos;
+
+            // pass two (more for very large references), the postings of a
+            // range of k-mers at a time
+            int first = 0;
+            while (first < counts.length) {
+                int last = first;
+                long size = 0;
+                while (last < counts.length && (last == first || size + counts[last] <= postingsPerPass)) {
+                    size += counts[last++];
+                }
+                writePostings(out, refFile, seqType, wordSize, counts, first, last, (int) size);
+                first = last;
+            }
+
+            out.flush();
+            out.close();
+            out = null;
+
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+            try {
+                raf.writeInt(magic);
+                raf.writeInt(version);
+                raf.writeInt((seqType == SequenceType.Protein) ? 1 : 0);
+                raf.writeInt(wordSize);
+                raf.writeInt(numSeqs);
+                raf.writeInt(0);
+                raf.writeLong(numKmers);
+                raf.writeLong(storePos);
+                raf.writeLong(kmersPos);
+                raf.writeLong(offsetsPos);
+                raf.writeLong(postingsPos);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the postings of k-mers first (inclusive) to last (exclusive)
+     */
+    private static void writePostings(DataOutputStream out, File refFile, SequenceType seqType, int wordSize, int[] counts, int first, int last, int size) throws IOException {
+        int[] postings = new int[size];
+        int[] cursor = new int[last - first];
+        for (int kmer = first + 1; kmer < last; kmer++) {
+            cursor[kmer - first] = cursor[kmer - first - 1] + counts[kmer - 1];
+        }
+
+        SequenceReader reader = new SequenceReader(refFile);
+        try {
+            Sequence seq;
+            int index = 0;
+            while ((seq = reader.readNextSequence()) != null) {
+                for (long kmer : kmers(seq.getSeqString(), seqType, wordSize)) {
+                    if (kmer >= first && kmer < last) {
+                        postings[cursor[(int) kmer - first]++] = index;
+                    }
+                }
+                index++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        for (int posting : postings) {
+            out.writeInt(posting);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int wordSize = 0;
+        File refFile;
+        File indexFile;
+
+        Options options = new Options();
+        options.addOption("w", "word-size", true, "The word size to index. (default " + ProteinWordGenerator.WORDSIZE
+                + " for protein, " + GoodWordIterator.DEFAULT_WORDSIZE + " for nucleotide)");
+
+        try {
+            CommandLine line = new PosixParser().parse(options, args);
+            if (line.hasOption("word-size")) {
+                wordSize = Integer.parseInt(line.getOptionValue("word-size"));
+                if (wordSize < 3) {
+                    throw new Exception("Word size must be at least 3");
+                }
+            }
+            args = line.getArgs();
+            if (args.length != 2) {
+                throw new Exception("Unexpected number of command line arguments");
+            }
+            refFile = new File(args[0]);
+            indexFile = new File(args[1]);
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("index <options> <refFile> <indexFile>", options);
+            System.err.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        write(refFile, indexFile, wordSize);
+        KmerIndex index = open(indexFile);
+        System.err.println("Indexed " + index.size() + " " + index.getSequenceType() + " sequences (word size " + index.getWordSize() + ", " + index.numKmers + " distinct k-mers) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
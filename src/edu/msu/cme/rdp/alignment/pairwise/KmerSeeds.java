@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+/**
+ * Finds the diagonals (j - i) two sequences share exact k-mers on. Residues
+ * are packed 5 bits each (case insensitive letters only), so k can be at most
+ * 12. K-mers containing anything other than a letter are skipped.
+ *
+ * @author fishjord
+ */
+final class KmerSeeds {
+
+    static final int MAX_K = 12;
+    /**
+     * Stop voting for a query k-mer after this many reference occurrences so
+     * low complexity regions don't swamp the diagonal counts
+     */
+    private static final int MAX_OCCURRENCES = 32;
+    private final int k;
+    private final int[] votes;
+    private final int offset;
+    private int bestDiagonal;
+    private int bestVotes;
+    private int bestHitI;
+    private int bestHitJ;
+
+    private KmerSeeds(char[] seqi, char[] seqj, int k) {
+        this.k = k;
+        this.offset = seqi.length - 1;
+        this.votes = new int[seqi.length + seqj.length - 1];
+
+        long[] keys = kmers(seqi, k);
+        int tableSize = Integer.highestOneBit(Math.max(keys.length, 1)) << 2;
+        int mask = tableSize - 1;
+        int[] head = new int[tableSize];
+        int[] next = new int[keys.length];
+        for (int p = 0; p < keys.length; p++) {
+            if (keys[p] < 0) {
+                continue;
+            }
+            int slot = hash(keys[p]) & mask;
+            while (head[slot] != 0 && keys[head[slot] - 1] != keys[p]) {
+                slot = (slot + 1) & mask;
+            }
+            next[p] = head[slot];
+            head[slot] = p + 1;
+        }
+
+        long[] queryKeys = kmers(seqj, k);
+        bestVotes = 0;
+        for (int q = 0; q < queryKeys.length; q++) {
+            if (queryKeys[q] < 0) {
+                continue;
+            }
+            int slot = hash(queryKeys[q]) & mask;
+            while (head[slot] != 0 && keys[head[slot] - 1] != queryKeys[q]) {
+                slot = (slot + 1) & mask;
+            }
+
+            int occurrences = 0;
+            for (int p = head[slot]; p != 0 && occurrences < MAX_OCCURRENCES; p = next[p - 1], occurrences++) {
+                int index = q - (p - 1) + offset;
+                votes[index]++;
+                if (votes[index] > bestVotes) {
+                    bestVotes = votes[index];
+                    bestDiagonal = index - offset;
+                    bestHitI = p - 1;
+                    bestHitJ = q;
+                }
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Packs the k-mer starting at each position of seq, -1 where the k-mer
+     * runs off the end or contains a non letter
+     */
+    private static long[] kmers(char[] seq, int k) {
+        long[] ret = new long[Math.max(seq.length - k + 1, 0)];
+        long mask = (1L << (5 * k)) - 1;
+        long kmer = 0;
+        int valid = 0;
+
+        for (int index = 0; index < seq.length; index++) {
+            char c = seq[index];
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) {
+                kmer = ((kmer << 5) | (c & 31)) & mask;
+                valid++;
+            } else {
+                valid = 0;
+            }
+
+            if (index >= k - 1) {
+                ret[index - k + 1] = (valid >= k) ? kmer : -1;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the lowest and highest diagonal of the cluster of k-mer hits
+     * around the most voted diagonal, hits on diagonals within k of the
+     * cluster (indels shifting the diagonal) are pulled in. Returns null if
+     * the sequences share no k-mers.
+     */
+    static int[] diagonalRange(char[] seqi, char[] seqj, int k) {
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("K-mer size must be between 1 and " + MAX_K);
+        }
+        if (seqi.length < k || seqj.length < k) {
+            return null;
+        }
+
+        KmerSeeds seeds = new KmerSeeds(seqi, seqj, k);
+        if (seeds.bestVotes == 0) {
+            return null;
+        }
+
+        return new int[]{seeds.extend(seeds.bestDiagonal, -1), seeds.extend(seeds.bestDiagonal, 1)};
+    }
+
+    /**
+     * Returns the start {i, j} of a k-mer the sequences share on the most
+     * voted diagonal, or null if they share no k-mers
+     */
+    static int[] seed(char[] seqi, char[] seqj, int k) {
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("K-mer size must be between 1 and " + MAX_K);
+        }
+        if (seqi.length < k || seqj.length < k) {
+            return null;
+        }
+
+        KmerSeeds seeds = new KmerSeeds(seqi, seqj, k);
+        if (seeds.bestVotes == 0) {
+            return null;
+        }
+
+        return new int[]{seeds.bestHitI, seeds.bestHitJ};
+    }
+
+    private int extend(int diagonal, int step) {
+        int last = diagonal;
+        for (int d = diagonal + step; d + offset >= 0 && d + offset < votes.length && Math.abs(d - last) <= k; d += step) {
+            if (votes[d + offset] > 0) {
+                last = d;
+            }
+        }
+        return last;
+    }
+}
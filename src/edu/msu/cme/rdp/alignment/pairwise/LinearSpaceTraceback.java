@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+/**
+ * Divide and conquer (Hirschberg / Myers-Miller style) traceback for the
+ * global and glocal modes that never holds more than a few rows of the
+ * dynamic programming matrix.
+ *
+ * The traceback in PairwiseAligner follows the per cell trace pointers, so
+ * rather than splitting on an optimal midpoint this finds the column where
+ * the pointer path first reaches the middle row. The lower half is filled
+ * one row at a time carrying, for every cell, the middle row column its
+ * pointer path arrives at. The value at the end cell is the split point, the
+ * two sub rectangles are then solved the same way. Since the value of a cell
+ * only depends on the cells above and to the left of it, each sub rectangle
+ * only needs its top row and left column to reproduce the full matrix
+ * exactly, so the path (and the scores along it) is identical to the one the
+ * full matrix traceback takes.
+ *
+ * @author fishjord
+ */
+final class LinearSpaceTraceback {
+
+    /**
+     * Rectangles with fewer cells than this are traced back with a full
+     * matrix
+     */
+    private static final int BASE_CELLS = 1 << 16;
+    private final byte[] codes;
+    private final int[][] profile;
+    private final int gapOpen;
+    private final int gapExtend;
+    private final TracePath path;
+
+    LinearSpaceTraceback(char[] seqi, char[] seqj, ScoringMatrix matrix, TracePath path) {
+        this.codes = matrix.encode(seqi);
+        this.profile = matrix.buildProfile(matrix.encode(seqj));
+        this.gapOpen = matrix.getGapOpen();
+        this.gapExtend = matrix.getGapExtend();
+        this.path = path;
+    }
+
+    /**
+     * Adds the moves from (endi, endj) back to the first cell in row 0 to the
+     * path
+     *
+     * @param topMatch match scores of row 0, columns 0 to endj
+     * @param topGap gap scores of row 0, columns 0 to endj
+     * @param leftMatch match scores of column 0, rows 0 to endi
+     * @param leftGap gap scores of column 0, rows 0 to endi
+     */
+    void trace(int endi, int endj, int[] topMatch, int[] topGap, int[] leftMatch, int[] leftGap) {
+        solve(0, endi, 0, endj, topMatch, topGap, leftMatch, leftGap);
+    }
+
+    /**
+     * Traces back from (r1, c1) until row r0 is reached. The path is known to
+     * stay at or right of column c0 and to go straight up once it reaches
+     * column c0.
+     *
+     * topMatch/topGap hold row r0 indexed from column c0, leftMatch/leftGap
+     * hold column c0 indexed from row r0.
+     */
+    private void solve(int r0, int r1, int c0, int c1, int[] topMatch, int[] topGap, int[] leftMatch, int[] leftGap) {
+        if (r1 == r0) {
+            return;
+        }
+
+        int width = c1 - c0 + 1;
+        if (c1 == c0) {
+            for (int i = r1 - 1; i >= r0; i--) {
+                path.add(PairwiseAligner.left, leftMatch[i - r0]);
+            }
+            return;
+        }
+
+        if (r1 - r0 < 2 || (long) (r1 - r0 + 1) * width <= BASE_CELLS) {
+            traceRectangle(r0, r1, c0, c1, topMatch, topGap, leftMatch, leftGap);
+            return;
+        }
+
+        int mid = (r0 + r1) / 2;
+
+        int[] midMatch = new int[width];
+        int[] midGap = new int[width];
+        int[] curMatch = new int[width];
+        int[] curGap = new int[width];
+        System.arraycopy(topMatch, 0, midMatch, 0, width);
+        System.arraycopy(topGap, 0, midGap, 0, width);
+
+        for (int i = r0 + 1; i <= mid; i++) {
+            fillRow(i, c0, c1, midMatch, midGap, curMatch, curGap, leftMatch[i - r0], leftGap[i - r0], null, null);
+            int[] tmp = midMatch;
+            midMatch = curMatch;
+            curMatch = tmp;
+            tmp = midGap;
+            midGap = curGap;
+            curGap = tmp;
+        }
+
+        // Follow the pointers forward through the lower half, tracking for
+        // each cell the column its path arrives at in the middle row
+        int[] prevMatch = new int[width];
+        int[] prevGap = new int[width];
+        int[] prevHit = new int[width];
+        int[] curHit = new int[width];
+        System.arraycopy(midMatch, 0, prevMatch, 0, width);
+        System.arraycopy(midGap, 0, prevGap, 0, width);
+        for (int k = 0; k < width; k++) {
+            prevHit[k] = c0 + k;
+        }
+
+        for (int i = mid + 1; i <= r1; i++) {
+            fillRow(i, c0, c1, prevMatch, prevGap, curMatch, curGap, leftMatch[i - r0], leftGap[i - r0], prevHit, curHit);
+            int[] tmp = prevMatch;
+            prevMatch = curMatch;
+            curMatch = tmp;
+            tmp = prevGap;
+            prevGap = curGap;
+            curGap = tmp;
+            tmp = prevHit;
+            prevHit = curHit;
+            curHit = tmp;
+        }
+        int c = prevHit[width - 1];
+
+        // Recover column c for the lower half
+        int height = r1 - mid + 1;
+        int[] colMatch = new int[height];
+        int[] colGap = new int[height];
+        if (c == c0) {
+            System.arraycopy(leftMatch, mid - r0, colMatch, 0, height);
+            System.arraycopy(leftGap, mid - r0, colGap, 0, height);
+        } else {
+            int subWidth = c - c0 + 1;
+            System.arraycopy(midMatch, 0, prevMatch, 0, subWidth);
+            System.arraycopy(midGap, 0, prevGap, 0, subWidth);
+            colMatch[0] = midMatch[subWidth - 1];
+            colGap[0] = midGap[subWidth - 1];
+            for (int i = mid + 1; i <= r1; i++) {
+                fillRow(i, c0, c, prevMatch, prevGap, curMatch, curGap, leftMatch[i - r0], leftGap[i - r0], null, null);
+                colMatch[i - mid] = curMatch[subWidth - 1];
+                colGap[i - mid] = curGap[subWidth - 1];
+                int[] tmp = prevMatch;
+                prevMatch = curMatch;
+                curMatch = tmp;
+                tmp = prevGap;
+                prevGap = curGap;
+                curGap = tmp;
+            }
+        }
+
+        int[] bottomMatch = new int[c1 - c + 1];
+        int[] bottomGap = new int[c1 - c + 1];
+        System.arraycopy(midMatch, c - c0, bottomMatch, 0, bottomMatch.length);
+        System.arraycopy(midGap, c - c0, bottomGap, 0, bottomGap.length);
+        prevMatch = curMatch = prevGap = curGap = prevHit = curHit = midMatch = midGap = null;
+
+        solve(mid, r1, c, c1, bottomMatch, bottomGap, colMatch, colGap);
+        bottomMatch = bottomGap = colMatch = colGap = null;
+
+        solve(r0, mid, c0, c, topMatch, topGap, leftMatch, leftGap);
+    }
+
+    /**
+     * Computes row i for columns c0 to c1 from the previous row, if prevHit is
+     * given the middle row columns the pointer paths arrive at are carried
+     * along into curHit
+     */
+    private void fillRow(int i, int c0, int c1, int[] prevMatch, int[] prevGap, int[] curMatch, int[] curGap, int leftMatch, int leftGap, int[] prevHit, int[] curHit) {
+        curMatch[0] = leftMatch;
+        curGap[0] = leftGap;
+        if (curHit != null) {
+            curHit[0] = c0;
+        }
+        final int[] scores = profile[codes[i - 1]];
+
+        for (int k = 1; k <= c1 - c0; k++) {
+            int sxy = scores[c0 + k - 1];
+
+            int scoreUp = Math.max(prevGap[k] + gapExtend, prevMatch[k] + gapOpen);
+            int scoreLeft = Math.max(curGap[k - 1] + gapExtend, curMatch[k - 1] + gapOpen);
+            int m = Math.max(prevMatch[k - 1], prevGap[k - 1]) + sxy;
+
+            curMatch[k] = m;
+            curGap[k] = Math.max(scoreLeft, scoreUp);
+
+            if (curHit != null) {
+                if (m >= scoreLeft && m >= scoreUp) {
+                    curHit[k] = prevHit[k - 1];
+                } else if (scoreLeft >= m && scoreLeft >= scoreUp) {
+                    curHit[k] = curHit[k - 1];
+                } else {
+                    curHit[k] = prevHit[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Full matrix traceback of a small rectangle
+     */
+    private void traceRectangle(int r0, int r1, int c0, int c1, int[] topMatch, int[] topGap, int[] leftMatch, int[] leftGap) {
+        int rows = r1 - r0 + 1;
+        int cols = c1 - c0 + 1;
+        int[] matchPlane = new int[rows * cols];
+        int[] gapPlane = new int[rows * cols];
+        byte[] tracePlane = new byte[rows * cols];
+
+        System.arraycopy(topMatch, 0, matchPlane, 0, cols);
+        System.arraycopy(topGap, 0, gapPlane, 0, cols);
+        for (int r = 1; r < rows; r++) {
+            int row = r * cols;
+            int prevRow = row - cols;
+            matchPlane[row] = leftMatch[r];
+            gapPlane[row] = leftGap[r];
+            tracePlane[row] = PairwiseAligner.left;
+            final int[] scores = profile[codes[r0 + r - 1]];
+
+            for (int k = 1; k < cols; k++) {
+                int sxy = scores[c0 + k - 1];
+
+                int scoreUp = Math.max(gapPlane[prevRow + k] + gapExtend, matchPlane[prevRow + k] + gapOpen);
+                int scoreLeft = Math.max(gapPlane[row + k - 1] + gapExtend, matchPlane[row + k - 1] + gapOpen);
+                int m = Math.max(matchPlane[prevRow + k - 1], gapPlane[prevRow + k - 1]) + sxy;
+
+                matchPlane[row + k] = m;
+                gapPlane[row + k] = Math.max(scoreLeft, scoreUp);
+
+                if (m >= scoreLeft && m >= scoreUp) {
+                    tracePlane[row + k] = PairwiseAligner.diag;
+                } else if (scoreLeft >= m && scoreLeft >= scoreUp) {
+                    tracePlane[row + k] = PairwiseAligner.up;
+                } else {
+                    tracePlane[row + k] = PairwiseAligner.left;
+                }
+            }
+        }
+
+        int r = rows - 1, k = cols - 1;
+        while (r > 0) {
+            byte traceVal = tracePlane[r * cols + k];
+            if (traceVal == PairwiseAligner.diag) {
+                r--;
+                k--;
+            } else if (traceVal == PairwiseAligner.up) {
+                k--;
+            } else {
+                r--;
+            }
+            path.add(traceVal, matchPlane[r * cols + k]);
+        }
+    }
+}
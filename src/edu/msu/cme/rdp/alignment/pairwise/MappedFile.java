@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A whole file mapped read only, 1 << chunkBits bytes per mapping so files
+ * over 2 GB work. Reads take absolute (big endian) file positions and are
+ * safe from any number of threads.
+ *
+ * @author fishjord
+ */
+final class MappedFile {
+
+    private static final int chunkBits = 30;
+    private static final long chunkMask = (1L << chunkBits) - 1;
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    MappedFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            chunks = new MappedByteBuffer[(int) ((length + chunkMask) >>> chunkBits)];
+            for (int c = 0; c < chunks.length; c++) {
+                long start = (long) c << chunkBits;
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << chunkBits, length - start));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    int getInt(long pos) {
+        ByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+        int offset = (int) (pos & chunkMask);
+        if (offset + 4 <= chunk.limit()) {
+            return chunk.getInt(offset);
+        }
+        byte[] bytes = getBytes(pos, 4);
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+
+    long getLong(long pos) {
+        ByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+        int offset = (int) (pos & chunkMask);
+        if (offset + 8 <= chunk.limit()) {
+            return chunk.getLong(offset);
+        }
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+    }
+
+    byte[] getBytes(long pos, int count) {
+        byte[] ret = new byte[count];
+        int done = 0;
+        while (done < count) {
+            // duplicates so concurrent readers don't share a position
+            ByteBuffer chunk = chunks[(int) ((pos + done) >>> chunkBits)].duplicate();
+            chunk.position((int) ((pos + done) & chunkMask));
+            int n = Math.min(count - done, chunk.remaining());
+            chunk.get(ret, done, n);
+            done += n;
+        }
+        return ret;
+    }
+
+    /**
+     * An int length followed by that many bytes of UTF-8
+     */
+    String getString(long pos) {
+        try {
+            return new String(getBytes(pos + 4, getInt(pos)), "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference sequences packed into a memory mapped file, nucleotides 2 bits
+ * per base and proteins 5 bits per residue, so a reference set takes a
+ * quarter (or about a third) of the memory of the same sequences as Strings
+ * and none of the heap. Every JVM mapping the same file shares the operating
+ * system's page cache.
+ *
+ * Each sequence is stored with two flags, lower case and (nucleotides) U
+ * instead of T, any residue the packed code and flags don't reproduce
+ * exactly (N, ambiguity codes, gaps, mixed case) goes in a run length
+ * encoded exception list so sequences decode to exactly what was stored.
+ *
+ * The store is a section of a larger file (see KmerIndex), all positions
+ * are absolute and big endian:
+ * <ul>
+ * <li>header, numSeqs and bits per residue (ints) then the positions of the
+ * following sections (longs)</li>
+ * <li>names, the name and description of each sequence (an int length
+ * followed by that many bytes of UTF-8)</li>
+ * <li>name offsets, the position of each sequence's name relative to the
+ * names section (longs)</li>
+ * <li>records, 32 bytes per sequence: first residue (long), length and
+ * flags (ints), first exception (long) and number of exceptions (int)</li>
+ * <li>residues, packed low bits first into longs</li>
+ * <li>exceptions, 12 bytes each: position, run length and residue (ints)</li>
+ * </ul>
+ *
+ * @author fishjord
+ */
+public final class PackedSequenceStore {
+
+    private static final int headerSize = 48;
+    private static final int recordSize = 32;
+    private static final int exceptionSize = 12;
+    private static final int lowerCase = 1;
+    private static final int uracil = 2;
+    private static final String nucleotides = "ACGT";
+    private final MappedFile file;
+    private final SequenceType seqType;
+    private final int numSeqs;
+    private final int bits;
+    private final long namesPos;
+    private final long nameOffsetsPos;
+    private final long recordsPos;
+    private final long residuesPos;
+    private final long exceptionsPos;
+    private Map<String, Integer> nameIndex;
+
+    PackedSequenceStore(MappedFile file, long pos, SequenceType seqType) {
+        this.file = file;
+        this.seqType = seqType;
+        this.numSeqs = file.getInt(pos);
+        this.bits = file.getInt(pos + 4);
+        this.namesPos = file.getLong(pos + 8);
+        this.nameOffsetsPos = file.getLong(pos + 16);
+        this.recordsPos = file.getLong(pos + 24);
+        this.residuesPos = file.getLong(pos + 32);
+        this.exceptionsPos = file.getLong(pos + 40);
+    }
+
+    private static int bitsPerResidue(SequenceType seqType) {
+        return (seqType == SequenceType.Protein) ? 5 : 2;
+    }
+
+    public SequenceType getSequenceType() {
+        return seqType;
+    }
+
+    public int size() {
+        return numSeqs;
+    }
+
+    public int getLength(int index) {
+        return file.getInt(recordsPos + (long) recordSize * index + 8);
+    }
+
+    public String getName(int index) {
+        return file.getString(namesPos + file.getLong(nameOffsetsPos + 8L * index));
+    }
+
+    public String getDesc(int index) {
+        long pos = namesPos + file.getLong(nameOffsetsPos + 8L * index);
+        return file.getString(pos + 4 + file.getInt(pos));
+    }
+
+    public Sequence getSequence(int index) {
+        long pos = namesPos + file.getLong(nameOffsetsPos + 8L * index);
+        String name = file.getString(pos);
+        String desc = file.getString(pos + 4 + file.getInt(pos));
+        return new Sequence(name, desc, new String(decode(index)));
+    }
+
+    /**
+     * The sequence with the given name, or null
+     */
+    public Sequence getSequence(String name) {
+        Integer index = nameIndex().get(name);
+        return (index == null) ? null : getSequence(index);
+    }
+
+    private synchronized Map<String, Integer> nameIndex() {
+        if (nameIndex == null) {
+            nameIndex = new HashMap<String, Integer>();
+            for (int index = 0; index < numSeqs; index++) {
+                nameIndex.put(getName(index), index);
+            }
+        }
+        return nameIndex;
+    }
+
+    /**
+     * The sequences as a read only list, each one is decoded when it is
+     * asked for and nothing is kept
+     */
+    public List<Sequence> asList() {
+        return new AbstractList<Sequence>() {
+
+            public Sequence get(int index) {
+                return getSequence(index);
+            }
+
+            public int size() {
+                return numSeqs;
+            }
+        };
+    }
+
+    /**
+     * The residue a packed code stands for in a sequence with the given flags
+     */
+    private char residue(int code, int flags) {
+        char c;
+        if (seqType == SequenceType.Protein) {
+            c = (char) ('A' + code);
+        } else {
+            c = (code == 3 && (flags & uracil) != 0) ? 'U' : nucleotides.charAt(code);
+        }
+        return ((flags & lowerCase) != 0) ? Character.toLowerCase(c) : c;
+    }
+
+    /**
+     * The packed code of c in a sequence with the given flags, -1 if c has
+     * to be stored as an exception
+     */
+    private static int code(char c, int flags, SequenceType seqType) {
+        boolean lower = (flags & lowerCase) != 0;
+        if (lower ? (c < 'a' || c > 'z') : (c < 'A' || c > 'Z')) {
+            return -1;
+        }
+        char upper = lower ? (char) (c - 'a' + 'A') : c;
+        if (seqType == SequenceType.Protein) {
+            return upper - 'A';
+        }
+        if (upper == ((flags & uracil) != 0 ? 'U' : 'T')) {
+            return 3;
+        }
+        int code = nucleotides.indexOf(upper);
+        return (code < 3) ? code : -1;
+    }
+
+    /**
+     * The residues of sequence index
+     */
+    public char[] decode(int index) {
+        long record = recordsPos + (long) recordSize * index;
+        int flags = file.getInt(record + 12);
+        char[] table = new char[1 << bits];
+        for (int code = 0; code < table.length; code++) {
+            table[code] = (seqType == SequenceType.Protein && code >= 26) ? '?' : residue(code, flags);
+        }
+
+        char[] ret = new char[file.getInt(record + 8)];
+        unpack(record, ret, table, null, null, null);
+        return ret;
+    }
+
+    /**
+     * The residues of sequence index encoded with the scoring matrix's
+     * alphabet (see ScoringMatrix.encode(char[])), decoded straight from the
+     * packed residues
+     *
+     * @throws IllegalArgumentException if the matrix can't score one of the residues
+     */
+    public byte[] decodeEncoded(int index, ScoringMatrix matrix) {
+        long record = recordsPos + (long) recordSize * index;
+        int flags = file.getInt(record + 12);
+        byte[] table = new byte[1 << bits];
+        for (int code = 0; code < table.length; code++) {
+            table[code] = (byte) ((seqType == SequenceType.Protein && code >= 26) ? -1 : matrix.encode(residue(code, flags)));
+        }
+
+        byte[] ret = new byte[file.getInt(record + 8)];
+        unpack(record, null, null, ret, table, matrix);
+        for (int position = 0; position < ret.length; position++) {
+            if (ret[position] == -1) {
+                throw new IllegalArgumentException("Cannot score " + decode(index)[position]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Unpacks a sequence through a code table into chars or bytes, then
+     * applies its exceptions
+     */
+    private void unpack(long record, char[] chars, char[] charTable, byte[] codes, byte[] codeTable, ScoringMatrix matrix) {
+        final long start = file.getLong(record);
+        final int length = file.getInt(record + 8);
+        final int mask = (1 << bits) - 1;
+
+        long bitPos = start * bits;
+        long wordIndex = bitPos >>> 6;
+        int shift = (int) (bitPos & 63);
+        long word = (length > 0) ? file.getLong(residuesPos + 8 * wordIndex) : 0;
+        for (int position = 0; position < length; position++) {
+            int code;
+            if (shift + bits <= 64) {
+                code = (int) (word >>> shift) & mask;
+                shift += bits;
+            } else {
+                code = (int) (word >>> shift);
+                word = file.getLong(residuesPos + 8 * ++wordIndex);
+                code = (code | (int) (word << (64 - shift))) & mask;
+                shift = shift + bits - 64;
+            }
+            if (shift == 64 && position + 1 < length) {
+                word = file.getLong(residuesPos + 8 * ++wordIndex);
+                shift = 0;
+            }
+
+            if (chars != null) {
+                chars[position] = charTable[code];
+            } else {
+                codes[position] = codeTable[code];
+            }
+        }
+
+        long exception = exceptionsPos + exceptionSize * file.getLong(record + 16);
+        int count = file.getInt(record + 24);
+        for (int e = 0; e < count; e++, exception += exceptionSize) {
+            int position = file.getInt(exception);
+            int run = file.getInt(exception + 4);
+            char c = (char) file.getInt(exception + 8);
+            if (chars != null) {
+                for (int r = 0; r < run; r++) {
+                    chars[position + r] = c;
+                }
+            } else {
+                byte code = (byte) matrix.encode(c);
+                for (int r = 0; r < run; r++) {
+                    codes[position + r] = code;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a store section, sequences are added one at a time and the
+     * sections are spooled to temporary files until writeTo puts them
+     * together
+     */
+    static final class Writer {
+
+        private final SequenceType seqType;
+        private final int bits;
+        private final File[] spool = new File[4];
+        private final DataOutputStream names, records, residues, exceptions;
+        private long namesLength = 0;
+        private long numResidues = 0;
+        private long numExceptions = 0;
+        private int numSeqs = 0;
+        private long word = 0;
+        private int wordBits = 0;
+
+        Writer(SequenceType seqType, File dir) throws IOException {
+            this.seqType = seqType;
+            this.bits = bitsPerResidue(seqType);
+            for (int s = 0; s < spool.length; s++) {
+                spool[s] = File.createTempFile("packed", ".tmp", dir);
+                spool[s].deleteOnExit();
+            }
+            names = open(spool[0]);
+            records = open(spool[1]);
+            residues = open(spool[2]);
+            exceptions = open(spool[3]);
+        }
+
+        private static DataOutputStream open(File f) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        }
+
+        int size() {
+            return numSeqs;
+        }
+
+        void add(Sequence seq) throws IOException {
+            namesLength += writeString(names, seq.getSeqName());
+            namesLength += writeString(names, seq.getDesc());
+
+            String s = seq.getSeqString();
+            int lower = 0, upper = 0, u = 0, t = 0;
+            for (int position = 0; position < s.length(); position++) {
+                char c = s.charAt(position);
+                if (Character.isLowerCase(c)) {
+                    lower++;
+                } else if (Character.isUpperCase(c)) {
+                    upper++;
+                }
+                if (c == 'U' || c == 'u') {
+                    u++;
+                } else if (c == 'T' || c == 't') {
+                    t++;
+                }
+            }
+            int flags = ((lower > upper) ? lowerCase : 0) | ((seqType == SequenceType.Nucleotide && u > t) ? uracil : 0);
+
+            records.writeLong(numResidues);
+            records.writeInt(s.length());
+            records.writeInt(flags);
+            records.writeLong(numExceptions);
+
+            int count = 0;
+            for (int position = 0; position < s.length(); position++) {
+                char c = s.charAt(position);
+                int code = code(c, flags, seqType);
+                if (code < 0) {
+                    int run = 1;
+                    while (position + run < s.length() && s.charAt(position + run) == c) {
+                        run++;
+                    }
+                    exceptions.writeInt(position);
+                    exceptions.writeInt(run);
+                    exceptions.writeInt(c);
+                    count++;
+                    for (int r = 0; r < run; r++) {
+                        pack(0);
+                    }
+                    position += run - 1;
+                } else {
+                    pack(code);
+                }
+            }
+            records.writeInt(count);
+            records.writeInt(0);
+            numExceptions += count;
+            numResidues += s.length();
+            numSeqs++;
+        }
+
+        private void pack(int code) throws IOException {
+            word |= (long) code << wordBits;
+            wordBits += bits;
+            if (wordBits >= 64) {
+                residues.writeLong(word);
+                wordBits -= 64;
+                word = (wordBits > 0) ? (long) code >>> (bits - wordBits) : 0;
+            }
+        }
+
+        /**
+         * Writes the store section at pos (a multiple of 8) and deletes the
+         * spool files, returns the position after the section (also a
+         * multiple of 8)
+         */
+        long writeTo(DataOutputStream out, long pos) throws IOException {
+            if (wordBits > 0) {
+                residues.writeLong(word);
+            }
+            names.close();
+            records.close();
+            residues.close();
+            exceptions.close();
+
+            long namesPos = pos + headerSize;
+            long nameOffsetsPos = namesPos + padded(namesLength);
+            long recordsPos = nameOffsetsPos + 8L * numSeqs;
+            long residuesPos = recordsPos + (long) recordSize * numSeqs;
+            long exceptionsPos = residuesPos + spool[2].length();
+            long end = exceptionsPos + padded((long) exceptionSize * numExceptions);
+
+            out.writeInt(numSeqs);
+            out.writeInt(bits);
+            out.writeLong(namesPos);
+            out.writeLong(nameOffsetsPos);
+            out.writeLong(recordsPos);
+            out.writeLong(residuesPos);
+            out.writeLong(exceptionsPos);
+
+            copy(spool[0], out);
+            out.write(new byte[(int) (padded(namesLength) - namesLength)]);
+
+            // name offsets, from the lengths in the names spool
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spool[0])));
+            try {
+                long offset = 0;
+                for (int index = 0; index < numSeqs; index++) {
+                    out.writeLong(offset);
+                    for (int field = 0; field < 2; field++) {
+                        int length = in.readInt();
+                        in.skipBytes(length);
+                        offset += 4 + length;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+
+            copy(spool[1], out);
+            copy(spool[2], out);
+            copy(spool[3], out);
+            out.write(new byte[(int) (padded((long) exceptionSize * numExceptions) - (long) exceptionSize * numExceptions)]);
+
+            for (File f : spool) {
+                f.delete();
+            }
+            return end;
+        }
+
+        private static long padded(long length) {
+            return (length + 7) & ~7L;
+        }
+
+        private static void copy(File f, DataOutputStream out) throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(f));
+            try {
+                byte[] buf = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private static int writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = (s == null) ? new byte[0] : s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            return 4 + bytes.length;
+        }
+    }
+}
@@ -19,8 +19,10 @@ package edu.msu.cme.rdp.alignment.pairwise;
 import edu.msu.cme.rdp.alignment.AlignmentMode;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *
@@ -36,71 +38,314 @@ public class PairwiseAligner {
             s.setCharAt(l - index, c);
         }
     }
-    private static final int match = 0;
-    private static final int gap = 1;
-    private static final int left = 0;
-    private static final int up = 1;
-    private static final int diag = 2;
-    private static final int trace = 2; //trace 0 = -1, -1 | trace 1 = -1, 0 | trace 2 = 0, -1
+    static final byte left = 0;
+    static final byte up = 1;
+    static final byte diag = 2;
+    /**
+     * Global and glocal alignments with more matrix cells than this use the
+     * linear space traceback by default
+     */
+    public static final long DEFAULT_LINEAR_SPACE_THRESHOLD = 1L << 24;
+    /**
+     * Diagonals added either side of the k-mer seed diagonals for banded
+     * alignment, doubled every time the path hits the edge of the band
+     */
+    public static final int DEFAULT_BAND_WIDTH = 16;
+    public static final int DEFAULT_SEED_SIZE = 8;
+    public static final int DEFAULT_XDROP = 50;
+    /**
+     * Full matrices with more cells than this are filled in parallel tiles
+     * by default
+     */
+    public static final long DEFAULT_WAVEFRONT_THRESHOLD = 1L << 22;
+    private static ExecutorService wavefrontPool;
+
+    private static final ThreadLocal<AlignmentWorkspace> localWorkspace = new ThreadLocal<AlignmentWorkspace>() {
+
+        @Override
+        protected AlignmentWorkspace initialValue() {
+            return new AlignmentWorkspace();
+        }
+    };
+    private final ScoringMatrix matrix;
+    private final AlignmentMode mode;
+    private final AlignmentWorkspace workspace;
+    private long linearSpaceThreshold = DEFAULT_LINEAR_SPACE_THRESHOLD;
+    private int bandWidth = DEFAULT_BAND_WIDTH;
+    private int seedSize = DEFAULT_SEED_SIZE;
+    private int xdrop = DEFAULT_XDROP;
+    private long wavefrontThreshold = DEFAULT_WAVEFRONT_THRESHOLD;
+    private boolean stripedScoring = false;
+    private StripedScorer stripedScorer;
+    private BitVectorAligner bitVectorAligner;
+
+    /**
+     * Creates an aligner with its own dynamic programming workspace, the
+     * workspace grows to fit the largest alignment seen and is reused for
+     * every following alignment. Instances are not thread safe, use one
+     * aligner per thread.
+     *
+     * @param matrix Scoring matrix to use
+     * @param mode Alignment mode
+     */
+    public PairwiseAligner(ScoringMatrix matrix, AlignmentMode mode) {
+        this(matrix, mode, new AlignmentWorkspace());
+    }
+
+    private PairwiseAligner(ScoringMatrix matrix, AlignmentMode mode, AlignmentWorkspace workspace) {
+        this.matrix = matrix;
+        this.mode = mode;
+        this.workspace = workspace;
+    }
+
+    public ScoringMatrix getScoringMatrix() {
+        return matrix;
+    }
+
+    public AlignmentMode getMode() {
+        return mode;
+    }
+
+    public long getLinearSpaceThreshold() {
+        return linearSpaceThreshold;
+    }
+
+    /**
+     * Global and glocal alignments whose matrix has more than cells cells are
+     * traced back in linear space instead of filling the full matrix, the
+     * resulting alignments are identical
+     */
+    public void setLinearSpaceThreshold(long cells) {
+        this.linearSpaceThreshold = cells;
+    }
+
+    public int getBandWidth() {
+        return bandWidth;
+    }
+
+    /**
+     * Number of diagonals either side of the seed diagonals the first banded
+     * alignment attempt covers
+     */
+    public void setBandWidth(int bandWidth) {
+        if (bandWidth < 1) {
+            throw new IllegalArgumentException("Band width must be at least 1");
+        }
+        this.bandWidth = bandWidth;
+    }
+
+    public boolean isStripedScoring() {
+        return stripedScoring;
+    }
+
+    /**
+     * Score only alignments use the striped 16 bit kernel when the scores
+     * are known to fit, otherwise (the default) the plain row/column fill
+     */
+    public void setStripedScoring(boolean stripedScoring) {
+        this.stripedScoring = stripedScoring;
+    }
+
+    public int getSeedSize() {
+        return seedSize;
+    }
+
+    /**
+     * Length of the exact k-mer matches used to place the band, at most 12
+     */
+    public void setSeedSize(int seedSize) {
+        if (seedSize < 1 || seedSize > KmerSeeds.MAX_K) {
+            throw new IllegalArgumentException("Seed size must be between 1 and " + KmerSeeds.MAX_K);
+        }
+        this.seedSize = seedSize;
+    }
+
+    public int getXDrop() {
+        return xdrop;
+    }
+
+    /**
+     * How far below the best score seen an xdrop extension may fall before
+     * it gives up
+     */
+    public void setXDrop(int xdrop) {
+        if (xdrop < 0) {
+            throw new IllegalArgumentException("X-drop can't be negative");
+        }
+        this.xdrop = xdrop;
+    }
+
+    public long getWavefrontThreshold() {
+        return wavefrontThreshold;
+    }
+
+    /**
+     * Full matrices with more than cells cells are split into tiles and the
+     * tiles on each anti-diagonal are filled in parallel on a shared pool of
+     * one thread per processor, the alignment is identical to the one the
+     * sequential fill gives
+     */
+    public void setWavefrontThreshold(long cells) {
+        this.wavefrontThreshold = cells;
+    }
+
+    private static synchronized ExecutorService wavefrontPool() {
+        if (wavefrontPool == null) {
+            wavefrontPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "alignment-wavefront");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return wavefrontPool;
+    }
+
+    private void populateMatrix(char[] seqi, char[] seqj) {
+        if (!populateMatrix(seqi, seqj, narrowPlausible(seqi.length, seqj.length))) {
+            populateMatrix(seqi, seqj, false);
+        }
+    }
 
-    private static int[][][] populateMatrix(char[] seqi, char[] seqj, ScoringMatrix matrix, AlignmentMode mode) {
-        int[][][] scoringMatrix = new int[seqi.length + 1][seqj.length + 1][3];
+    /**
+     * Whether the scores of an m x n matrix are likely to fit in a short:
+     * the boundary scores and the best possible score do. Other cells can
+     * still fall outside, the fill checks.
+     */
+    private boolean narrowPlausible(int m, int n) {
+        long boundary = Math.abs((long) matrix.getGapOpen()) + Math.abs((long) matrix.getGapExtend()) * Math.max(m, n);
+        long best = (long) Math.max(0, matrix.getMaxScore()) * Math.min(m, n);
+        return boundary <= Short.MAX_VALUE && best <= Short.MAX_VALUE;
+    }
+
+    /**
+     * Fills the match plane and trace, scores are computed in the (int)
+     * rolling rows and only stored to the plane, narrow stores them as
+     * shorts.
+     *
+     * @return false if narrow was set and a score didn't fit in a short, the
+     * matrix has to be filled again without narrow
+     */
+    private boolean populateMatrix(char[] seqi, char[] seqj, boolean narrow) {
+        final int cols = seqj.length + 1;
+        workspace.ensureCapacity(seqi.length + 1, cols, narrow);
+        workspace.ensureRowCapacity(cols);
+        final int[] matchPlane = workspace.match;
+        final short[] narrowPlane = workspace.narrowMatch;
+        final byte[] tracePlane = workspace.trace;
+        final int traceStride = workspace.traceStride;
+        final int gapOpen = matrix.getGapOpen();
+        final int gapExtend = matrix.getGapExtend();
+        int[] prevMatch = workspace.prevMatch;
+        int[] curMatch = workspace.curMatch;
+        int[] prevGap = workspace.prevGap;
+        int[] curGap = workspace.curGap;
 
-        scoringMatrix[0][0][match] = 0;
-        scoringMatrix[0][0][gap] = Integer.MIN_VALUE;
+        workspace.setMatch(0, 0);
+        prevMatch[0] = 0;
+        prevGap[0] = Integer.MIN_VALUE;
+        workspace.setTrace(0, 0, left);
 
         for (int index = 1; index < seqi.length + 1; index++) {
-            int initScore = (mode == AlignmentMode.global/* || mode == AlignmentMode.glocal*/) ? (index - 1) * matrix.getGapExtend() + matrix.getGapOpen() : 0;
+            int initScore = (mode == AlignmentMode.global/* || mode == AlignmentMode.glocal*/) ? (index - 1) * gapExtend + gapOpen : 0;
 
-            scoringMatrix[index][0][match] = initScore;
-            scoringMatrix[index][0][gap] = initScore + matrix.getGapExtend();
-            scoringMatrix[index][0][trace] = left;
+            workspace.setMatch(index * cols, initScore);
+            workspace.setTrace(index, 0, left);
         }
         for (int index = 1; index < seqj.length + 1; index++) {
-            int initScore = (mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? (index - 1) * matrix.getGapExtend() + matrix.getGapOpen() : 0;
+            int initScore = (mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? (index - 1) * gapExtend + gapOpen : 0;
 
-            scoringMatrix[0][index][match] = initScore;
-            scoringMatrix[0][index][gap] = initScore + matrix.getGapExtend();
-            scoringMatrix[0][index][trace] = up;
+            workspace.setMatch(index, initScore);
+            prevMatch[index] = initScore;
+            prevGap[index] = initScore + gapExtend;
+            workspace.setTrace(0, index, up);
+        }
+
+        if (seqi.length == 0 || seqj.length == 0) {
+            return true;
+        }
+        final byte[] codes = matrix.encode(seqi);
+        final int[][] profile = matrix.buildProfile(matrix.encode(seqj));
+
+        if ((long) (seqi.length + 1) * cols > wavefrontThreshold && Runtime.getRuntime().availableProcessors() > 1) {
+            return new WavefrontFill(matrix, mode, workspace, wavefrontPool()).fill(codes, profile, prevGap);
         }
 
         for (int i = 1; i < seqi.length + 1; i++) {
+            int row = i * cols;
+            int traceRow = (i * traceStride) >> 2;
+            final int[] scores = profile[codes[i - 1]];
+            curMatch[0] = workspace.matchAt(row);
+            curGap[0] = curMatch[0] + gapExtend;
+            // trace codes are collected 4 at a time, column 0 is a left move
+            int packed = left;
 
-            for (int j = 1; j < seqj.length + 1; j++) {
+            for (int j = 1; j < cols; j++) {
 
-                int sxy = matrix.score(seqi[i - 1], seqj[j - 1]);
+                int sxy = scores[j - 1];
 
-                int scoreUp = Math.max(scoringMatrix[i - 1][j][gap] + matrix.getGapExtend(), scoringMatrix[i - 1][j][match] + matrix.getGapOpen());
-                int scoreLeft = Math.max(scoringMatrix[i][j - 1][gap] + matrix.getGapExtend(), scoringMatrix[i][j - 1][match] + matrix.getGapOpen());
-                int m = Math.max(scoringMatrix[i - 1][j - 1][match], scoringMatrix[i - 1][j - 1][gap]) + sxy;
+                int scoreUp = Math.max(prevGap[j] + gapExtend, prevMatch[j] + gapOpen);
+                int scoreLeft = Math.max(curGap[j - 1] + gapExtend, curMatch[j - 1] + gapOpen);
+                int m = Math.max(prevMatch[j - 1], prevGap[j - 1]) + sxy;
 
 
                 if (mode == AlignmentMode.local) {
-                    scoringMatrix[i][j][match] = (m < 0)? 0 : m;
-                    scoringMatrix[i][j][gap] = Math.min(0, Math.max(scoreLeft, scoreUp));
+                    curMatch[j] = (m < 0)? 0 : m;
+                    curGap[j] = Math.min(0, Math.max(scoreLeft, scoreUp));
                 } else {
-                    scoringMatrix[i][j][match] = m;
-                    scoringMatrix[i][j][gap] = Math.max(scoreLeft, scoreUp);
+                    curMatch[j] = m;
+                    curGap[j] = Math.max(scoreLeft, scoreUp);
                 }
 
+                int traceVal;
                 if (m >= scoreLeft && m >= scoreUp) {
-                    scoringMatrix[i][j][trace] = diag;
+                    traceVal = diag;
                 } else if (scoreLeft >= m && scoreLeft >= scoreUp) {
-                    scoringMatrix[i][j][trace] = up;
+                    traceVal = up;
                 } else {
-                    scoringMatrix[i][j][trace] = left;
+                    traceVal = left;
+                }
+
+                packed |= traceVal << ((j & 3) << 1);
+                if ((j & 3) == 3) {
+                    tracePlane[traceRow + (j >> 2)] = (byte) packed;
+                    packed = 0;
                 }
             }
+            if ((cols & 3) != 0) {
+                tracePlane[traceRow + ((cols - 1) >> 2)] = (byte) packed;
+            }
+
+            if (narrow) {
+                // non zero once a score falls outside the range of a short
+                int overflow = 0;
+                for (int j = 1; j < cols; j++) {
+                    int score = curMatch[j];
+                    narrowPlane[row + j] = (short) score;
+                    overflow |= score ^ (short) score;
+                }
+                if (overflow != 0) {
+                    return false;
+                }
+            } else {
+                System.arraycopy(curMatch, 1, matchPlane, row + 1, cols - 1);
+            }
+
+            int[] tmp = prevGap;
+            prevGap = curGap;
+            curGap = tmp;
+            tmp = prevMatch;
+            prevMatch = curMatch;
+            curMatch = tmp;
         }
 
-        return scoringMatrix;
+        return true;
     }
 
-    private static PairwiseAlignment traceback(int[][][] scoringMatrix, char[] seqi, char[] seqj, AlignmentMode mode) {
-        StringBuffer alignedSeqi = new StringBuffer();
-        StringBuffer alignedSeqj = new StringBuffer();
-
-        List<Integer> scores = new ArrayList();
+    private PairwiseAlignment traceback(char[] seqi, char[] seqj) {
+        final int cols = workspace.cols;
 
         int i = seqi.length, j = seqj.length;
         boolean fillFromJ = false;
@@ -111,15 +356,15 @@ public class PairwiseAligner {
             {
                 int bestEdge = Integer.MIN_VALUE;
                 for (int index = 1; index < seqi.length + 1; index++) {
-                    if (scoringMatrix[index][seqj.length][match] > bestEdge) {
-                        bestEdge = scoringMatrix[index][seqj.length][match];
+                    if (workspace.matchAt(index * cols + seqj.length) > bestEdge) {
+                        bestEdge = workspace.matchAt(index * cols + seqj.length);
                         i = index;
                     }
                 }
 
                 for (int index = 1; index < seqj.length + 1; index++) {
-                    if (scoringMatrix[seqi.length][index][match] > bestEdge) {
-                        bestEdge = scoringMatrix[seqi.length][index][match];
+                    if (workspace.matchAt(seqi.length * cols + index) > bestEdge) {
+                        bestEdge = workspace.matchAt(seqi.length * cols + index);
                         i = seqi.length;
                         j = index;
                         fillFromJ = true;
@@ -134,8 +379,8 @@ public class PairwiseAligner {
                 int bestEdge = Integer.MIN_VALUE;
                 for (int row = 1; row < seqi.length + 1; row++) {
                     for (int col = 1; col < seqj.length + 1; col++) {
-                        if (scoringMatrix[row][col][match] > bestEdge) {
-                            bestEdge = scoringMatrix[row][col][match];
+                        if (workspace.matchAt(row * cols + col) > bestEdge) {
+                            bestEdge = workspace.matchAt(row * cols + col);
                             i = row;
                             j = col;
                         }
@@ -149,14 +394,14 @@ public class PairwiseAligner {
             {
                 int bestEdge = Integer.MIN_VALUE;
                 for (int index = 1; index < seqi.length + 1; index++) {
-                    if (scoringMatrix[index][seqj.length][match] > bestEdge) {
-                        bestEdge = scoringMatrix[index][seqj.length][match];
+                    if (workspace.matchAt(index * cols + seqj.length) > bestEdge) {
+                        bestEdge = workspace.matchAt(index * cols + seqj.length);
                         i = index;
                     }
                 }
                 /*for (int index = 1; index < seqj.length + 1; index++) {
-                    if (scoringMatrix[seqi.length][index][match] > bestEdge) {
-                        bestEdge = scoringMatrix[seqi.length][index][match];
+                    if (workspace.matchAt(seqi.length * cols + index) > bestEdge) {
+                        bestEdge = workspace.matchAt(seqi.length * cols + index);
                         j = index;
                     }
                 }*/
@@ -164,63 +409,27 @@ public class PairwiseAligner {
             break;
         }
 
-        if (mode == AlignmentMode.overlap || mode == AlignmentMode.glocal) {
-            int x;
-            char[] appendBases;
-            StringBuffer appendBasesSeq, appendGaps;
-
-            if (fillFromJ) {
-                x = j;
-                appendBases = seqj;
-                appendBasesSeq = alignedSeqj;
-                appendGaps = alignedSeqi;
-            } else {
-                x = i;
-                appendBases = seqi;
-                appendBasesSeq = alignedSeqi;
-                appendGaps = alignedSeqj;
-            }
-
-
-            for (int index = appendBases.length - 1; index >= x; index--) {
-                appendBasesSeq.append(appendBases[index]);
-                appendGaps.append('-');
-                if (appendBases == seqi) {
-                    scores.add(scoringMatrix[i][seqj.length][match]);
-                } else {
-                    scores.add(scoringMatrix[seqi.length][j][match]);
-                }
-            }
-        }
-
+        int tailScore = (fillFromJ) ? workspace.matchAt(seqi.length * cols + j) : workspace.matchAt(i * cols + seqj.length);
         int endi = i, endj = j;
+        TracePath path = new TracePath();
         boolean done = false;
         while (!done) {
-            int traceVal = scoringMatrix[i][j][trace];
+            byte traceVal = workspace.traceAt(i, j);
             if (traceVal == diag) {
-                alignedSeqi.append(seqi[i - 1]);
-                alignedSeqj.append(seqj[j - 1]);
-
                 i--;
                 j--;
             } else if (traceVal == up) {
-                alignedSeqi.append('-');
-                alignedSeqj.append(seqj[j - 1]);
-
                 j--;
             } else if (traceVal == left) {
-                alignedSeqi.append(seqi[i - 1]);
-                alignedSeqj.append('-');
-
                 i--;
             } else {
                 throw new IllegalArgumentException("Unknown trace value " + traceVal);
             }
 
-            if (mode == AlignmentMode.local && scoringMatrix[i][j][match] < 0) {
-                scores.add(0);
+            if (mode == AlignmentMode.local && workspace.matchAt(i * cols + j) < 0) {
+                path.add(traceVal, 0);
             } else {
-                scores.add(scoringMatrix[i][j][match]);
+                path.add(traceVal, workspace.matchAt(i * cols + j));
             }
 
             switch (mode) {
@@ -228,7 +437,7 @@ public class PairwiseAligner {
                     done = (i == 0) && (j == 0);
                     break;
                 case local:
-                    done = ((i == 0) && (j == 0)) || (scoringMatrix[i][j][match] <= 0);
+                    done = ((i == 0) && (j == 0)) || (workspace.matchAt(i * cols + j) <= 0);
                     break;
                 case overlap:
                 case overlap_trim:
@@ -242,40 +451,465 @@ public class PairwiseAligner {
                     throw new IllegalArgumentException("Unknown alignment mode " + mode);
             }
         }
-        int starti = i;
-        int startj = j;
 
-        if (mode == AlignmentMode.overlap){// || mode == AlignmentMode.glocal) {
-            int x;
-            char[] appendBases;
-            StringBuffer appendBasesSeq, appendGaps;
+        return buildAlignment(seqi, seqj, endi, endj, fillFromJ, tailScore, path);
+    }
+
+    /**
+     * Builds the alignment columns and per column scores from a traceback
+     * path starting at cell (endi, endj), the aligned sequences are only
+     * built if they're asked for
+     *
+     * @param fillFromJ the trailing unaligned bases (overlap and glocal modes) come from seqj
+     * @param tailScore score reported for each of the trailing unaligned bases
+     */
+    PairwiseAlignment buildAlignment(char[] seqi, char[] seqj, int endi, int endj, boolean fillFromJ, int tailScore, TracePath path) {
+        int starti = endi, startj = endj;
+        for (int index = 0; index < path.length; index++) {
+            byte traceVal = path.moves[index];
+            if (traceVal != up) {
+                starti--;
+            }
+            if (traceVal != left) {
+                startj--;
+            }
+        }
 
-            if (i == 0) {
-                x = j;
-                appendBases = seqj;
-                appendBasesSeq = alignedSeqj;
-                appendGaps = alignedSeqi;
+        // overlap also shows the unaligned bases before the start, the
+        // sequence the path didn't run out of supplies them
+        int lead = 0, tail = 0;
+        int leadOp = PairwiseAlignment.OP_GAP_J;
+        if (mode == AlignmentMode.overlap) {
+            if (starti == 0) {
+                lead = startj;
+                leadOp = PairwiseAlignment.OP_GAP_I;
             } else {
-                x = i;
-                appendBases = seqi;
-                appendBasesSeq = alignedSeqi;
-                appendGaps = alignedSeqj;
+                lead = starti;
+            }
+        }
+        if (mode == AlignmentMode.overlap || mode == AlignmentMode.glocal) {
+            tail = fillFromJ ? seqj.length - endj : seqi.length - endi;
+        }
+
+        int[] columnScores = new int[lead + path.length + tail];
+        PairwiseAlignment.OpsBuilder ops = new PairwiseAlignment.OpsBuilder();
+        ops.add(leadOp, lead);
+        for (int index = path.length - 1, column = lead; index >= 0; index--, column++) {
+            ops.add(path.moves[index], 1);
+            columnScores[column] = path.scores[index];
+        }
+        ops.add(fillFromJ ? PairwiseAlignment.OP_GAP_I : PairwiseAlignment.OP_GAP_J, tail);
+        for (int column = lead + path.length; column < columnScores.length; column++) {
+            columnScores[column] = tailScore;
+        }
+
+        return new PairwiseAlignment(seqi, seqj, (lead > 0) ? 0 : starti, (lead > 0) ? 0 : startj, ops.toArray(), columnScores, starti, endi, startj, endj);
+    }
+
+    /**
+     * Returns the match score of the cell the traceback would step to from
+     * cell (i, j), given the match and gap scores of the diagonal, vertical
+     * (i - 1, j) and horizontal (i, j - 1) neighbors
+     */
+    int predecessorMatch(int diagMatch, int diagGap, int vertMatch, int vertGap, int horizMatch, int horizGap, int sxy) {
+        int scoreUp = Math.max(vertGap + matrix.getGapExtend(), vertMatch + matrix.getGapOpen());
+        int scoreLeft = Math.max(horizGap + matrix.getGapExtend(), horizMatch + matrix.getGapOpen());
+        int m = Math.max(diagMatch, diagGap) + sxy;
+
+        if (m >= scoreLeft && m >= scoreUp) {
+            return diagMatch;
+        } else if (scoreLeft >= m && scoreLeft >= scoreUp) {
+            return horizMatch;
+        } else {
+            return vertMatch;
+        }
+    }
+
+    /**
+     * Tracks the candidate end cells while a score only matrix is filled and
+     * works out the score the traceback would report
+     */
+    static class EndCells {
+
+        int bestLocal = Integer.MIN_VALUE, localI, localJ, localPred;
+        int bestRight = Integer.MIN_VALUE, rightI, rightPred;
+        int bestBottom = Integer.MIN_VALUE, bottomJ, bottomPred;
+        int cornerPred;
+        /**
+         * Score only fills check whether the alignment can still reach the
+         * minimum score of interest every pruneInterval rows (or columns)
+         */
+        static final int pruneInterval = 8;
+
+        void local(int score, int i, int j, int pred) {
+            bestLocal = score;
+            localI = i;
+            localJ = j;
+            localPred = pred;
+        }
+
+        /**
+         * Highest score the end cells picked so far would report. Once a row
+         * (or column) has been filled the final score is at most the larger
+         * of this and the best score a later cell can reach, which is at most
+         * a cell of that row (match or gap, or a boundary cell still to come)
+         * plus the best substitution score for each diagonal step between
+         * them, gap penalties can only lower it.
+         */
+        int bestPicked() {
+            return Math.max(Math.max(localPred, Math.max(bestRight, rightPred)), Math.max(bestBottom, bottomPred));
+        }
+
+        PairwiseScore toScore(AlignmentMode mode, int rows, int cols) {
+            switch (mode) {
+                case global:
+                    return new PairwiseScore(cornerPred, rows, cols);
+                case local:
+                    return new PairwiseScore(localPred, localI, localJ);
+                case overlap:
+                case overlap_trim:
+                    if (bestBottom > bestRight) {
+                        return new PairwiseScore((mode == AlignmentMode.overlap) ? bestBottom : bottomPred, rows, bottomJ);
+                    }
+                    if (mode == AlignmentMode.overlap && rightI < rows) {
+                        return new PairwiseScore(bestRight, rightI, cols);
+                    }
+                    return new PairwiseScore(rightPred, rightI, cols);
+                case glocal:
+                    if (rightI < rows) {
+                        return new PairwiseScore(bestRight, rightI, cols);
+                    }
+                    return new PairwiseScore(rightPred, rightI, cols);
+                default:
+                    throw new IllegalArgumentException("Unknown alignment mode " + mode);
+            }
+        }
+    }
+
+    /**
+     * Fills the matrix one row (seqi position) at a time keeping only two
+     * rows of seqj.length + 1 cells
+     */
+    private PairwiseScore scoreByRows(char[] seqi, char[] seqj, int minScore) {
+        final int cols = seqj.length;
+        final int gapOpen = matrix.getGapOpen();
+        final int gapExtend = matrix.getGapExtend();
+        final boolean prune = minScore > Integer.MIN_VALUE;
+        final int maxScore = prune ? Math.max(0, matrix.getMaxScore()) : 0;
+        workspace.ensureRowCapacity(cols + 1);
+        int[] prevM = workspace.prevMatch;
+        int[] prevG = workspace.prevGap;
+        int[] curM = workspace.curMatch;
+        int[] curG = workspace.curGap;
+        EndCells ends = new EndCells();
+        final byte[] codes = matrix.encode(seqi);
+        final int[][] profile = matrix.buildProfile(matrix.encode(seqj));
+
+        prevM[0] = 0;
+        prevG[0] = Integer.MIN_VALUE;
+        for (int j = 1; j < cols + 1; j++) {
+            int initScore = (mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? (j - 1) * gapExtend + gapOpen : 0;
+            prevM[j] = initScore;
+            prevG[j] = initScore + gapExtend;
+        }
+
+        for (int i = 1; i < seqi.length + 1; i++) {
+            int initScore = (mode == AlignmentMode.global) ? (i - 1) * gapExtend + gapOpen : 0;
+            curM[0] = initScore;
+            curG[0] = initScore + gapExtend;
+            final int[] scores = profile[codes[i - 1]];
+
+            for (int j = 1; j < cols + 1; j++) {
+                int sxy = scores[j - 1];
+
+                int scoreUp = Math.max(prevG[j] + gapExtend, prevM[j] + gapOpen);
+                int scoreLeft = Math.max(curG[j - 1] + gapExtend, curM[j - 1] + gapOpen);
+                int m = Math.max(prevM[j - 1], prevG[j - 1]) + sxy;
+
+                if (mode == AlignmentMode.local) {
+                    curM[j] = (m < 0) ? 0 : m;
+                    curG[j] = Math.min(0, Math.max(scoreLeft, scoreUp));
+                    if (curM[j] > ends.bestLocal) {
+                        ends.local(curM[j], i, j, predecessorMatch(prevM[j - 1], prevG[j - 1], prevM[j], prevG[j], curM[j - 1], curG[j - 1], sxy));
+                    }
+                } else {
+                    curM[j] = m;
+                    curG[j] = Math.max(scoreLeft, scoreUp);
+                }
+            }
+
+            if (curM[cols] > ends.bestRight) {
+                ends.bestRight = curM[cols];
+                ends.rightI = i;
+                ends.rightPred = predecessorMatch(prevM[cols - 1], prevG[cols - 1], prevM[cols], prevG[cols], curM[cols - 1], curG[cols - 1], scores[cols - 1]);
+            }
+
+            if (i == seqi.length) {
+                for (int j = 1; j < cols + 1; j++) {
+                    if (curM[j] > ends.bestBottom) {
+                        ends.bestBottom = curM[j];
+                        ends.bottomJ = j;
+                        ends.bottomPred = predecessorMatch(prevM[j - 1], prevG[j - 1], prevM[j], prevG[j], curM[j - 1], curG[j - 1], scores[j - 1]);
+                    }
+                }
+                ends.cornerPred = predecessorMatch(prevM[cols - 1], prevG[cols - 1], prevM[cols], prevG[cols], curM[cols - 1], curG[cols - 1], scores[cols - 1]);
+            } else if (prune && i % EndCells.pruneInterval == 0) {
+                int remaining = seqi.length - i;
+                int bound = Math.max(ends.bestPicked(), ((mode == AlignmentMode.global) ? i * gapExtend + gapOpen : 0) + maxScore * Math.min(remaining - 1, cols));
+                for (int j = 0; j < cols + 1; j++) {
+                    bound = Math.max(bound, Math.max(curM[j], curG[j]) + maxScore * Math.min(remaining, cols - j));
+                }
+                if (bound < minScore) {
+                    return PairwiseScore.pruned(bound);
+                }
+            }
+
+            int[] tmp = prevM;
+            prevM = curM;
+            curM = tmp;
+            tmp = prevG;
+            prevG = curG;
+            curG = tmp;
+        }
+
+        return ends.toScore(mode, seqi.length, seqj.length);
+    }
+
+    /**
+     * Fills the matrix one column (seqj position) at a time keeping only two
+     * columns of seqi.length + 1 cells, the candidate end cells are picked
+     * exactly as the row order fill would pick them
+     */
+    private PairwiseScore scoreByColumns(char[] seqi, char[] seqj, int minScore) {
+        final int rows = seqi.length;
+        final int gapOpen = matrix.getGapOpen();
+        final int gapExtend = matrix.getGapExtend();
+        final boolean prune = minScore > Integer.MIN_VALUE;
+        final int maxScore = prune ? Math.max(0, matrix.getMaxScore()) : 0;
+        workspace.ensureRowCapacity(rows + 1);
+        int[] prevM = workspace.prevMatch;
+        int[] prevG = workspace.prevGap;
+        int[] curM = workspace.curMatch;
+        int[] curG = workspace.curGap;
+        EndCells ends = new EndCells();
+        final byte[] codes = matrix.encode(seqj);
+        final int[][] profile = matrix.buildReferenceProfile(matrix.encode(seqi));
+
+        prevM[0] = 0;
+        prevG[0] = Integer.MIN_VALUE;
+        for (int i = 1; i < rows + 1; i++) {
+            int initScore = (mode == AlignmentMode.global) ? (i - 1) * gapExtend + gapOpen : 0;
+            prevM[i] = initScore;
+            prevG[i] = initScore + gapExtend;
+        }
+
+        for (int j = 1; j < seqj.length + 1; j++) {
+            int initScore = (mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? (j - 1) * gapExtend + gapOpen : 0;
+            curM[0] = initScore;
+            curG[0] = initScore + gapExtend;
+            final int[] scores = profile[codes[j - 1]];
+
+            for (int i = 1; i < rows + 1; i++) {
+                int sxy = scores[i - 1];
+
+                int scoreUp = Math.max(curG[i - 1] + gapExtend, curM[i - 1] + gapOpen);
+                int scoreLeft = Math.max(prevG[i] + gapExtend, prevM[i] + gapOpen);
+                int m = Math.max(prevM[i - 1], prevG[i - 1]) + sxy;
+
+                if (mode == AlignmentMode.local) {
+                    curM[i] = (m < 0) ? 0 : m;
+                    curG[i] = Math.min(0, Math.max(scoreLeft, scoreUp));
+                    if (curM[i] > ends.bestLocal || (curM[i] == ends.bestLocal && i < ends.localI)) {
+                        ends.local(curM[i], i, j, predecessorMatch(prevM[i - 1], prevG[i - 1], curM[i - 1], curG[i - 1], prevM[i], prevG[i], sxy));
+                    }
+                } else {
+                    curM[i] = m;
+                    curG[i] = Math.max(scoreLeft, scoreUp);
+                }
+            }
+
+            if (curM[rows] > ends.bestBottom) {
+                ends.bestBottom = curM[rows];
+                ends.bottomJ = j;
+                ends.bottomPred = predecessorMatch(prevM[rows - 1], prevG[rows - 1], curM[rows - 1], curG[rows - 1], prevM[rows], prevG[rows], scores[rows - 1]);
             }
 
-            while (x > 0) {
-                appendGaps.append('-');
-                appendBasesSeq.append(appendBases[x - 1]);
-                scores.add(0);
-                x--;
+            if (j == seqj.length) {
+                for (int i = 1; i < rows + 1; i++) {
+                    if (curM[i] > ends.bestRight) {
+                        ends.bestRight = curM[i];
+                        ends.rightI = i;
+                        ends.rightPred = predecessorMatch(prevM[i - 1], prevG[i - 1], curM[i - 1], curG[i - 1], prevM[i], prevG[i], scores[i - 1]);
+                    }
+                }
+                ends.cornerPred = predecessorMatch(prevM[rows - 1], prevG[rows - 1], curM[rows - 1], curG[rows - 1], prevM[rows], prevG[rows], scores[rows - 1]);
+            } else if (prune && j % EndCells.pruneInterval == 0) {
+                int remaining = seqj.length - j;
+                int bound = Math.max(ends.bestPicked(), ((mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? j * gapExtend + gapOpen : 0) + maxScore * Math.min(remaining - 1, rows));
+                for (int i = 0; i < rows + 1; i++) {
+                    bound = Math.max(bound, Math.max(curM[i], curG[i]) + maxScore * Math.min(remaining, rows - i));
+                }
+                if (bound < minScore) {
+                    return PairwiseScore.pruned(bound);
+                }
             }
+
+            int[] tmp = prevM;
+            prevM = curM;
+            curM = tmp;
+            tmp = prevG;
+            prevG = curG;
+            curG = tmp;
+        }
+
+        return ends.toScore(mode, seqi.length, seqj.length);
+    }
+
+    /**
+     * Computes the score and end coordinates of the alignment without doing
+     * the traceback. Only two rows (or columns, whichever is shorter) of the
+     * dynamic programming matrix are kept
+     *
+     * @param seq1 For glocal and overlap modes this sequence is assumed to be the REFERENCE
+     * @param seq2 For glocal and overlap modes this seuqence is assumed to be the QUERY
+     * @return the score align(seq1, seq2).getScore() would report
+     */
+    public PairwiseScore score(String seq1, String seq2) {
+        return score(seq1, seq2, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Like score(String, String) but gives up as soon as the score is
+     * certain to be below minScoreOfInterest, which saves most of the work
+     * for sequences that clearly don't match when only good hits are of
+     * interest. Pruning needs gap penalties that are not positive, otherwise
+     * minScoreOfInterest is ignored.
+     *
+     * @return the score score(seq1, seq2) reports, or a pruned score (see
+     * PairwiseScore.isPruned()) if that score would be below minScoreOfInterest
+     */
+    public PairwiseScore score(String seq1, String seq2, int minScoreOfInterest) {
+        char[] seqi = seq1.toCharArray();
+        char[] seqj = seq2.toCharArray();
+
+        if (seqi.length == 0 || seqj.length == 0 || mode == AlignmentMode.xdrop) {
+            PairwiseAlignment alignment = align(seq1, seq2);
+            return new PairwiseScore(alignment.getScore(), alignment.getEndi(), alignment.getEndj());
         }
 
-        reverse(alignedSeqi);
+        if (isUnitCostGlobal()) {
+            return bitVectorAligner().score(seqi, seqj);
+        }
 
-        reverse(alignedSeqj);
+        if (stripedScoring) {
+            if (stripedScorer == null) {
+                stripedScorer = new StripedScorer(this, workspace);
+            }
+            PairwiseScore ret = stripedScorer.score(seqi, seqj, minScoreOfInterest);
+            if (ret != null) {
+                return ret;
+            }
+        }
 
-        Collections.reverse(scores);
-        return new PairwiseAlignment(alignedSeqi.toString().toUpperCase(), alignedSeqj.toString().toUpperCase(), scores, starti, endi, startj, endj);
+        if (matrix.getGapOpen() > 0 || matrix.getGapExtend() > 0) {
+            minScoreOfInterest = Integer.MIN_VALUE;
+        }
+        if (seqj.length <= seqi.length) {
+            return scoreByRows(seqi, seqj, minScoreOfInterest);
+        } else {
+            return scoreByColumns(seqi, seqj, minScoreOfInterest);
+        }
+    }
+
+    /**
+     * Scores one query against many references, several references are
+     * filled side by side in one pass. The result holds three ints per
+     * reference, in the order the references were given: the score, endi
+     * and endj score(reference, query) would report.
+     *
+     * @param query For glocal and overlap modes this seuqence is assumed to be the QUERY
+     * @param refs For glocal and overlap modes these sequences are assumed to be the REFERENCES
+     */
+    public int[] scoreAgainstMany(String query, List<String> refs) {
+        return scoreAgainstMany(query, refs, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Like scoreAgainstMany(String, List) but references that are certain to
+     * score below minScoreOfInterest are abandoned early (see
+     * score(String, String, int)). A pruned reference's endi and endj are -1
+     * and its score is an upper bound below minScoreOfInterest.
+     */
+    public int[] scoreAgainstMany(String query, List<String> refs, int minScoreOfInterest) {
+        if (mode == AlignmentMode.xdrop || isUnitCostGlobal()) {
+            int[] ret = new int[refs.size() * 3];
+            for (int index = 0; index < refs.size(); index++) {
+                PairwiseScore score = score(refs.get(index), query);
+                ret[index * 3] = score.getScore();
+                ret[index * 3 + 1] = score.getEndi();
+                ret[index * 3 + 2] = score.getEndj();
+            }
+            return ret;
+        }
+
+        char[][] refSeqs = new char[refs.size()][];
+        for (int index = 0; index < refSeqs.length; index++) {
+            refSeqs[index] = refs.get(index).toCharArray();
+        }
+        return new BatchScorer(this).score(query.toCharArray(), refSeqs, minScoreOfInterest);
+    }
+
+    /**
+     * Like scoreAgainstMany(String, List, int) but the references are
+     * already encoded with the scoring matrix's alphabet (see
+     * ScoringMatrix.encode(char[]) and PackedSequenceStore.decodeEncoded)
+     */
+    public int[] scoreAgainstMany(String query, byte[][] encodedRefs, int minScoreOfInterest) {
+        if (mode == AlignmentMode.xdrop || isUnitCostGlobal()) {
+            List<String> refs = new ArrayList<String>(encodedRefs.length);
+            for (byte[] codes : encodedRefs) {
+                refs.add(new String(matrix.decode(codes)));
+            }
+            return scoreAgainstMany(query, refs, minScoreOfInterest);
+        }
+
+        return new BatchScorer(this).score(query.toCharArray(), encodedRefs, minScoreOfInterest);
+    }
+
+    /**
+     * See scoreAgainstMany(String, byte[][], int)
+     */
+    public static int[] scoreAgainstMany(String query, byte[][] encodedRefs, ScoringMatrix scoringMatrix, AlignmentMode mode, int minScoreOfInterest) {
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).scoreAgainstMany(query, encodedRefs, minScoreOfInterest);
+    }
+
+    /**
+     * See scoreAgainstMany(String, List)
+     */
+    public static int[] scoreAgainstMany(String query, List<String> refs, ScoringMatrix scoringMatrix, AlignmentMode mode) {
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).scoreAgainstMany(query, refs);
+    }
+
+    /**
+     * See scoreAgainstMany(String, List, int)
+     */
+    public static int[] scoreAgainstMany(String query, List<String> refs, ScoringMatrix scoringMatrix, AlignmentMode mode, int minScoreOfInterest) {
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).scoreAgainstMany(query, refs, minScoreOfInterest);
+    }
+
+    /**
+     * Score only alignment, see score(String, String)
+     */
+    public static PairwiseScore score(String seq1, String seq2, ScoringMatrix scoringMatrix, AlignmentMode mode) {
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).score(seq1, seq2);
+    }
+
+    /**
+     * Score only alignment with early termination, see
+     * score(String, String, int)
+     */
+    public static PairwiseScore score(String seq1, String seq2, ScoringMatrix scoringMatrix, AlignmentMode mode, int minScoreOfInterest) {
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).score(seq1, seq2, minScoreOfInterest);
     }
 
     /**
@@ -287,7 +921,205 @@ public class PairwiseAligner {
      * @return
      */
     public static PairwiseAlignment align(String seq1, String seq2, ScoringMatrix scoringMatrix, AlignmentMode mode) {
-        int[][][] scores = populateMatrix(seq1.toCharArray(), seq2.toCharArray(), scoringMatrix, mode);
-        return traceback(scores, seq1.toCharArray(), seq2.toCharArray(), mode);
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).align(seq1, seq2);
+    }
+
+    /**
+     *
+     * @param seq1 For glocal and overlap modes this sequence is assumed to be the REFERENCE
+     * @param seq2 For glocal and overlap modes this seuqence is assumed to be the QUERY
+     * @return
+     */
+    public PairwiseAlignment align(String seq1, String seq2) {
+        char[] seqi = seq1.toCharArray();
+        char[] seqj = seq2.toCharArray();
+
+        if (mode == AlignmentMode.xdrop) {
+            int[] seed = KmerSeeds.seed(seqi, seqj, seedSize);
+            if (seed == null) {
+                return new PairwiseAligner(matrix, AlignmentMode.local, workspace).align(seq1, seq2);
+            }
+            return new XDropAligner(matrix, xdrop).align(seqi, seqj, seed[0], seed[1], seedSize);
+        }
+
+        // the bit vectors take as much room as the packed trace
+        if (isUnitCostGlobal() && seqi.length > 0 && seqj.length > 0
+                && (long) (seqi.length + 1) * (seqj.length + 1) <= linearSpaceThreshold) {
+            return buildAlignment(seqi, seqj, seqi.length, seqj.length, false, 0, bitVectorAligner().align(seqi, seqj));
+        }
+
+        if ((mode == AlignmentMode.global || mode == AlignmentMode.glocal) && seqi.length > 0 && seqj.length > 0
+                && (long) (seqi.length + 1) * (seqj.length + 1) > linearSpaceThreshold) {
+            return linearSpaceAlign(seq1, seq2, seqi, seqj);
+        }
+
+        populateMatrix(seqi, seqj);
+        return traceback(seqi, seqj);
+    }
+
+    private boolean isUnitCostGlobal() {
+        return mode == AlignmentMode.global && matrix.isUnitCost();
+    }
+
+    private BitVectorAligner bitVectorAligner() {
+        if (bitVectorAligner == null) {
+            bitVectorAligner = new BitVectorAligner(matrix);
+        }
+        return bitVectorAligner;
+    }
+
+    /**
+     * X-drop extension from a seed the caller already knows, seq1[seedi + k]
+     * is aligned to seq2[seedj + k] for every k below seedLength and the
+     * alignment is extended from there in both directions until the score
+     * falls more than getXDrop() below the best score seen. align() in
+     * xdrop mode finds the seed itself (the shared k-mer of seed size on the
+     * diagonal with the most shared k-mers) and falls back to a local
+     * alignment when the sequences share none.
+     */
+    public PairwiseAlignment alignFromSeed(String seq1, String seq2, int seedi, int seedj, int seedLength) {
+        return new XDropAligner(matrix, xdrop).align(seq1.toCharArray(), seq2.toCharArray(), seedi, seedj, seedLength);
+    }
+
+    /**
+     * Fills only a band of diagonals around the diagonals the two sequences
+     * share k-mers on, widening the band and trying again whenever the
+     * traceback touches its edge.
+     *
+     * @return null if the sequences share no k-mers or the band grew to cover
+     * the whole matrix, in which case the full matrix should be used
+     */
+    private BandedMatrix bandedTraceback(char[] seqi, char[] seqj) {
+        final int m = seqi.length;
+        final int n = seqj.length;
+        if (m == 0 || n == 0) {
+            return null;
+        }
+
+        int[] seed = KmerSeeds.diagonalRange(seqi, seqj, seedSize);
+        if (seed == null) {
+            return null;
+        }
+
+        BandedMatrix banded = new BandedMatrix(matrix, mode, workspace);
+        for (long w = bandWidth;; w *= 2) {
+            int lo = (int) Math.max(seed[0] - w, 1 - m);
+            int hi = (int) Math.min(seed[1] + w, n - 1);
+            if (mode == AlignmentMode.global) {
+                lo = Math.min(lo, n - m);
+            }
+            if (mode == AlignmentMode.global || mode == AlignmentMode.glocal) {
+                hi = Math.max(hi, n - m);
+            }
+
+            if (hi - lo + 1 >= n) {
+                return null;
+            }
+            if (banded.align(seqi, seqj, lo, hi)) {
+                return banded;
+            }
+        }
+    }
+
+    /**
+     * Banded version of align(String, String), only cells near the diagonals
+     * the sequences share k-mers on are filled. This is a heuristic: the
+     * band is widened while the path runs along its edge, but the result is
+     * only the best alignment inside the band. It can score lower than
+     * align(String, String) (never higher), and its column scores can be
+     * lower even when the path is the same, see BandedMatrix. Work is roughly
+     * proportional to the sequence length times the band width rather than
+     * the product of the sequence lengths.
+     *
+     * @param seq1 For glocal and overlap modes this sequence is assumed to be the REFERENCE
+     * @param seq2 For glocal and overlap modes this seuqence is assumed to be the QUERY
+     */
+    public PairwiseAlignment alignBanded(String seq1, String seq2) {
+        char[] seqi = seq1.toCharArray();
+        char[] seqj = seq2.toCharArray();
+
+        BandedMatrix banded = (mode == AlignmentMode.xdrop) ? null : bandedTraceback(seqi, seqj);
+        if (banded == null) {
+            return align(seq1, seq2);
+        }
+        return buildAlignment(seqi, seqj, banded.endi, banded.endj, banded.fillFromJ, banded.tailScore, banded.path);
+    }
+
+    /**
+     * Banded version of score(String, String), the score alignBanded
+     * reports, which can be lower than score(String, String)
+     */
+    public PairwiseScore scoreBanded(String seq1, String seq2) {
+        char[] seqi = seq1.toCharArray();
+        char[] seqj = seq2.toCharArray();
+
+        BandedMatrix banded = (mode == AlignmentMode.xdrop) ? null : bandedTraceback(seqi, seqj);
+        if (banded == null) {
+            return score(seq1, seq2);
+        }
+
+        boolean tail = (mode == AlignmentMode.overlap || mode == AlignmentMode.glocal)
+                && (banded.fillFromJ ? banded.endj < seqj.length : banded.endi < seqi.length);
+        return new PairwiseScore(tail ? banded.tailScore : banded.path.scores[0], banded.endi, banded.endj);
+    }
+
+    /**
+     * Banded alignment with the default band width and seed size, see
+     * alignBanded(String, String)
+     */
+    public static PairwiseAlignment alignBanded(String seq1, String seq2, ScoringMatrix scoringMatrix, AlignmentMode mode) {
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).alignBanded(seq1, seq2);
+    }
+
+    /**
+     * Banded score only alignment with the default band width and seed size
+     */
+    public static PairwiseScore scoreBanded(String seq1, String seq2, ScoringMatrix scoringMatrix, AlignmentMode mode) {
+        return new PairwiseAligner(scoringMatrix, mode, localWorkspace.get()).scoreBanded(seq1, seq2);
+    }
+
+    private PairwiseAlignment linearSpaceAlign(String seq1, String seq2, char[] seqi, char[] seqj) {
+        final int gapOpen = matrix.getGapOpen();
+        final int gapExtend = matrix.getGapExtend();
+        int endi = seqi.length, endj = seqj.length;
+        int tailScore = 0;
+
+        if (mode == AlignmentMode.glocal) {
+            PairwiseScore end = score(seq1, seq2);
+            endi = end.getEndi();
+            tailScore = end.getScore();
+        }
+
+        int[] topMatch = new int[endj + 1];
+        int[] topGap = new int[endj + 1];
+        int[] leftMatch = new int[endi + 1];
+        int[] leftGap = new int[endi + 1];
+        topGap[0] = leftGap[0] = Integer.MIN_VALUE;
+        for (int j = 1; j < endj + 1; j++) {
+            topMatch[j] = (j - 1) * gapExtend + gapOpen;
+            topGap[j] = topMatch[j] + gapExtend;
+        }
+        for (int i = 1; i < endi + 1; i++) {
+            leftMatch[i] = (mode == AlignmentMode.global) ? (i - 1) * gapExtend + gapOpen : 0;
+            leftGap[i] = leftMatch[i] + gapExtend;
+        }
+
+        TracePath path = new TracePath();
+        new LinearSpaceTraceback(seqi, seqj, matrix, path).trace(endi, endj, topMatch, topGap, leftMatch, leftGap);
+
+        if (mode == AlignmentMode.global) {
+            int j = endj;
+            for (int index = 0; index < path.length; index++) {
+                if (path.moves[index] != left) {
+                    j--;
+                }
+            }
+            while (j > 0) {
+                j--;
+                path.add(up, topMatch[j]);
+            }
+        }
+
+        return buildAlignment(seqi, seqj, endi, endj, false, tailScore, path);
     }
 }
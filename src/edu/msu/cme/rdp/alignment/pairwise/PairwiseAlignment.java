@@ -16,21 +16,49 @@
  */
 package edu.msu.cme.rdp.alignment.pairwise;
 
+import java.util.AbstractList;
 import java.util.List;
 import java.util.Collections;
 
 /**
+ * A pairwise alignment. Alignments built by PairwiseAligner keep the column
+ * operations run length encoded (see getCigar()) together with the per
+ * column scores, the aligned sequences and the score list are only built
+ * when they're asked for.
  *
  * @author fishjord
  */
 public class PairwiseAlignment {
 
+    /**
+     * Column operations, a residue from both sequences, a gap in seqi or a
+     * gap in seqj. The values are the trace codes PairwiseAligner uses for the
+     * corresponding moves
+     */
+    static final int OP_MATCH = PairwiseAligner.diag;
+    static final int OP_GAP_I = PairwiseAligner.up;
+    static final int OP_GAP_J = PairwiseAligner.left;
+    private static final char[] cigarOps = new char[3];
+
+    static {
+        cigarOps[OP_MATCH] = 'M';
+        cigarOps[OP_GAP_I] = 'I';
+        cigarOps[OP_GAP_J] = 'D';
+    }
     private String alignedSeqi;
     private String alignedSeqj;
     private List<Integer> scores;
     private int starti, endi;
     private int startj, endj;
     private double ident = Double.NaN;
+    private char[] seqi, seqj;
+    /**
+     * Runs of column operations, length << 2 | op, the first column aligns
+     * seqi[firsti] and/or seqj[firstj]
+     */
+    private int[] ops;
+    private int[] columnScores;
+    private int firsti, firstj;
 
     public PairwiseAlignment(String alignedSeqi, String alignedSeqj, List<Integer> scores, int starti, int endi, int startj, int endj) {
         this.alignedSeqi = alignedSeqi;
@@ -43,22 +71,140 @@ public class PairwiseAlignment {
         this.endj = endj;
     }
 
+    PairwiseAlignment(char[] seqi, char[] seqj, int firsti, int firstj, int[] ops, int[] columnScores, int starti, int endi, int startj, int endj) {
+        this.seqi = seqi;
+        this.seqj = seqj;
+        this.firsti = firsti;
+        this.firstj = firstj;
+        this.ops = ops;
+        this.columnScores = columnScores;
+
+        this.starti = starti;
+        this.startj = startj;
+        this.endi = endi;
+        this.endj = endj;
+    }
+
+    private void buildAlignedSeqs() {
+        StringBuilder bufi = new StringBuilder(columnScores.length);
+        StringBuilder bufj = new StringBuilder(columnScores.length);
+        int i = firsti, j = firstj;
+
+        for (int run : ops) {
+            int op = run & 3;
+            for (int count = run >>> 2; count > 0; count--) {
+                bufi.append((op == OP_GAP_I) ? '-' : Character.toUpperCase(seqi[i++]));
+                bufj.append((op == OP_GAP_J) ? '-' : Character.toUpperCase(seqj[j++]));
+            }
+        }
+
+        alignedSeqi = bufi.toString();
+        alignedSeqj = bufj.toString();
+    }
+
     public String getAlignedSeqi() {
+        if (alignedSeqi == null) {
+            buildAlignedSeqs();
+        }
         return alignedSeqi;
     }
 
     public String getAlignedSeqj() {
+        if (alignedSeqj == null) {
+            buildAlignedSeqs();
+        }
         return alignedSeqj;
     }
 
     public int getScore() {
+        if (columnScores != null) {
+            return columnScores[columnScores.length - 1];
+        }
         return scores.get(scores.size() - 1);
     }
 
     public List<Integer> getScores() {
+        if (scores == null) {
+            final int[] values = columnScores;
+            scores = Collections.unmodifiableList(new AbstractList<Integer>() {
+
+                @Override
+                public Integer get(int index) {
+                    return values[index];
+                }
+
+                @Override
+                public int size() {
+                    return values.length;
+                }
+            });
+        }
         return scores;
     }
 
+    /**
+     * The alignment columns as a CIGAR string, seqi is treated as the
+     * reference: M is a residue from both sequences, I a residue only in seqj
+     * and D a residue only in seqi. Unaligned ends in the overlap and glocal
+     * modes are included as I or D columns.
+     */
+    public String getCigar() {
+        if (ops == null) {
+            ops = opsFromAlignedSeqs();
+        }
+
+        StringBuilder ret = new StringBuilder();
+        for (int run : ops) {
+            ret.append(run >>> 2).append(cigarOps[run & 3]);
+        }
+        return ret.toString();
+    }
+
+    private int[] opsFromAlignedSeqs() {
+        OpsBuilder builder = new OpsBuilder();
+        for (int index = 0; index < alignedSeqi.length(); index++) {
+            if (alignedSeqi.charAt(index) == '-') {
+                builder.add(OP_GAP_I, 1);
+            } else if (alignedSeqj.charAt(index) == '-') {
+                builder.add(OP_GAP_J, 1);
+            } else {
+                builder.add(OP_MATCH, 1);
+            }
+        }
+        return builder.toArray();
+    }
+
+    /**
+     * Run length encodes column operations
+     */
+    static final class OpsBuilder {
+
+        private int[] runs = new int[16];
+        private int length;
+
+        void add(int op, int count) {
+            if (count == 0) {
+                return;
+            }
+            if (length > 0 && (runs[length - 1] & 3) == op) {
+                runs[length - 1] += count << 2;
+                return;
+            }
+            if (length == runs.length) {
+                int[] newRuns = new int[length * 2];
+                System.arraycopy(runs, 0, newRuns, 0, length);
+                runs = newRuns;
+            }
+            runs[length++] = (count << 2) | op;
+        }
+
+        int[] toArray() {
+            int[] ret = new int[length];
+            System.arraycopy(runs, 0, ret, 0, length);
+            return ret;
+        }
+    }
+
     public int getEndi() {
         return endi;
     }
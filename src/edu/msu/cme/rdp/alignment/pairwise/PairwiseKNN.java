@@ -32,19 +32,26 @@ import edu.msu.cme.rdp.readseq.utils.kmermatch.ProteinSeqMatch;
 import edu.msu.cme.rdp.readseq.utils.orientation.GoodWordIterator;
 import edu.msu.cme.rdp.readseq.utils.orientation.OrientationChecker;
 import edu.msu.cme.rdp.readseq.utils.orientation.ProteinWordGenerator;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
@@ -61,19 +68,47 @@ public class PairwiseKNN {
     private final int prefilter;  // number of hits to keep from prefilter stages
     private int wordSize;
     private final AlignmentMode mode;
-    private final HashMap<String, Sequence> dbSeqsMap = new HashMap(); // keep all the refseq in memory for pairwise alignment
+    private final List<Sequence> dbSeqs = new ArrayList<Sequence>(); // keep all the refseq in memory for pairwise alignment, in file order with any duplicate names, a reference's position is its rank
+    private final HashMap<String, Sequence> dbSeqsMap = new HashMap(); // by name for getRefSeq
+    private final Map<Sequence, Integer> dbSeqPositions = new IdentityHashMap<Sequence, Integer>();  // file positions of the prefilter's matches
     private final ScoringMatrix matrix;
     private KmerMatchCore kerMatchCore;
+    private KmerIndex refIndex;  // set when refFile is a k-mer index written by the index subcommand
+    private List<Sequence> storedRefs;  // every reference in the index (this shard's part), in file order, when prefilter is 0
+    private final int shard;
+    private final int numShards;
+    private int shardFrom = 0;  // this shard's references are [shardFrom, shardTo) in file order
+    private int shardTo = Integer.MAX_VALUE;
+    static final String columnHeader = "#seqname\tk\torientation\tscore\tident\tquery_start\tquery_end\tquery_length\tref_start\tref_end\tref_seqid\tref_desc";
     private static final String dformat = "%1$.3f";
+    private static final String newline = System.getProperty("line.separator");
     private static final DistanceModel dist = new IdentityDistanceModel();
-    private static final Comparator c = new ResultComparator();
+    private static final Comparator c = new ScoreComparator();
+    static final int defaultCacheSize = 0;  // main and the server only cache when asked, it holds on to every entry's alignments
+    private static final int scoreChunk = 8 * BatchScorer.lanes;  // references scored between raising the pruning threshold
     private final SequenceType refSeqType ;
+    private boolean banded = false;
+    private QueryCache<CachedNeighbors> cache;  // shared by every thread calling findMatch
+    private StrandClassifier strandVote;  // picks the strand(s) getKNN aligns when it checks both
+    private double depthRatio = 0;  // adaptive prefilter, candidates within this ratio of the best k-mer score are aligned
+    private int minDepth;
+    private PrintStream depthLog;
+    private AtomicLongArray depthCounts;  // queries by number of candidates aligned
+    private ReferenceClusters clusters;  // lets a prefilter 0 search skip whole clusters of references
+    private List<Sequence> clusterRefs;  // every reference in file order, the positions clusters refers to
+    private final AtomicLong clusterSkipped = new AtomicLong();
+    private final AtomicLong clusterScored = new AtomicLong();
+    private boolean binaryCigars;
     
     public static class Neighbor {
 
         PairwiseAlignment alignment;
         boolean reverse;
         Sequence dbSeq;
+        int score;
+        boolean rcQuery;  // aligned against the reverse complement of the query passed to getKNN
+        int rank;  // position of dbSeq in the order the references were scored, the lower rank wins ties
+        int position = -1;  // of dbSeq in the reference file, packed references are decoded from it once the neighbor makes the top k
         
         public boolean isReverse(){
             return reverse;
@@ -88,12 +123,69 @@ public class PairwiseKNN {
         }
     }
     
+    /**
+     * The neighbors of an oriented query and whether it had been reversed,
+     * a query in the other orientation gets the same neighbors flipped.
+     * Also keeps the strand votes and what the adaptive prefilter did with
+     * the query so a cache hit is counted and logged the same as the first
+     * time.
+     */
+    private static class CachedNeighbors {
+
+        final boolean isReversed;
+        final List<Neighbor> neighbors;
+        final int[] strandVotes;  // forward and reverse votes, null if there was no strand vote
+        final int depth;  // candidates aligned, -1 if the prefilter didn't run
+        final int found;  // candidates the prefilter found
+        final double best;  // best k-mer score
+
+        CachedNeighbors(boolean isReversed, List<Neighbor> neighbors, int[] strandVotes, int depth, int found, double best) {
+            this.isReversed = isReversed;
+            this.neighbors = neighbors;
+            this.strandVotes = strandVotes;
+            this.depth = depth;
+            this.found = found;
+            this.best = best;
+        }
+
+        List<Neighbor> get(boolean reversed) {
+            List<Neighbor> ret = new ArrayList<Neighbor>(neighbors.size());
+            for (Neighbor cached : neighbors) {
+                Neighbor n = new Neighbor();
+                n.alignment = cached.alignment;
+                n.dbSeq = cached.dbSeq;
+                n.score = cached.score;
+                n.rcQuery = cached.rcQuery;
+                n.rank = cached.rank;
+                n.position = cached.position;
+                n.reverse = (reversed == isReversed) ? cached.reverse : !cached.reverse;
+                ret.add(n);
+            }
+            return ret;
+        }
+    }
+
     public static class ResultComparator implements Comparator<Neighbor> {
         public int compare(Neighbor t, Neighbor t1) {
             return t.alignment.getScore() - t1.alignment.getScore();
         }
     }
 
+    /**
+     * Orders neighbors by their score only alignment score, the alignment
+     * itself is only computed for the neighbors that make the top k. The
+     * lower rank wins ties so the order references are scored in doesn't
+     * matter.
+     */
+    private static class ScoreComparator implements Comparator<Neighbor> {
+        public int compare(Neighbor t, Neighbor t1) {
+            if (t.score != t1.score) {
+                return t.score - t1.score;
+            }
+            return t1.rank - t.rank;
+        }
+    }
+
     private static <T> void insert(T n, List<T> list, Comparator<T> comp, int k) {
         int i = list.size();
         list.add(n);
@@ -110,13 +202,50 @@ public class PairwiseKNN {
 
    
     public PairwiseKNN( File refFile, AlignmentMode mode, int k, int ws, int prefilter) throws IOException{
+        this(refFile, mode, k, ws, prefilter, 0, 1);
+    }
+
+    /**
+     * Searches only shard of numShards equal, contiguous parts of the
+     * references. Each shard's neighbors can be written with
+     * formatPartial and combined by KNNMerge into the neighbors an unsharded
+     * search finds. With a prefilter the references must be a k-mer index,
+     * every shard runs the prefilter over all of them.
+     */
+    public PairwiseKNN( File refFile, AlignmentMode mode, int k, int ws, int prefilter, int shard, int numShards) throws IOException{
+        if (shard < 0 || shard >= numShards) {
+            throw new IllegalArgumentException("Shard " + shard + " is not one of 0 to " + (numShards - 1));
+        }
+        this.shard = shard;
+        this.numShards = numShards;
         this.refFile = refFile;
         this.mode = mode;
         this.k = k;
         this.prefilter = prefilter;
         this.wordSize = ws;
         
+        if (KmerIndex.isIndex(refFile)) {
+            // the index replaces the prefilter, the sequences are only
+            // loaded when every one of them is aligned
+            refIndex = KmerIndex.open(refFile);
+            refSeqType = refIndex.getSequenceType();
+            this.wordSize = refIndex.getWordSize();
+            matrix = (refSeqType == SequenceType.Protein) ? ScoringMatrix.getDefaultProteinMatrix() : ScoringMatrix.getDefaultNuclMatrix();
+            setShardRange(refIndex.size());
+            if ( prefilter == 0) {
+                // scored straight from the packed residues, see scoreNeighbors
+                storedRefs = refIndex.getSequences().asList().subList(shardFrom, shardTo);
+            }
+            return;
+        }
+
+        if (numShards > 1 && prefilter > 0) {
+            throw new IllegalArgumentException("Sharding with a prefilter needs a k-mer index of the references (see the index subcommand), or prefilter 0");
+        }
         refSeqType = SeqUtils.guessSequenceType(refFile);
+        if (numShards > 1) {
+            setShardRange(countSeqs(refFile));
+        }
         parseRefSeq(refFile);
         if ( refSeqType == SequenceType.Protein){
             matrix = ScoringMatrix.getDefaultProteinMatrix();
@@ -124,7 +253,7 @@ public class PairwiseKNN {
                 this.wordSize = ProteinWordGenerator.WORDSIZE;
             }
             if ( prefilter > 0){
-                kerMatchCore = new ProteinSeqMatch(new ArrayList<Sequence>(dbSeqsMap.values()), wordSize);
+                kerMatchCore = new ProteinSeqMatch(dbSeqs, wordSize);
             }
         } else {
             matrix = ScoringMatrix.getDefaultNuclMatrix();
@@ -132,7 +261,7 @@ public class PairwiseKNN {
                 this.wordSize = GoodWordIterator.DEFAULT_WORDSIZE ;
             }
             if ( prefilter > 0){
-                kerMatchCore = new NuclSeqMatch(new ArrayList<Sequence>(dbSeqsMap.values()), wordSize);
+                kerMatchCore = new NuclSeqMatch(dbSeqs, wordSize);
             }
         }
     }
@@ -140,15 +269,44 @@ public class PairwiseKNN {
     private synchronized void parseRefSeq(File file) throws IOException{
         SeqReader reader = new SequenceReader(file);
         Sequence seq;
-        while ((seq = reader.readNextSequence()) != null) {
-            dbSeqsMap.put(seq.getSeqName(), seq);
+        int index = 0;
+        while ((seq = reader.readNextSequence()) != null && index < shardTo) {
+            if (index++ >= shardFrom) {
+                dbSeqs.add(seq);
+                dbSeqsMap.put(seq.getSeqName(), seq);
+                if (prefilter > 0) {
+                    dbSeqPositions.put(seq, index - 1);
+                }
+            }
+        }
+        reader.close();
+    }
+
+    private static int countSeqs(File file) throws IOException {
+        SeqReader reader = new SequenceReader(file);
+        int ret = 0;
+        while (reader.readNextSequence() != null) {
+            ret++;
         }
         reader.close();
+        return ret;
+    }
+
+    private void setShardRange(int numRefs) {
+        shardFrom = (int) ((long) numRefs * shard / numShards);
+        shardTo = (int) ((long) numRefs * (shard + 1) / numShards);
     }
     
     public Sequence getRefSeq(String seqName){
+        if (refIndex != null) {
+            return refIndex.getSequences().getSequence(seqName);
+        }
         return this.dbSeqsMap.get(seqName);
     }
+
+    public SequenceType getRefSeqType(){
+        return refSeqType;
+    }
     
     public String getRefFilename(){
         return this.refFile.getName();
@@ -157,6 +315,145 @@ public class PairwiseKNN {
     public int getK(){
         return k;
     }
+
+    /**
+     * Use banded alignment around shared k-mer diagonals, much faster for
+     * near identical sequences but may miss the optimal alignment otherwise
+     */
+    public void setBanded(boolean banded){
+        this.banded = banded;
+    }
+    /**
+     * Keep the neighbors of up to maxQueries distinct queries so repeated
+     * queries (common in amplicon data) aren't aligned again, 0 turns the
+     * cache off
+     */
+    public void setCacheSize(int maxQueries) {
+        cache = (maxQueries > 0) ? new QueryCache<CachedNeighbors>(maxQueries) : null;
+    }
+
+    /**
+     * When getKNN would align both strands of a nucleotide query, only
+     * align the one a k-mer vote against every reference (all shards)
+     * clearly favors. Faster, but a query whose vote picks the wrong strand
+     * gets worse neighbors.
+     */
+    public void setStrandVote(boolean strandVote) throws IOException {
+        if (!strandVote || refSeqType != SequenceType.Nucleotide) {
+            this.strandVote = null;
+            return;
+        }
+        StrandClassifier classifier = new StrandClassifier(StrandClassifier.defaultWordSize);
+        if (refIndex != null) {
+            for (Sequence seq : refIndex.getSequences().asList()) {
+                classifier.add(seq.getSeqString());
+            }
+        } else {
+            SeqReader reader = new SequenceReader(refFile);
+            Sequence seq;
+            while ((seq = reader.readNextSequence()) != null) {
+                classifier.add(seq.getSeqString());
+            }
+            reader.close();
+        }
+        this.strandVote = classifier;
+    }
+
+    /**
+     * Align only the prefilter candidates whose k-mer score is at least
+     * ratio times the best candidate's, but no fewer than minDepth (and no
+     * more than the prefilter size). Each query's depth goes to log if it
+     * isn't null, as name, candidates aligned, candidates found and best
+     * k-mer score.
+     */
+    public void setAdaptivePrefilter(double ratio, int minDepth, PrintStream log) {
+        if (ratio <= 0 || ratio > 1) {
+            throw new IllegalArgumentException("Adaptive prefilter ratio must be in (0, 1]");
+        }
+        if (prefilter == 0) {
+            throw new IllegalArgumentException("Adaptive prefilter needs a prefilter");
+        }
+        this.depthRatio = ratio;
+        this.minDepth = Math.max(minDepth, 1);
+        this.depthLog = log;
+        this.depthCounts = new AtomicLongArray(prefilter + 1);
+    }
+
+    /**
+     * Histogram of the adaptive prefilter's depths, null if it's off
+     */
+    public String getDepthStats() {
+        if (depthCounts == null) {
+            return null;
+        }
+        StringBuilder ret = new StringBuilder("Prefilter depth (depth:queries):");
+        long queries = 0, sum = 0;
+        for (int depth = 0; depth < depthCounts.length(); depth++) {
+            long count = depthCounts.get(depth);
+            if (count > 0) {
+                ret.append(" ").append(depth).append(":").append(count);
+                queries += count;
+                sum += count * depth;
+            }
+        }
+        ret.append(", mean ").append(String.format("%1$.2f", (queries == 0) ? 0.0 : (double) sum / queries));
+        return ret.toString();
+    }
+
+    /**
+     * Skip clusters of references (see ReferenceClusters and the cluster
+     * subcommand) that can't hold a neighbor of the query. Doesn't change
+     * the neighbors found, only works without a prefilter, without shards
+     * and with global or glocal alignment.
+     */
+    public void setClusters(ReferenceClusters clusters) {
+        if (clusters == null) {
+            this.clusters = null;
+            this.clusterRefs = null;
+            return;
+        }
+        if (prefilter != 0 || numShards > 1) {
+            throw new IllegalArgumentException("Reference clusters need prefilter 0 and no shards");
+        }
+        if (mode != AlignmentMode.global && mode != AlignmentMode.glocal) {
+            throw new IllegalArgumentException("Reference clusters only work with global or glocal alignment, not " + mode);
+        }
+        List<Sequence> refs = (refIndex != null) ? storedRefs : dbSeqs;
+        if (!clusters.prepare(refs, matrix)) {
+            throw new IllegalArgumentException("The scoring matrix gives no bound on a cluster's scores");
+        }
+        this.clusters = clusters;
+        this.clusterRefs = refs;
+    }
+
+    /**
+     * References skipped and scored by cluster, null if there are no
+     * clusters
+     */
+    public String getClusterStats() {
+        if (clusters == null) {
+            return null;
+        }
+        long skipped = clusterSkipped.get();
+        long total = skipped + clusterScored.get();
+        return "Reference clusters: " + skipped + " of " + total + " references skipped ("
+                + String.format(dformat, (total == 0) ? 0.0 : (double) skipped / total) + ")";
+    }
+
+    /**
+     * Vote counts of the strand classifier, null if it's off
+     */
+    public StrandClassifier getStrandVote() {
+        return strandVote;
+    }
+
+    /**
+     * Hit and miss counts of the query cache, null if there isn't one
+     */
+    public QueryCache<?> getCache() {
+        return cache;
+    }
+
     /**
      * 
      * @param seq
@@ -168,45 +465,214 @@ public class PairwiseKNN {
      * @throws OverlapCheckFailedException 
      */
     public List<Neighbor> getKNN(Sequence seq, Collection<Sequence> refList, boolean removeBaseN, boolean isSeqReversed, boolean checkReverse) throws IOException, OverlapCheckFailedException {
-        List<Neighbor> ret = new ArrayList();
-        Neighbor n;
+        return getKNN(seq, refList, removeBaseN, isSeqReversed, checkReverse, null);
+    }
+
+    /**
+     * Like getKNN, if strandVotes isn't null the strand vote's forward and
+     * reverse votes go in it
+     */
+    private List<Neighbor> getKNN(Sequence seq, Collection<Sequence> refList, boolean removeBaseN, boolean isSeqReversed, boolean checkReverse, int[] strandVotes) throws IOException, OverlapCheckFailedException {
         if ( removeBaseN){
             Sequence temp = new Sequence(seq.getSeqName(), seq.getDesc(), seq.getSeqString().toUpperCase().replace("N", ""));
             seq = temp;
         }
         
-        for (Sequence dbSeq : refList) {
-            n = new Neighbor();
-            n.dbSeq = dbSeq;
-            PairwiseAlignment fwd = PairwiseAligner.align(n.dbSeq.getSeqString(), seq.getSeqString(), matrix, mode);
-            if (refSeqType == SequenceType.Nucleotide &&  checkReverse) {
-                            
-                PairwiseAlignment rc = PairwiseAligner.align(n.dbSeq.getSeqString(), IUBUtilities.reverseComplement(seq.getSeqString()), matrix, mode);
-                if (rc.getScore() > fwd.getScore()) {
-                    n.alignment = rc;
-                    n.reverse = isSeqReversed ? false :true;
-                    double ident = 1 - dist.getDistance(rc.getAlignedSeqi().getBytes(), rc.getAlignedSeqj().getBytes(), 0);
-                    rc.setIdent(ident);
-                } else {
-                    n.alignment = fwd;
-                    n.reverse = isSeqReversed ? true : false;
-                    double ident = 1 - dist.getDistance(fwd.getAlignedSeqi().getBytes(), fwd.getAlignedSeqj().getBytes(), 0);
-                    fwd.setIdent(ident);
-                }
-               
-            } else {
-                double ident = 1 - dist.getDistance(fwd.getAlignedSeqi().getBytes(), fwd.getAlignedSeqj().getBytes(), 0);
-                fwd.setIdent(ident);
-                n.alignment = fwd;
-                n.reverse = isSeqReversed;
+        String querySeq = seq.getSeqString();
+        StrandClassifier.Strand strand = StrandClassifier.Strand.both;
+        if (refSeqType == SequenceType.Nucleotide && checkReverse && strandVote != null) {
+            int[] votes = strandVote.votes(querySeq);
+            strand = strandVote.count(votes[0], votes[1]);
+            if (strandVotes != null) {
+                System.arraycopy(votes, 0, strandVotes, 0, 2);
             }
+        }
+        String rcQuerySeq = (refSeqType == SequenceType.Nucleotide && checkReverse && strand != StrandClassifier.Strand.forward) ? IUBUtilities.reverseComplement(querySeq) : null;
 
-            insert(n, ret, c, k);
+        List<Neighbor> ret;
+        if (strand == StrandClassifier.Strand.reverse) {
+            // as if the reverse complement were the only strand
+            ret = scoreNeighbors(rcQuerySeq, null, refList, !isSeqReversed);
+            for (Neighbor n : ret) {
+                n.rcQuery = true;
+            }
+        } else {
+            ret = scoreNeighbors(querySeq, rcQuerySeq, refList, isSeqReversed);
         }
+        alignNeighbors(ret, querySeq, rcQuerySeq);
                     
         return ret;
     }  
+
+    /**
+     * Phase one, score only alignments of the query (and its reverse
+     * complement if rcQuerySeq isn't null) against every reference, returns
+     * the k best neighbors without alignments. Once k neighbors are held
+     * references that can't beat the k-th best are pruned, the threshold is
+     * raised after each chunk of references.
+     */
+    private List<Neighbor> scoreNeighbors(String querySeq, String rcQuerySeq, Collection<Sequence> refList, boolean isSeqReversed) {
+        List<Neighbor> ret = new ArrayList();
+        // the indexed references are decoded straight into the matrix's
+        // codes, a Sequence is only made for those that make the list
+        boolean packed = refList == storedRefs && !banded;
+        if (clusters != null && refList == clusterRefs) {
+            scoreClusters(querySeq, rcQuerySeq, packed, isSeqReversed, ret);
+        } else {
+            List<Sequence> refs = (refList == storedRefs) ? storedRefs : new ArrayList<Sequence>(refList);
+            scoreNeighbors(querySeq, rcQuerySeq, refs, null, packed, isSeqReversed, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Scores the clusters' members best bound first, skipping the clusters
+     * whose bound is below the k-th best score so far
+     */
+    private void scoreClusters(String querySeq, String rcQuerySeq, boolean packed, boolean isSeqReversed, List<Neighbor> ret) {
+        final int[] bounds = clusters.scoreBounds(matrix.encode(querySeq.toCharArray()),
+                (rcQuerySeq != null) ? matrix.encode(rcQuerySeq.toCharArray()) : null);
+        Integer[] order = new Integer[bounds.length];
+        for (int cl = 0; cl < order.length; cl++) {
+            order[cl] = cl;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                return (bounds[a] > bounds[b]) ? -1 : (bounds[a] < bounds[b]) ? 1 : a - b;
+            }
+        });
+
+        for (Integer cl : order) {
+            final int[] members = clusters.getMembers(cl);
+            if (ret.size() == k && bounds[cl] < ret.get(k - 1).score) {
+                clusterSkipped.addAndGet(members.length);
+                continue;
+            }
+            clusterScored.addAndGet(members.length);
+            List<Sequence> refs = new AbstractList<Sequence>() {
+
+                @Override
+                public Sequence get(int index) {
+                    return clusterRefs.get(members[index]);
+                }
+
+                @Override
+                public int size() {
+                    return members.length;
+                }
+            };
+            scoreNeighbors(querySeq, rcQuerySeq, refs, members, packed, isSeqReversed, ret);
+        }
+    }
+
+    /**
+     * Adds the references that make the top k to ret, ranks are the
+     * references' positions in file order or null if refs are in file order
+     * from the first
+     */
+    private void scoreNeighbors(String querySeq, String rcQuerySeq, List<Sequence> refs, int[] ranks, boolean packed, boolean isSeqReversed, List<Neighbor> ret) {
+        Neighbor n;
+        for (int start = 0; start < refs.size(); start += scoreChunk) {
+            List<Sequence> chunk = refs.subList(start, Math.min(start + scoreChunk, refs.size()));
+            // out of file order a tie with the k-th best can still win on rank
+            int minScore = (ret.size() == k) ? ret.get(k - 1).score + ((ranks == null) ? 1 : 0) : Integer.MIN_VALUE;
+            int[] fwd;
+            int[] rc;
+            if (packed) {
+                byte[][] codes = new byte[chunk.size()][];
+                for (int index = 0; index < codes.length; index++) {
+                    codes[index] = refIndex.getSequences().decodeEncoded(shardFrom + rank(ranks, start + index), matrix);
+                }
+                fwd = PairwiseAligner.scoreAgainstMany(querySeq, codes, matrix, mode, minScore);
+                rc = (rcQuerySeq != null) ? PairwiseAligner.scoreAgainstMany(rcQuerySeq, codes, matrix, mode, minScore) : null;
+            } else {
+                List<String> refSeqs = new ArrayList<String>(chunk.size());
+                for (Sequence dbSeq : chunk) {
+                    refSeqs.add(dbSeq.getSeqString());
+                }
+                fwd = score(querySeq, refSeqs, minScore);
+                rc = (rcQuerySeq != null) ? score(rcQuerySeq, refSeqs, minScore) : null;
+            }
+
+            for (int index = 0; index < chunk.size(); index++) {
+                // a pruned score is below the k-th best so it can't make the
+                // list, whichever orientation wasn't pruned decides
+                boolean fwdPruned = fwd[index * 3 + 1] < 0;
+                boolean rcPruned = rc == null || rc[index * 3 + 1] < 0;
+                if (fwdPruned && rcPruned) {
+                    continue;
+                }
+
+                n = new Neighbor();
+                n.rank = rank(ranks, start + index);
+                if (packed) {
+                    n.position = shardFrom + n.rank;
+                } else {
+                    n.dbSeq = chunk.get(index);
+                }
+                if (rc != null) {
+
+                    if (!rcPruned && (fwdPruned || rc[index * 3] > fwd[index * 3])) {
+                        n.score = rc[index * 3];
+                        n.rcQuery = true;
+                        n.reverse = isSeqReversed ? false :true;
+                    } else {
+                        n.score = fwd[index * 3];
+                        n.reverse = isSeqReversed ? true : false;
+                    }
+
+                } else {
+                    n.score = fwd[index * 3];
+                    n.reverse = isSeqReversed;
+                }
+
+                insert(n, ret, c, k);
+            }
+        }
+    }
+
+    private static int rank(int[] ranks, int index) {
+        return (ranks == null) ? index : ranks[index];
+    }
+
+    /**
+     * Phase two, traceback and identity for the neighbors that made the top
+     * k, in the orientation phase one picked. Neighbors scored from the
+     * packed references get their Sequence here.
+     */
+    private void alignNeighbors(List<Neighbor> neighbors, String querySeq, String rcQuerySeq) throws OverlapCheckFailedException {
+        for (Neighbor neighbor : neighbors) {
+            if (neighbor.dbSeq == null) {
+                neighbor.dbSeq = refIndex.getSequences().getSequence(neighbor.position);
+            }
+            String alignQuery = neighbor.rcQuery ? rcQuerySeq : querySeq;
+            PairwiseAlignment alignment = banded ? PairwiseAligner.alignBanded(neighbor.dbSeq.getSeqString(), alignQuery, matrix, mode)
+                    : PairwiseAligner.align(neighbor.dbSeq.getSeqString(), alignQuery, matrix, mode);
+            double ident = 1 - dist.getDistance(alignment.getAlignedSeqi().getBytes(), alignment.getAlignedSeqj().getBytes(), 0);
+            alignment.setIdent(ident);
+            neighbor.alignment = alignment;
+        }
+    }
     
+    /**
+     * Score, endi and endj of the query against each reference, see
+     * PairwiseAligner.scoreAgainstMany(String, List, int)
+     */
+    private int[] score(String querySeq, List<String> refSeqs, int minScore) {
+        if (banded) {
+            int[] ret = new int[refSeqs.size() * 3];
+            for (int index = 0; index < refSeqs.size(); index++) {
+                PairwiseScore score = PairwiseAligner.scoreBanded(refSeqs.get(index), querySeq, matrix, mode);
+                ret[index * 3] = score.getScore();
+                ret[index * 3 + 1] = score.getEndi();
+                ret[index * 3 + 2] = score.getEndj();
+            }
+            return ret;
+        }
+        return PairwiseAligner.scoreAgainstMany(querySeq, refSeqs, matrix, mode, minScore);
+    }
+
     public List<Neighbor> findMatch(Sequence seq, boolean removeBaseN) throws IOException, OverlapCheckFailedException {
         boolean isReversed = false;
         if ( this.refSeqType == SequenceType.Nucleotide ){
@@ -216,47 +682,219 @@ public class PairwiseKNN {
                 seq = new Sequence(seq.getSeqName(), seq.getDesc(), IUBUtilities.reverseComplement(seq.getSeqString()));
             }
         }
+
+        // the prefilter sees the sequence as read and only the aligner sees
+        // it without Ns, so the key is both (a tab is never in a sequence)
+        String cacheKey = removeBaseN ? seq.getSeqString() + "\tn" : seq.getSeqString();
+        CachedNeighbors ret = (cache != null) ? cache.get(cacheKey) : null;
+        if (ret == null) {
+            ret = findNeighbors(seq, removeBaseN, isReversed);
+            if (cache != null) {
+                cache.put(cacheKey, ret);
+            }
+        } else if (ret.strandVotes != null) {
+            // a hit is counted like the query getKNN voted on the first time
+            strandVote.count(ret.strandVotes[0], ret.strandVotes[1]);
+        }
+        if (ret.depth >= 0) {
+            countDepth(seq, ret.depth, ret.found, ret.best);
+        }
+        return ret.get(isReversed);
+    }
+
+    /**
+     * How many of the prefilter's candidates (k-mer scores best first) to
+     * align, all of them unless the prefilter is adaptive
+     */
+    private int prefilterDepth(double[] scores) {
+        if (depthRatio <= 0) {
+            return scores.length;
+        }
+        int depth = 0;
+        while (depth < scores.length && scores[depth] >= depthRatio * scores[0]) {
+            depth++;
+        }
+        return Math.min(scores.length, Math.max(depth, minDepth));
+    }
+
+    /**
+     * Adds a query's adaptive prefilter depth to the histogram and the log
+     */
+    private void countDepth(Sequence seq, int depth, int found, double best) {
+        depthCounts.incrementAndGet(depth);
+        if (depthLog != null) {
+            synchronized (depthLog) {
+                depthLog.println(seq.getSeqName() + "\t" + depth + "\t" + found + "\t" + best);
+            }
+        }
+    }
+
+    private CachedNeighbors findNeighbors(Sequence seq, boolean removeBaseN, boolean isReversed) throws IOException, OverlapCheckFailedException {
         if ( prefilter == 0) {   // do not pre-filter the reference seqs, so need to check both orientation
-            return getKNN(seq, dbSeqsMap.values(), removeBaseN, isReversed, true);
+            Collection<Sequence> refList = (clusterRefs != null) ? clusterRefs : (refIndex != null) ? storedRefs : dbSeqs;
+            int[] strandVotes = (strandVote != null) ? new int[2] : null;
+            List<Neighbor> ret = getKNN(seq, refList, removeBaseN, isReversed, true, strandVotes);
+            for (Neighbor n : ret) {
+                n.rank += shardFrom;
+                n.position = n.rank;
+            }
+            return new CachedNeighbors(isReversed, ret, strandVotes, -1, 0, 0);
         }else {
             List<Sequence> refList = new ArrayList<Sequence>();
-            ArrayList<ProteinSeqMatch.BestMatch> topKMatches= kerMatchCore.findTopKMatch(seq, prefilter);
-                        
-            for (KmerMatchCore.BestMatch bestTarget : topKMatches) {
-                refList.add(bestTarget.getBestMatch());
+            double[] scores;
+            int depth;
+            if (refIndex != null) {
+                // ranked by the prefilter over every reference, so shards
+                // agree on the ranks
+                int[] shared = new int[prefilter];
+                int[] top = refIndex.findTopK(seq, prefilter, shared);
+                scores = new double[top.length];
+                for (int t = 0; t < top.length; t++) {
+                    scores[t] = shared[t];
+                }
+                depth = prefilterDepth(scores);
+                int[] ranks = new int[depth];
+                for (int t = 0; t < depth; t++) {
+                    if (top[t] >= shardFrom && top[t] < shardTo) {
+                        ranks[refList.size()] = t;
+                        refList.add(refIndex.getSequences().getSequence(top[t]));
+                    }
+                }
+                List<Neighbor> ret = getKNN(seq, refList, removeBaseN, isReversed, false);
+                for (Neighbor n : ret) {
+                    n.rank = ranks[n.rank];
+                    n.position = top[n.rank];
+                }
+                return prefiltered(isReversed, ret, depth, scores);
+            } else {
+                ArrayList<ProteinSeqMatch.BestMatch> topKMatches= kerMatchCore.findTopKMatch(seq, prefilter);
+                scores = new double[topKMatches.size()];
+                for (int t = 0; t < scores.length; t++) {
+                    scores[t] = topKMatches.get(t).getBestScore();
+                }
+                depth = prefilterDepth(scores);
+
+                for (KmerMatchCore.BestMatch bestTarget : topKMatches.subList(0, depth)) {
+                    refList.add(bestTarget.getBestMatch());
+                }
             }
-            return getKNN(seq, refList, removeBaseN, isReversed, false);
+            List<Neighbor> ret = getKNN(seq, refList, removeBaseN, isReversed, false);
+            for (Neighbor n : ret) {
+                Integer position = dbSeqPositions.get(n.dbSeq);
+                n.position = (position != null) ? position : -1;
+            }
+            return prefiltered(isReversed, ret, depth, scores);
         }        
     }
+
+    private CachedNeighbors prefiltered(boolean isReversed, List<Neighbor> neighbors, int depth, double[] scores) {
+        return (depthRatio > 0) ? new CachedNeighbors(isReversed, neighbors, null, depth, scores.length, (scores.length > 0) ? scores[0] : 0)
+                : new CachedNeighbors(isReversed, neighbors, null, -1, 0, 0);
+    }
     
-    private synchronized void printAlignment(Sequence seq, List<Neighbor> alignments, PrintStream out) throws IOException{
-        Neighbor n;
-        PairwiseAlignment alignment;
+    /**
+     * The settings part of the output header
+     */
+    String describe() {
+        return "k: " + k + " mode: " + mode + " usePrefilter: " + prefilter;
+    }
+
+    /**
+     * The output lines for the neighbors of one query
+     */
+    String formatNeighbors(Sequence seq, List<Neighbor> alignments) {
+        StringBuilder out = new StringBuilder();
         for (int index = 0; index < alignments.size(); index++) {
-            n = alignments.get(index);
-            alignment = n.alignment;
-
-            out.println("@" + seq.getSeqName()
-                    + "\t" + (index + 1)
-                    + "\t" + (n.reverse ? "-" : "+")
-                    + "\t" + alignment.getScore()
-                    + "\t" + String.format(dformat,alignment.getIdent())
-                    + "\t" + alignment.getStartj()
-                    + "\t" + alignment.getEndj()
-                    + "\t" + seq.getSeqString().length()
-                    + "\t" + alignment.getStarti()
-                    + "\t" + alignment.getEndi()
-                    + "\t" + n.dbSeq.getSeqName()
-                    + "\t" + n.dbSeq.getDesc());
-
-            out.println(">" + alignment.getAlignedSeqj());
-            out.println(">" + alignment.getAlignedSeqi());
+            out.append("@" + seq.getSeqName() + "\t" + (index + 1));
+            out.append(formatNeighbor(seq, alignments.get(index)));
         }
+
+        return out.toString();
+    }
+
+    /**
+     * A neighbor's output lines after its position in the top k
+     */
+    private String formatNeighbor(Sequence seq, Neighbor n) {
+        StringBuilder out = new StringBuilder();
+        PairwiseAlignment alignment = n.alignment;
+
+        out.append("\t" + (n.reverse ? "-" : "+")
+                + "\t" + alignment.getScore()
+                + "\t" + String.format(dformat,alignment.getIdent())
+                + "\t" + alignment.getStartj()
+                + "\t" + alignment.getEndj()
+                + "\t" + seq.getSeqString().length()
+                + "\t" + alignment.getStarti()
+                + "\t" + alignment.getEndi()
+                + "\t" + n.dbSeq.getSeqName()
+                + "\t" + n.dbSeq.getDesc()).append(newline);
+
+        out.append(">").append(alignment.getAlignedSeqj()).append(newline);
+        out.append(">").append(alignment.getAlignedSeqi()).append(newline);
+
+        return out.toString();
+    }
+
+    /**
+     * Starts a binary output (see KNNBinary), writes its header and
+     * reference table, after which formatBinary can be used
+     */
+    void writeBinaryHeader(DataOutputStream out, String header, boolean cigars) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<String> descs = new ArrayList<String>();
+        if (refIndex != null) {
+            PackedSequenceStore store = refIndex.getSequences();
+            for (int index = 0; index < store.size(); index++) {
+                names.add(store.getName(index));
+                descs.add(store.getDesc(index));
+            }
+        } else {
+            for (Sequence seq : dbSeqs) {
+                names.add(seq.getSeqName());
+                descs.add(seq.getDesc());
+            }
+        }
+        binaryCigars = cigars;
+        KNNBinary.writeHeader(out, header, cigars, names, descs);
+    }
+
+    /**
+     * One query's block in a binary output, queryIndex is its position in
+     * the query file
+     */
+    byte[] formatBinary(int queryIndex, Sequence seq, List<Neighbor> alignments) throws IOException {
+        int[] refs = new int[alignments.size()];
+        for (int index = 0; index < refs.length; index++) {
+            refs[index] = alignments.get(index).position;
+            if (refs[index] < 0) {
+                throw new IOException("No reference file position for " + alignments.get(index).dbSeq.getSeqName());
+            }
+        }
+        return KNNBinary.formatQuery(queryIndex, seq.getSeqName(), seq.getSeqString().length(), alignments, refs, binaryCigars);
+    }
+
+    /**
+     * One query's record in a shard's partial results, see KNNMerge
+     */
+    byte[] formatPartial(Sequence seq, List<Neighbor> alignments) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBoolean(true);
+        Utf8Strings.write(out, seq.getSeqName());
+        out.writeInt(alignments.size());
+        for (Neighbor n : alignments) {
+            out.writeInt(n.rank);
+            out.writeInt(n.score);
+            Utf8Strings.write(out, formatNeighbor(seq, n));
+        }
+        out.close();
+        return bytes.toByteArray();
     }
    
     public static void main(String[] args) throws Exception { 
         final int maxThreads;
-        final int maxTasks = 1000;
+        final int maxTasks = 1000;  // queries read ahead of the writer
         File queryFile;
         File refFile;
         AlignmentMode mode = AlignmentMode.glocal;
@@ -264,10 +902,23 @@ public class PairwiseKNN {
         int wordSize = 0 ;
         int prefilter = 10 ;  //  The top p closest protein targets
         final boolean removeBaseN;
+        boolean banded = false;
+        boolean ordered = false;
+        int cacheSize = defaultCacheSize;
+        boolean strandVote = false;
+        boolean useClusters = false;
+        boolean binary = false;
+        boolean cigars = false;
+        double depthRatio = 0;
+        int minDepth = 0;
+        PrintStream depthLog = null;
+        int shard = 0;
+        int numShards = 1;
+        final OutputStream rawOut;  // the pipeline writes here, a PrintStream would hide a failed write
         final PrintStream out ;
 
         Options options = new Options();
-        options.addOption("m", "mode", true, "Alignment mode {global, glocal, local, overlap, overlap_trim} (default= glocal)");
+        options.addOption("m", "mode", true, "Alignment mode {global, glocal, local, overlap, overlap_trim, xdrop} (default= glocal), xdrop extends from a shared k-mer until the score drops too far below the best");
         options.addOption("k", true, "K-nearest neighbors to return. (default = 1)");
         options.addOption("o", "out", true, "Redirect output to file instead of stdout");
         options.addOption("p", "prefilter", true, "The top p closest targets from kmer prefilter step. Set p=0 to disable the prefilter step. (default = 10) ");
@@ -275,6 +926,17 @@ public class PairwiseKNN {
                 + " for protein, " + GoodWordIterator.DEFAULT_WORDSIZE  + " for nucleotide)");
         options.addOption("n", false, "Remove Ns from the query. Default is false");
         options.addOption("t", "threads", true, "#Threads to use. This process is CPU intensive. (default 1)");
+        options.addOption("b", "banded", false, "Only align a band around the diagonals the query and reference share k-mers on, faster for near identical sequences but may miss the best alignment. Default is false");
+        options.addOption("r", "ordered", false, "Write the results in query file order when using more than one thread. Default is false");
+        options.addOption("s", "shard", true, "i/N, only search the i-th (from 0) of N equal parts of the references and write binary partial results for knn-merge. With a prefilter dbFile must be a k-mer index");
+        options.addOption("v", "strand-vote", false, "With -p 0 only align the strand of a nucleotide query that a k-mer vote clearly favors, both when the vote is close. Default is false");
+        options.addOption("a", "adaptive", true, "Adaptive prefilter, only align the prefilter candidates whose k-mer score is at least this fraction (0 to 1] of the best, at most p of them. Default is off");
+        options.addOption(null, "min-depth", true, "With --adaptive align at least this many candidates. (default k)");
+        options.addOption(null, "depth-log", true, "With --adaptive write each query's name, candidates aligned, candidates found and best k-mer score to this file");
+        options.addOption("f", "out-format", true, "Output format {text, binary} (default text), binary writes fixed width records that knn-view prints as text");
+        options.addOption(null, "cigar", false, "With --out-format binary also write each alignment's CIGAR and residues, so knn-view can print the aligned sequences. Default is false");
+        options.addOption("C", "clusters", false, "With -p 0 skip the clusters of references written by the cluster subcommand (dbFile.clusters) that can't hold a neighbor, global and glocal mode only. Default is false");
+        options.addOption("c", "cache", true, "Remember the neighbors of up to this many distinct queries, 0 turns the cache off. (default " + defaultCacheSize + ")");
 
         try {
             CommandLine line = new PosixParser().parse(options, args);
@@ -313,15 +975,64 @@ public class PairwiseKNN {
             }
             
             if (line.hasOption("out")) {
-                out = new PrintStream(line.getOptionValue("out"));
+                rawOut = new BufferedOutputStream(new FileOutputStream(line.getOptionValue("out")));
             }else {
-                out = new PrintStream(System.out);
+                rawOut = new BufferedOutputStream(System.out);
             }
+            out = new PrintStream(rawOut);
             if (line.hasOption('n')) {
                 removeBaseN = true;
             }else {
                 removeBaseN = false;
             }
+            if (line.hasOption("banded")) {
+                banded = true;
+            }
+            if (line.hasOption("ordered")) {
+                ordered = true;
+            }
+            if (line.hasOption("cache")) {
+                cacheSize = Integer.parseInt(line.getOptionValue("cache"));
+            }
+            strandVote = line.hasOption("strand-vote");
+            useClusters = line.hasOption("clusters");
+            if (line.hasOption("out-format")) {
+                String format = line.getOptionValue("out-format");
+                if (!format.equals("text") && !format.equals("binary")) {
+                    throw new Exception("Unknown output format " + format);
+                }
+                binary = format.equals("binary");
+                if (binary && line.hasOption("shard")) {
+                    throw new Exception("shard runs always write binary partial results, out-format can't be used with shard");
+                }
+            }
+            cigars = line.hasOption("cigar");
+            if (useClusters && (prefilter != 0 || line.hasOption("shard"))) {
+                throw new Exception("clusters needs prefilter 0 and no shards");
+            }
+            if (line.hasOption("adaptive")) {
+                depthRatio = Double.parseDouble(line.getOptionValue("adaptive"));
+                if (depthRatio <= 0 || depthRatio > 1 || prefilter == 0) {
+                    throw new Exception("adaptive must be in (0, 1] and needs a prefilter");
+                }
+                minDepth = line.hasOption("min-depth") ? Integer.parseInt(line.getOptionValue("min-depth")) : k;
+                if (line.hasOption("depth-log")) {
+                    depthLog = new PrintStream(new BufferedOutputStream(new FileOutputStream(line.getOptionValue("depth-log"))));
+                }
+            }
+            if (line.hasOption("shard")) {
+                String[] tokens = line.getOptionValue("shard").split("/");
+                if (tokens.length != 2) {
+                    throw new Exception("shard must be i/N");
+                }
+                shard = Integer.parseInt(tokens[0]);
+                numShards = Integer.parseInt(tokens[1]);
+                if (shard < 0 || shard >= numShards) {
+                    throw new Exception("shard i/N must have 0 <= i < N");
+                }
+                // knn-merge reads the shards in lock step
+                ordered = true;
+            }
             args = line.getArgs();
 
             if (args.length != 2) {
@@ -332,50 +1043,78 @@ public class PairwiseKNN {
             refFile = new File(args[1]);            
 
         } catch (Exception e) {
-            new HelpFormatter().printHelp("PairwiseKNN <options> <queryFile> <dbFile>", options);
+            new HelpFormatter().printHelp("PairwiseKNN <options> <queryFile> <dbFile>\n  dbFile can be a sequence file or a k-mer index written by the index subcommand", options);
             System.err.println("ERROR: " + e.getMessage());
             return;
         }
         
         SequenceType querySeqType = SeqUtils.guessSequenceType(queryFile);
-        SequenceType refSeqType = SeqUtils.guessSequenceType(refFile);
+        final PairwiseKNN theObj = new PairwiseKNN( refFile, mode, k, wordSize, prefilter, shard, numShards);
 
-        if ( querySeqType !=  refSeqType) {
+        if ( querySeqType !=  theObj.getRefSeqType()) {
             throw new RuntimeException("reference seqs and query seqs must be the same type, either protein or nucleotide. " );
         }
-        final PairwiseKNN theObj = new PairwiseKNN( refFile, mode, k, wordSize, prefilter);
+        theObj.setBanded(banded);
+        theObj.setCacheSize(cacheSize);
+        theObj.setStrandVote(strandVote);
+        if (useClusters) {
+            File clusterFile = ReferenceClusters.getFile(refFile);
+            if (!clusterFile.exists()) {
+                throw new IOException(clusterFile + " doesn't exist, see the cluster subcommand");
+            }
+            theObj.setClusters(ReferenceClusters.read(clusterFile));
+        }
+        if (depthRatio > 0) {
+            theObj.setAdaptivePrefilter(depthRatio, minDepth, depthLog);
+        }
         
-        final AtomicInteger outstandingTasks = new AtomicInteger();        
-        ExecutorService service = Executors.newFixedThreadPool(maxThreads);
-        out.println("#query file: " + queryFile.getName() + " db file: " + refFile.getName() + " k: " + k + " mode: " + mode + " usePrefilter: " + prefilter);
-        out.println("#seqname\tk\torientation\tscore\tident\tquery_start\tquery_end\tquery_length\tref_start\tref_end\tref_seqid\tref_desc");
+        String header = "#query file: " + queryFile.getName() + " db file: " + refFile.getName() + " " + theObj.describe();
+        // the shard and binary outputs end with boolean false
+        DataOutputStream dataOut = null;
+        KNNPipeline.Format format = KNNPipeline.Format.text;
+        if (numShards > 1) {
+            dataOut = new DataOutputStream(rawOut);
+            KNNMerge.writeHeader(dataOut, shard, numShards, k, header);
+            dataOut.flush();
+            format = KNNPipeline.Format.partial;
+        } else if (binary) {
+            dataOut = new DataOutputStream(rawOut);
+            theObj.writeBinaryHeader(dataOut, header, cigars);
+            dataOut.flush();
+            format = KNNPipeline.Format.binary;
+        } else {
+            out.println(header);
+            out.println(columnHeader);
+        }
                 
         SequenceReader queryReader = new SequenceReader(queryFile);
-        Sequence seq;        
-        while ( (seq = queryReader.readNextSequence()) !=null){            
-            final Sequence threadSeq = seq;
-
-            Runnable r = new Runnable() {
-                public void run() {
-                    try {
-                        List<Neighbor> alignments = theObj.findMatch(threadSeq, removeBaseN);
-                        theObj.printAlignment(threadSeq, alignments, out);
-                        outstandingTasks.decrementAndGet();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            };
-
-            outstandingTasks.incrementAndGet();
-            service.submit(r);
-
-            while (outstandingTasks.get() >= maxTasks);   
+        int failed = new KNNPipeline(theObj, removeBaseN, maxThreads, maxTasks, ordered, format).run(queryReader, rawOut);
+        if (dataOut != null) {
+            dataOut.writeBoolean(false);
+            dataOut.flush();
+        }
+        if (failed > 0) {
+            System.err.println(failed + " queries failed");
+        }
+        if (theObj.getDepthStats() != null) {
+            System.err.println(theObj.getDepthStats());
+        }
+        if (depthLog != null) {
+            depthLog.close();
+        }
+        if (theObj.getStrandVote() != null) {
+            System.err.println(theObj.getStrandVote().getStats());
+        }
+        if (theObj.getClusterStats() != null) {
+            System.err.println(theObj.getClusterStats());
+        }
+        if (theObj.getCache() != null) {
+            System.err.println("Query cache: " + theObj.getCache().getHits() + " hits, " + theObj.getCache().getMisses() + " misses");
         }
-        
-        service.shutdown();
-        service.awaitTermination(1, TimeUnit.DAYS);        
         queryReader.close();
-        out.close();        
+        if (out.checkError()) {
+            throw new IOException("Failed to write the results");
+        }
+        rawOut.close();
     }
 }
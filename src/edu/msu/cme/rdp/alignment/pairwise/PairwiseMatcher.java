@@ -49,6 +49,7 @@ public class PairwiseMatcher {
         List<Sequence> refSeqs = SequenceReader.readFully(refFile);
         ScoringMatrix matrix = ScoringMatrix.getDefaultProteinMatrix();
         DistanceModel model = new IdentityDistanceModel();
+        PairwiseAligner aligner = new PairwiseAligner(matrix, AlignmentMode.glocal);
 
         SeqReader reader = new SequenceReader(inFile);
         Sequence seq;
@@ -63,18 +64,20 @@ public class PairwiseMatcher {
 
         while ((seq = reader.readNextSequence()) != null) {
             long startTime = System.currentTimeMillis();
-            PairwiseAlignment bestAlignment = null;
+            PairwiseScore bestScore = null;
             Sequence bestRef = null;
 
             for (Sequence refSeq : refSeqs) {
-                PairwiseAlignment alignment = PairwiseAligner.align(refSeq.getSeqString(), seq.getSeqString(), matrix, AlignmentMode.glocal);
+                PairwiseScore score = aligner.score(refSeq.getSeqString(), seq.getSeqString());
 
-                if (bestAlignment == null || bestAlignment.getScore() < alignment.getScore()) {
-                    bestAlignment = alignment;
+                if (bestScore == null || bestScore.getScore() < score.getScore()) {
+                    bestScore = score;
                     bestRef = refSeq;
                 }
             }
 
+            PairwiseAlignment bestAlignment = aligner.align(bestRef.getSeqString(), seq.getSeqString());
+
             int start = -1, end = -1;
             int refPos = 0;
 
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+/**
+ * Result of a score only alignment, the score and end coordinates are the
+ * same as PairwiseAlignment.getScore(), getEndi() and getEndj() would report
+ * for the full alignment
+ *
+ * @author fishjord
+ */
+public class PairwiseScore {
+
+    private final int score;
+    private final int endi;
+    private final int endj;
+    private final boolean pruned;
+
+    public PairwiseScore(int score, int endi, int endj) {
+        this(score, endi, endj, false);
+    }
+
+    private PairwiseScore(int score, int endi, int endj, boolean pruned) {
+        this.score = score;
+        this.endi = endi;
+        this.endj = endj;
+        this.pruned = pruned;
+    }
+
+    /**
+     * Result of an alignment that was abandoned because its score could not
+     * reach the minimum score of interest, the score is the upper bound that
+     * fell below it and the end coordinates are -1
+     */
+    static PairwiseScore pruned(int bound) {
+        return new PairwiseScore(bound, -1, -1, true);
+    }
+
+    public boolean isPruned() {
+        return pruned;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public int getEndi() {
+        return endi;
+    }
+
+    public int getEndj() {
+        return endj;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded least recently used cache of per query results, keyed by the
+ * 128 bit MD5 of the query sequence so the sequences themselves aren't
+ * kept. Safe to share between threads, the entries are split over
+ * independently locked segments so workers rarely wait on each other.
+ *
+ * Callers decide what goes into the key, e.g. PairwiseKNN caches on the
+ * oriented sequence and whether its Ns are removed.
+ *
+ * @author fishjord
+ */
+public final class QueryCache<V> {
+
+    private static final int segmentBits = 4;
+    private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+    private final Segment<V>[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public QueryCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        segments = new Segment[1 << segmentBits];
+        int perSegment = Math.max(1, (maxEntries + segments.length - 1) >> segmentBits);
+        for (int s = 0; s < segments.length; s++) {
+            segments[s] = new Segment<V>(perSegment);
+        }
+    }
+
+    /**
+     * The cached result for seq, or null, counted as a hit or a miss
+     */
+    public V get(String seq) {
+        Key key = key(seq);
+        Segment<V> segment = segments[key.segment()];
+        V ret;
+        synchronized (segment) {
+            ret = segment.get(key);
+        }
+        (ret == null ? misses : hits).incrementAndGet();
+        return ret;
+    }
+
+    public void put(String seq, V value) {
+        Key key = key(seq);
+        Segment<V> segment = segments[key.segment()];
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        int ret = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                ret += segment.size();
+            }
+        }
+        return ret;
+    }
+
+    private static Key key(String seq) {
+        byte[] digest;
+        try {
+            digest = md5.get().digest(seq.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        long hi = 0, lo = 0;
+        for (int index = 0; index < 8; index++) {
+            hi = (hi << 8) | (digest[index] & 0xff);
+            lo = (lo << 8) | (digest[index + 8] & 0xff);
+        }
+        return new Key(hi, lo);
+    }
+
+    private static final class Key {
+
+        private final long hi;
+        private final long lo;
+
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        int segment() {
+            return (int) (hi >>> (64 - segmentBits));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hi == other.hi && lo == other.lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lo ^ (lo >>> 32));
+        }
+    }
+
+    private static final class Segment<V> extends LinkedHashMap<Key, V> {
+
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, .75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.alignment.AlignmentMode;
+import edu.msu.cme.rdp.alignment.pairwise.rna.DistanceModel;
+import edu.msu.cme.rdp.alignment.pairwise.rna.IdentityDistanceModel;
+import edu.msu.cme.rdp.alignment.pairwise.rna.OverlapCheckFailedException;
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.readers.SeqReader;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import edu.msu.cme.rdp.readseq.readers.SequenceReader;
+import edu.msu.cme.rdp.readseq.utils.SeqUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The references grouped around centroids, written next to the reference
+ * file (as refFile.clusters) by the cluster subcommand and used by
+ * PairwiseKNN to skip whole clusters in an exhaustive (-p 0) search.
+ *
+ * A reference joins the first centroid within maxDistance metric identity
+ * distance (IdentityDistanceModel, gaps count), otherwise it becomes a
+ * centroid. Each cluster's radius is the largest unit cost edit distance
+ * from its centroid to a member.
+ *
+ * Skipping is exact for global and glocal alignment (the whole query is
+ * aligned). With sg(q, r) the edit distance of q to the closest substring
+ * of r, sg(q, member) >= sg(q, centroid) - radius, and every alignment of
+ * q scores at most maxScore * |q| - delta * sg(q, r) where delta is the
+ * smallest loss of an edit column (a mismatch against a match, or a gap
+ * column). A cluster whose bound is below the k-th best score so far can't
+ * hold a neighbor.
+ *
+ * The file keeps a checksum of the references' names and lengths, clusters
+ * are only used with the references they were built from.
+ *
+ * @author fishjord
+ */
+public final class ReferenceClusters {
+
+    private static final int magic = 0x4B434C55;
+    private static final int version = 2;
+    private static final double defaultMaxDistance = .03;
+    private final int numRefs;
+    private final long checksum;  // of the references' names and lengths
+    private final int[] centroids;
+    private final int[] radii;
+    private final int[][] members;  // ascending reference positions, the centroid included
+    private byte[][] centroidCodes;
+    private int maxScore;
+    private int delta;
+
+    private ReferenceClusters(int numRefs, long checksum, int[] centroids, int[] radii, int[][] members) {
+        this.numRefs = numRefs;
+        this.checksum = checksum;
+        this.centroids = centroids;
+        this.radii = radii;
+        this.members = members;
+    }
+
+    /**
+     * The cluster file for a reference (sequence or k-mer index) file
+     */
+    public static File getFile(File refFile) {
+        return new File(refFile.getPath() + ".clusters");
+    }
+
+    public static ReferenceClusters read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != magic) {
+                throw new IOException(file + " isn't a reference cluster file");
+            }
+            if (in.readInt() != version) {
+                throw new IOException(file + " is from another version, run cluster again");
+            }
+            int numRefs = in.readInt();
+            long checksum = in.readLong();
+            int numClusters = in.readInt();
+            int[] centroids = new int[numClusters];
+            int[] radii = new int[numClusters];
+            int[][] members = new int[numClusters][];
+            for (int cl = 0; cl < numClusters; cl++) {
+                centroids[cl] = in.readInt();
+                radii[cl] = in.readInt();
+                members[cl] = new int[in.readInt()];
+                for (int m = 0; m < members[cl].length; m++) {
+                    members[cl][m] = in.readInt();
+                }
+            }
+            return new ReferenceClusters(numRefs, checksum, centroids, radii, members);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(numRefs);
+            out.writeLong(checksum);
+            out.writeInt(centroids.length);
+            for (int cl = 0; cl < centroids.length; cl++) {
+                out.writeInt(centroids[cl]);
+                out.writeInt(radii[cl]);
+                out.writeInt(members[cl].length);
+                for (int member : members[cl]) {
+                    out.writeInt(member);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Clusters refs in order, see the class comment
+     */
+    public static ReferenceClusters build(List<Sequence> refs, ScoringMatrix matrix, double maxDistance) throws OverlapCheckFailedException {
+        DistanceModel dist = new IdentityDistanceModel(true);
+        List<byte[]> centroidCodes = new ArrayList<byte[]>();
+        List<Integer> centroids = new ArrayList<Integer>();
+        List<Integer> radii = new ArrayList<Integer>();
+        List<List<Integer>> members = new ArrayList<List<Integer>>();
+
+        for (int index = 0; index < refs.size(); index++) {
+            String seq = refs.get(index).getSeqString();
+            byte[] codes = matrix.encode(seq.toCharArray());
+            int joined = -1;
+            int joinedDistance = 0;
+            for (int cl = 0; cl < centroids.size() && joined == -1; cl++) {
+                byte[] centroid = centroidCodes.get(cl);
+                int cutoff = (int) Math.ceil(maxDistance * Math.max(centroid.length, codes.length));
+                int ed = editDistance(centroid, codes, cutoff);
+                if (ed > cutoff) {
+                    continue;
+                }
+                PairwiseAlignment alignment = PairwiseAligner.align(refs.get(centroids.get(cl)).getSeqString(), seq, matrix, AlignmentMode.global);
+                if (dist.getDistance(alignment.getAlignedSeqi().getBytes(), alignment.getAlignedSeqj().getBytes(), 0) <= maxDistance) {
+                    joined = cl;
+                    joinedDistance = ed;
+                }
+            }
+
+            if (joined == -1) {
+                joined = centroids.size();
+                centroids.add(index);
+                centroidCodes.add(codes);
+                radii.add(0);
+                members.add(new ArrayList<Integer>());
+            }
+            members.get(joined).add(index);
+            radii.set(joined, Math.max(radii.get(joined), joinedDistance));
+        }
+
+        int[][] memberArrays = new int[centroids.size()][];
+        int[] centroidArray = new int[centroids.size()];
+        int[] radiusArray = new int[centroids.size()];
+        for (int cl = 0; cl < centroidArray.length; cl++) {
+            centroidArray[cl] = centroids.get(cl);
+            radiusArray[cl] = radii.get(cl);
+            memberArrays[cl] = new int[members.get(cl).size()];
+            for (int m = 0; m < memberArrays[cl].length; m++) {
+                memberArrays[cl][m] = members.get(cl).get(m);
+            }
+        }
+        return new ReferenceClusters(refs.size(), checksum(refs), centroidArray, radiusArray, memberArrays);
+    }
+
+    /**
+     * CRC32 of each reference's name and length in order
+     */
+    static long checksum(List<Sequence> refs) {
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+        }, crc));
+        try {
+            for (Sequence seq : refs) {
+                Utf8Strings.write(out, seq.getSeqName());
+                out.writeInt(seq.getSeqString().length());
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return crc.getValue();
+    }
+
+    public int size() {
+        return centroids.length;
+    }
+
+    public int getNumRefs() {
+        return numRefs;
+    }
+
+    public int[] getMembers(int cluster) {
+        return members[cluster];
+    }
+
+    /**
+     * Gets the centroids ready for scoreBounds, refs must be the references
+     * the clusters were built from
+     *
+     * @return false if matrix gives no bound (an edit can cost nothing)
+     */
+    boolean prepare(List<Sequence> refs, ScoringMatrix matrix) {
+        if (refs.size() != numRefs) {
+            throw new IllegalArgumentException("Clusters are of " + numRefs + " references, not " + refs.size());
+        }
+        if (checksum(refs) != checksum) {
+            throw new IllegalArgumentException("Clusters were built from other references (names or lengths differ), run cluster again");
+        }
+        centroidCodes = new byte[centroids.length][];
+        for (int cl = 0; cl < centroids.length; cl++) {
+            centroidCodes[cl] = matrix.encode(refs.get(centroids[cl]).getSeqString().toCharArray());
+        }
+
+        int size = matrix.getAlphabetSize();
+        int[] table = matrix.getScoreTable();
+        int maxMismatch = Integer.MIN_VALUE;
+        for (int a = 0; a < size; a++) {
+            for (int b = 0; b < size; b++) {
+                if (a != b) {
+                    maxMismatch = Math.max(maxMismatch, table[a * size + b]);
+                }
+            }
+        }
+        maxScore = matrix.getMaxScore();
+        int minGap = Math.min(-matrix.getGapOpen(), -matrix.getGapExtend());
+        delta = Math.min(maxScore - maxMismatch, minGap);
+        return delta > 0 && maxScore >= 0;
+    }
+
+    /**
+     * The best score any member of each cluster could have against the
+     * query (or rcQuery, if not null)
+     *
+     * Costs one unit cost DP per centroid and strand, |query| x |centroid|
+     * cells with one plane, where scoring the members costs |query| x
+     * |member| cells with three planes each. So the bounds cost at most
+     * clusters / references of the search they prune, and less per cell.
+     * On 200 references in 25 families (30 clusters) the bounds
+     * were about 1/7 of the exhaustive search's cells, they skipped 45% of
+     * the references and the run took 5s rather than 10s. With mostly
+     * singleton clusters they only add cost, don't cluster such references.
+     */
+    int[] scoreBounds(byte[] query, byte[] rcQuery) {
+        int[] ret = new int[centroids.length];
+        for (int cl = 0; cl < centroids.length; cl++) {
+            int closest = semiGlobalDistance(query, centroidCodes[cl]);
+            if (rcQuery != null) {
+                closest = Math.min(closest, semiGlobalDistance(rcQuery, centroidCodes[cl]));
+            }
+            ret[cl] = maxScore * query.length - delta * Math.max(0, closest - radii[cl]);
+        }
+        return ret;
+    }
+
+    /**
+     * Unit cost edit distance of query to the closest substring of ref
+     */
+    static int semiGlobalDistance(byte[] query, byte[] ref) {
+        int[] prev = new int[query.length + 1];
+        int[] cur = new int[query.length + 1];
+        for (int j = 0; j <= query.length; j++) {
+            prev[j] = j;
+        }
+        int best = prev[query.length];
+        for (int i = 1; i <= ref.length; i++) {
+            cur[0] = 0;
+            for (int j = 1; j <= query.length; j++) {
+                int diag = prev[j - 1] + ((ref[i - 1] == query[j - 1]) ? 0 : 1);
+                cur[j] = Math.min(diag, Math.min(prev[j], cur[j - 1]) + 1);
+            }
+            best = Math.min(best, cur[query.length]);
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return best;
+    }
+
+    /**
+     * Unit cost edit distance of a and b if it is at most max, otherwise
+     * something bigger than max
+     */
+    static int editDistance(byte[] a, byte[] b, int max) {
+        if (Math.abs(a.length - b.length) > max) {
+            return max + 1;
+        }
+        final int inf = max + 1;
+        int[] prev = new int[b.length + 1];
+        int[] cur = new int[b.length + 1];
+        for (int j = 0; j <= b.length; j++) {
+            prev[j] = Math.min(j, inf);
+        }
+        for (int i = 1; i <= a.length; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(b.length, i + max);
+            cur[from - 1] = (from == 1) ? Math.min(i, inf) : inf;
+            int rowMin = cur[from - 1];
+            for (int j = from; j <= to; j++) {
+                int diag = prev[j - 1] + ((a[i - 1] == b[j - 1]) ? 0 : 1);
+                int up = (j <= i - 1 + max) ? prev[j] + 1 : inf;
+                cur[j] = Math.min(inf, Math.min(diag, Math.min(up, cur[j - 1] + 1)));
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (to < b.length) {
+                cur[to + 1] = inf;
+            }
+            if (rowMin > max) {
+                return inf;
+            }
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[b.length];
+    }
+
+    public static void main(String[] args) throws Exception {
+        double maxDistance = defaultMaxDistance;
+        if (args.length == 3 && args[0].startsWith("-d")) {
+            maxDistance = Double.parseDouble(args[1]);
+            args = new String[]{args[2]};
+        }
+        if (args.length != 1 || maxDistance < 0 || maxDistance >= 1) {
+            System.err.println("USAGE: cluster [-d <max identity distance, default " + defaultMaxDistance + ">] <refFile>");
+            System.err.println("  refFile is a sequence file or a k-mer index, writes refFile.clusters for pairwise-knn --clusters");
+            System.exit(1);
+        }
+
+        File refFile = new File(args[0]);
+        List<Sequence> refs;
+        SequenceType seqType;
+        if (KmerIndex.isIndex(refFile)) {
+            KmerIndex index = KmerIndex.open(refFile);
+            refs = index.getSequences().asList();
+            seqType = index.getSequenceType();
+        } else {
+            refs = new ArrayList<Sequence>();
+            SeqReader reader = new SequenceReader(refFile);
+            Sequence seq;
+            while ((seq = reader.readNextSequence()) != null) {
+                refs.add(seq);
+            }
+            reader.close();
+            seqType = SeqUtils.guessSequenceType(refFile);
+        }
+
+        long startTime = System.currentTimeMillis();
+        ScoringMatrix matrix = (seqType == SequenceType.Protein) ? ScoringMatrix.getDefaultProteinMatrix() : ScoringMatrix.getDefaultNuclMatrix();
+        ReferenceClusters clusters = build(refs, matrix, maxDistance);
+        clusters.write(getFile(refFile));
+        System.err.println("Clustered " + refs.size() + " references into " + clusters.size() + " clusters in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+}
@@ -24,20 +24,26 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 
 /**
+ * Substitution scores and gap penalties. A matrix isn't changed after it is
+ * built, the default matrices (and any matrix loaded through
+ * ScoringMatrixRegistry) are shared between all callers.
+ *
+ * Residues are encoded to a dense alphabet (0 to getAlphabetSize() - 1)
+ * through a byte lookup table and scored from a flattened table,
+ * scoreTable[a * getAlphabetSize() + b].
  *
  * @author fishjord
  */
 @XmlAccessorType(XmlAccessType.FIELD)
 public class ScoringMatrix {
 
-    private static ScoringMatrix defaultNuclMatrix = null;
-    private static ScoringMatrix defaultProtMatrix = null;
-    private static ScoringMatrix defaultProtMetricMatrix = null;
-
+    private static final Pattern whitespace = Pattern.compile("\\s+");
     
     public static final int DEFAULT_GAP_OPEN_PEALTY = -10;
     public static final int DEFAULT_GAP_EXT_PENALTY = -1;
@@ -50,6 +56,11 @@ public class ScoringMatrix {
     private int gapPenalty;
     private int gapExtend;
     private int frameshiftPenalty = DEFAULT_FRAME_SHIFT_PENALTY;
+    private transient byte[] alphabet;
+    private transient char[] residues;
+    private transient int[] scoreTable;
+    private transient int maxScore;
+    private transient boolean unitCost;
 
     private ScoringMatrix() {}
 
@@ -82,7 +93,7 @@ public class ScoringMatrix {
             }
 
             if (curRow == -1) {
-                for (String s : line.split("\\s+")) {
+                for (String s : whitespace.split(line)) {
                     if (s.length() > 1) {
                         throw new IOException("Scoring matrix header " + s + " is longer than 1 character, cannot parse");
                     }
@@ -91,7 +102,7 @@ public class ScoringMatrix {
                 curRow = 0;
                 scoringMatrix = new int[validChars.size()][validChars.size()];
             } else {
-                String[] values = line.split("\\s+");
+                String[] values = whitespace.split(line);
                 if (values.length != validChars.size() + 1) {
                     throw new IOException("Expected " + validChars.size() + " columns in matrix row " + curRow + " but instead found " + (values.length - 1));
                 }
@@ -110,18 +121,52 @@ public class ScoringMatrix {
         for(int index = 0;index < validChars.size();index++) {
             reverseLookup[Character.toLowerCase(validChars.get(index))] = reverseLookup[Character.toUpperCase(validChars.get(index))] = index;
         }
+        buildTables();
     }
 
-    public static ScoringMatrix getDefaultNuclMatrix() {
-        if(defaultNuclMatrix == null) {
-            try {
-                defaultNuclMatrix = new ScoringMatrix(ScoringMatrix.class.getResourceAsStream("/data/NUC.4.4"), DEFAULT_GAP_OPEN_PEALTY, DEFAULT_GAP_EXT_PENALTY);
-            } catch(Exception e) {
-                throw new RuntimeException("Failed to get default nucl matrix...something is very wrong!", e);
+    /**
+     * JAXB callback, the derived tables aren't bound so they're built from
+     * the unmarshalled fields
+     */
+    private void afterUnmarshal(Unmarshaller unmarshaller, Object parent) {
+        buildTables();
+    }
+
+    /**
+     * Derives the byte alphabet, flattened score table, max score and unit
+     * cost flag from reverseLookup, scoringMatrix and the gap penalties
+     */
+    private void buildTables() {
+        int size = scoringMatrix.length;
+        alphabet = new byte[reverseLookup.length];
+        residues = new char[size];
+        for (int index = 0; index < reverseLookup.length; index++) {
+            alphabet[index] = (byte) reverseLookup[index];
+            // upper case wins for decode
+            if (reverseLookup[index] >= 0 && (residues[reverseLookup[index]] == 0 || Character.isUpperCase((char) index))) {
+                residues[reverseLookup[index]] = (char) index;
+            }
+        }
+
+        scoreTable = new int[size * size];
+        maxScore = Integer.MIN_VALUE;
+        unitCost = gapPenalty == -1 && gapExtend == -1;
+        for (int a = 0; a < size; a++) {
+            for (int b = 0; b < size; b++) {
+                int score = scoringMatrix[a][b];
+                scoreTable[a * size + b] = score;
+                maxScore = Math.max(maxScore, score);
+                unitCost &= score == 0 || score == -1;
             }
         }
+    }
 
-        return defaultNuclMatrix;
+    public static ScoringMatrix getDefaultNuclMatrix() {
+        try {
+            return ScoringMatrixRegistry.getResourceMatrix("/data/NUC.4.4", DEFAULT_GAP_OPEN_PEALTY, DEFAULT_GAP_EXT_PENALTY, DEFAULT_FRAME_SHIFT_PENALTY);
+        } catch(IOException e) {
+            throw new RuntimeException("Failed to get default nucl matrix...something is very wrong!", e);
+        }
     }
 
     public static ScoringMatrix getSimpleScoringMatrix(int match, int mismatch) {
@@ -137,50 +182,160 @@ public class ScoringMatrix {
             ret.reverseLookup[c] = ret.reverseLookup[Character.toUpperCase(c)] = c - 'a';
         }
 
-        ret.scoringMatrix = new int['z' - 'a']['z' - 'a'];
+        ret.scoringMatrix = new int['z' - 'a' + 1]['z' - 'a' + 1];
         for(int row = 0;row < ret.scoringMatrix.length;row++) {
             ret.scoringMatrix[row][row] = match;
             for(int col = row + 1;col < ret.scoringMatrix.length;col++) {
                 ret.scoringMatrix[row][col] = ret.scoringMatrix[col][row] = mismatch;
             }
         }
+        ret.buildTables();
 
         return ret;
     }
 
     public static ScoringMatrix getDefaultProteinMatrix() {
-        if(defaultProtMatrix == null) {
-            try {
-                defaultProtMatrix = new ScoringMatrix(ScoringMatrix.class.getResourceAsStream("/data/blosum62.txt"), DEFAULT_GAP_OPEN_PEALTY, DEFAULT_GAP_EXT_PENALTY);               
-            } catch(Exception e) {
-                throw new RuntimeException("Failed to get default protein scoring matrix...something is very wrong!", e);
-            }
+        try {
+            return ScoringMatrixRegistry.getResourceMatrix("/data/blosum62.txt", DEFAULT_GAP_OPEN_PEALTY, DEFAULT_GAP_EXT_PENALTY, DEFAULT_FRAME_SHIFT_PENALTY);
+        } catch(IOException e) {
+            throw new RuntimeException("Failed to get default protein scoring matrix...something is very wrong!", e);
         }
-
-        return defaultProtMatrix;
     }
     
     public static ScoringMatrix getDefaultProteinMetricMatrix() {
-        if(defaultProtMetricMatrix == null) {
-            try {
-                defaultProtMetricMatrix = new ScoringMatrix(ScoringMatrix.class.getResourceAsStream("/data/blosum62_metric.txt"), DEFAULT_METRIC_GAP_OPEN_PEALTY, DEFAULT_METRIC_GAP_EXT_PENALTY);
-            } catch(Exception e) {
-                throw new RuntimeException("Failed to get default protein scoring matrix blosum62_metric...something is very wrong!", e);
-            }
+        try {
+            return ScoringMatrixRegistry.getResourceMatrix("/data/blosum62_metric.txt", DEFAULT_METRIC_GAP_OPEN_PEALTY, DEFAULT_METRIC_GAP_EXT_PENALTY, DEFAULT_FRAME_SHIFT_PENALTY);
+        } catch(IOException e) {
+            throw new RuntimeException("Failed to get default protein scoring matrix blosum62_metric...something is very wrong!", e);
         }
-
-        return defaultProtMetricMatrix;
     }
 
     public int score(Character b1, Character b2) {
-        int i1 = reverseLookup[b1];
-        int i2 = reverseLookup[b2];
+        return score(b1.charValue(), b2.charValue());
+    }
+
+    public int score(char b1, char b2) {
+        int i1 = encode(b1);
+        int i2 = encode(b2);
 
         if (i1 == -1 || i2 == -1) {
             throw new IllegalArgumentException("Cannot score " + b1 + ", " + b2);
         }
 
-        return scoringMatrix[i1][i2];
+        return scoreTable[i1 * scoringMatrix.length + i2];
+    }
+
+    /**
+     * Highest score of any pair of residues
+     */
+    public int getMaxScore() {
+        return maxScore;
+    }
+
+    /**
+     * True if this is an edit distance matrix, every substitution scores 0
+     * or -1 and gap open and extend are both -1. Global alignments with such
+     * a matrix are computed with a bit-parallel edit distance algorithm.
+     */
+    public boolean isUnitCost() {
+        return unitCost;
+    }
+
+    /**
+     * Number of residues in the matrix, encoded residues are between 0 and
+     * getAlphabetSize() - 1
+     */
+    public int getAlphabetSize() {
+        return scoringMatrix.length;
+    }
+
+    /**
+     * Returns the alphabet index of the residue (case insensitive), or -1 if
+     * the matrix can't score it
+     */
+    public int encode(char c) {
+        return (c < alphabet.length) ? alphabet[c] : -1;
+    }
+
+    /**
+     * Encodes a sequence into alphabet indices, see encode(char)
+     *
+     * @throws IllegalArgumentException if the matrix can't score one of the residues
+     */
+    public byte[] encode(char[] seq) {
+        byte[] ret = new byte[seq.length];
+        for (int index = 0; index < seq.length; index++) {
+            char c = seq[index];
+            byte code = (c < alphabet.length) ? alphabet[c] : -1;
+            if (code == -1) {
+                throw new IllegalArgumentException("Cannot score " + c);
+            }
+            ret[index] = code;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Residues of an encoded sequence (upper case where the matrix has both),
+     * the inverse of encode(char[]) up to case
+     */
+    public char[] decode(byte[] codes) {
+        char[] ret = new char[codes.length];
+        for (int index = 0; index < codes.length; index++) {
+            ret[index] = residues[codes[index]];
+        }
+
+        return ret;
+    }
+
+    /**
+     * Query profile, profile[a][j] is the score of residue a (as the first
+     * argument to score) against query position j. Every row of the profile
+     * lines up with the query so the dynamic programming inner loop needs a
+     * single array read per cell.
+     *
+     * @param encodedQuery query encoded with encode(char[])
+     */
+    public int[][] buildProfile(byte[] encodedQuery) {
+        int size = scoringMatrix.length;
+        int[][] profile = new int[size][encodedQuery.length];
+        for (int a = 0; a < size; a++) {
+            int base = a * size;
+            int[] row = profile[a];
+            for (int j = 0; j < encodedQuery.length; j++) {
+                row[j] = scoreTable[base + encodedQuery[j]];
+            }
+        }
+
+        return profile;
+    }
+
+    /**
+     * Like buildProfile but for the first argument to score, profile[a][i]
+     * is the score of reference position i against residue a
+     *
+     * @param encodedReference reference encoded with encode(char[])
+     */
+    public int[][] buildReferenceProfile(byte[] encodedReference) {
+        int size = scoringMatrix.length;
+        int[][] profile = new int[size][encodedReference.length];
+        for (int a = 0; a < size; a++) {
+            int[] row = profile[a];
+            for (int i = 0; i < encodedReference.length; i++) {
+                row[i] = scoreTable[encodedReference[i] * size + a];
+            }
+        }
+
+        return profile;
+    }
+
+    /**
+     * Flattened substitution scores, the score of encoded residues a and b is
+     * at a * getAlphabetSize() + b. The array is shared, don't modify it.
+     */
+    public int[] getScoreTable() {
+        return scoreTable;
     }
 
     public int getGapOpen() {
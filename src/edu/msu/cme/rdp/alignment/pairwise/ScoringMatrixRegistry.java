@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads each scoring matrix once per (source, gap open, gap extend,
+ * frameshift) and hands the same instance to every caller. ScoringMatrix
+ * isn't modified after it is parsed, so one instance can be shared by any
+ * number of aligners and threads.
+ *
+ * @author fishjord
+ */
+public final class ScoringMatrixRegistry {
+
+    private static final Map<Key, ScoringMatrix> matrices = new HashMap<Key, ScoringMatrix>();
+
+    private ScoringMatrixRegistry() {
+    }
+
+    /**
+     * Matrix parsed from a classpath resource, e.g. /data/NUC.4.4
+     */
+    public static synchronized ScoringMatrix getResourceMatrix(String resource, int gapOpen, int gapExtend, int frameshift) throws IOException {
+        Key key = new Key("resource:" + resource, gapOpen, gapExtend, frameshift);
+        ScoringMatrix ret = matrices.get(key);
+        if (ret == null) {
+            InputStream is = ScoringMatrix.class.getResourceAsStream(resource);
+            if (is == null) {
+                throw new IOException("Scoring matrix " + resource + " not found on the classpath");
+            }
+            ret = load(key, is);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Matrix parsed from a file, files are told apart by their canonical path
+     */
+    public static synchronized ScoringMatrix getFileMatrix(File file, int gapOpen, int gapExtend, int frameshift) throws IOException {
+        Key key = new Key("file:" + file.getCanonicalPath(), gapOpen, gapExtend, frameshift);
+        ScoringMatrix ret = matrices.get(key);
+        if (ret == null) {
+            ret = load(key, new FileInputStream(file));
+        }
+
+        return ret;
+    }
+
+    private static ScoringMatrix load(Key key, InputStream is) throws IOException {
+        try {
+            ScoringMatrix ret = new ScoringMatrix(is, key.gapOpen, key.gapExtend, key.frameshift);
+            matrices.put(key, ret);
+            return ret;
+        } finally {
+            is.close();
+        }
+    }
+
+    private static final class Key {
+
+        private final String source;
+        private final int gapOpen;
+        private final int gapExtend;
+        private final int frameshift;
+
+        Key(String source, int gapOpen, int gapExtend, int frameshift) {
+            this.source = source;
+            this.gapOpen = gapOpen;
+            this.gapExtend = gapExtend;
+            this.frameshift = frameshift;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return source.equals(other.source) && gapOpen == other.gapOpen && gapExtend == other.gapExtend && frameshift == other.frameshift;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((source.hashCode() * 31 + gapOpen) * 31 + gapExtend) * 31 + frameshift;
+        }
+    }
+}
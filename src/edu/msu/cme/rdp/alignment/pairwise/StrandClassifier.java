@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which strand of a nucleotide query to align by counting how many
+ * of its k-mers, and how many of its reverse complement's k-mers, occur in
+ * the references. Only a clear vote picks one strand, anything else asks
+ * for both so the caller falls back to aligning both ways.
+ *
+ * The reference k-mers are kept as bits in a table of at most 2^26
+ * entries, k-mers too long to index directly are hashed into it. Short
+ * words are no good, a large reference set holds most of the possible
+ * k-mers and both strands get votes. A hash collision can only add a vote,
+ * and the vote margin absorbs the odd extra.
+ *
+ * Safe to share between threads once every reference has been added.
+ *
+ * @author fishjord
+ */
+public final class StrandClassifier {
+
+    public static enum Strand {
+
+        forward, reverse, both
+    }
+    /**
+     * Long enough that a reference set's k-mers fill little of the 4^k
+     * possible, short enough to index directly (2 MB)
+     */
+    public static final int defaultWordSize = 12;
+    private static final int maxTableBits = 26;
+    /**
+     * A strand needs at least this many k-mer hits
+     */
+    private static final int minVotes = 3;
+    /**
+     * and (winner - loser) / (winner + loser) at least this big
+     */
+    private static final double minMargin = .5;
+    private final int wordSize;
+    private final int tableBits;
+    private final long[] table;
+    private final AtomicLong forward = new AtomicLong();
+    private final AtomicLong reverse = new AtomicLong();
+    private final AtomicLong both = new AtomicLong();
+    private final AtomicLong marginSum = new AtomicLong();  // in thousandths
+    private final AtomicLong voted = new AtomicLong();
+
+    public StrandClassifier(int wordSize) {
+        if (wordSize < 1 || wordSize > 31) {
+            throw new IllegalArgumentException("Word size must be between 1 and 31");
+        }
+        this.wordSize = wordSize;
+        this.tableBits = Math.min(2 * wordSize, maxTableBits);
+        this.table = new long[Math.max(1, (1 << tableBits) >>> 6)];
+    }
+
+    /**
+     * Adds a reference's k-mers, references must all be added before the
+     * first classify
+     */
+    public void add(String seq) {
+        final long mask = (1L << (2 * wordSize)) - 1;
+        long kmer = 0;
+        int valid = 0;
+        for (int index = 0; index < seq.length(); index++) {
+            int code = code(seq.charAt(index));
+            if (code < 0) {
+                valid = 0;
+                continue;
+            }
+            kmer = ((kmer << 2) | code) & mask;
+            if (++valid >= wordSize) {
+                long slot = slot(kmer);
+                table[(int) (slot >>> 6)] |= 1L << slot;
+            }
+        }
+    }
+
+    /**
+     * The strand(s) of query worth aligning, counted in the run statistics
+     */
+    public Strand classify(String query) {
+        int[] votes = votes(query);
+        return count(votes[0], votes[1]);
+    }
+
+    /**
+     * The forward and reverse complement k-mer votes of query, not counted
+     * in the run statistics
+     */
+    public int[] votes(String query) {
+        final long mask = (1L << (2 * wordSize)) - 1;
+        final int rcShift = 2 * (wordSize - 1);
+        long kmer = 0, rcKmer = 0;
+        int valid = 0;
+        int fwdVotes = 0, rcVotes = 0;
+        for (int index = 0; index < query.length(); index++) {
+            int code = code(query.charAt(index));
+            if (code < 0) {
+                valid = 0;
+                continue;
+            }
+            kmer = ((kmer << 2) | code) & mask;
+            rcKmer = (rcKmer >>> 2) | ((long) (3 - code) << rcShift);
+            if (++valid >= wordSize) {
+                if (contains(kmer)) {
+                    fwdVotes++;
+                }
+                if (contains(rcKmer)) {
+                    rcVotes++;
+                }
+            }
+        }
+        return new int[]{fwdVotes, rcVotes};
+    }
+
+    /**
+     * The strand(s) votes (see votes) pick, counted in the run statistics
+     */
+    public Strand count(int fwdVotes, int rcVotes) {
+        int winner = Math.max(fwdVotes, rcVotes);
+        int total = fwdVotes + rcVotes;
+        if (total > 0) {
+            voted.incrementAndGet();
+            marginSum.addAndGet(1000L * Math.abs(fwdVotes - rcVotes) / total);
+        }
+        if (winner >= minVotes && Math.abs(fwdVotes - rcVotes) >= minMargin * total) {
+            if (fwdVotes > rcVotes) {
+                forward.incrementAndGet();
+                return Strand.forward;
+            }
+            reverse.incrementAndGet();
+            return Strand.reverse;
+        }
+        both.incrementAndGet();
+        return Strand.both;
+    }
+
+    public long getForward() {
+        return forward.get();
+    }
+
+    public long getReverse() {
+        return reverse.get();
+    }
+
+    /**
+     * Queries whose vote wasn't clear, aligned both ways
+     */
+    public long getBoth() {
+        return both.get();
+    }
+
+    /**
+     * Mean of |forward votes - reverse votes| / all votes over the queries
+     * with any votes, 1 is unanimous
+     */
+    public double getMeanMargin() {
+        long n = voted.get();
+        return (n == 0) ? 0 : marginSum.get() / 1000.0 / n;
+    }
+
+    /**
+     * One line summary of the votes for the end of a run
+     */
+    public String getStats() {
+        long total = forward.get() + reverse.get() + both.get();
+        return "Strand votes: " + forward.get() + " forward, " + reverse.get() + " reverse, "
+                + both.get() + " aligned both ways (fallback rate " + String.format("%1$.3f", (total == 0) ? 0.0 : (double) both.get() / total)
+                + "), mean margin " + String.format("%1$.3f", getMeanMargin());
+    }
+
+    private boolean contains(long kmer) {
+        long slot = slot(kmer);
+        return (table[(int) (slot >>> 6)] & (1L << slot)) != 0;
+    }
+
+    private long slot(long kmer) {
+        if (tableBits == 2 * wordSize) {
+            return kmer;
+        }
+        return (kmer * 0x9E3779B97F4A7C15L) >>> (64 - tableBits);
+    }
+
+    private static int code(char c) {
+        switch (c) {
+            case 'A':
+            case 'a':
+                return 0;
+            case 'C':
+            case 'c':
+                return 1;
+            case 'G':
+            case 'g':
+                return 2;
+            case 'T':
+            case 't':
+            case 'U':
+            case 'u':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.alignment.AlignmentMode;
+import java.util.Arrays;
+
+/**
+ * Striped (Farrar) score only kernel. seqi is split into segLen segments of
+ * lanes positions, position p belongs to segment p % segLen, lane p / segLen,
+ * so the cells of one segment are independent of each other and the inner
+ * loops over lanes have no loop carried dependencies (which lets the JIT
+ * vectorize them). Substitution scores come from a query profile built
+ * once per residue of seqj instead of a matrix lookup per cell.
+ *
+ * Segment s of a column is stored at (s + 1) * lanes, slot 0 holds the
+ * cells diagonally above segment 0 of the next column (the last segment
+ * shifted by one lane, with row 0 in lane 0) so every segment reads its
+ * diagonal neighbors from the segment before it.
+ *
+ * The vertical gap chain is resolved with a prefix scan rather than Farrar's
+ * lazy F loop, which degrades badly outside local mode where gap chains
+ * routinely run the whole column. The chain is carried down each lane while
+ * the column is filled, the chain flowing from one lane into the next is then
+ * worked out once per lane and a second pass applies it.
+ *
+ * Scores are stored in shorts, if the score range of a pair can't be shown to
+ * fit score returns null and the caller falls back to the int engine.
+ *
+ * @author fishjord
+ */
+final class StripedScorer {
+
+    private static final int lanes = 16;
+    private static final int minusInf = Integer.MIN_VALUE / 2;
+    private final PairwiseAligner aligner;
+    private final AlignmentWorkspace workspace;
+    private final ScoringMatrix matrix;
+    private final AlignmentMode mode;
+    private final int gapOpen;
+    private final int gapExtend;
+    private final boolean local;
+    private int rows;
+    private int[][] referenceProfile;
+    private int segLen;
+    private short[][] profiles;
+    private int[] vF = new int[lanes];
+    private int[] carry = new int[lanes];
+    private int[] laneMax = new int[lanes];
+
+    StripedScorer(PairwiseAligner aligner, AlignmentWorkspace workspace) {
+        this.aligner = aligner;
+        this.workspace = workspace;
+        this.matrix = aligner.getScoringMatrix();
+        this.mode = aligner.getMode();
+        this.gapOpen = matrix.getGapOpen();
+        this.gapExtend = matrix.getGapExtend();
+        this.local = mode == AlignmentMode.local;
+    }
+
+    private int index(int i) {
+        int p = i - 1;
+        return (p % segLen + 1) * lanes + p / segLen;
+    }
+
+    private int rowZeroMatch(int j) {
+        if (j == 0) {
+            return 0;
+        }
+        return (mode == AlignmentMode.global || mode == AlignmentMode.glocal) ? (j - 1) * gapExtend + gapOpen : 0;
+    }
+
+    private int rowZeroGap(int j) {
+        return (j == 0) ? Short.MIN_VALUE : rowZeroMatch(j) + gapExtend;
+    }
+
+    /**
+     * Striped substitution scores of seqi against residue c. Padding
+     * positions score 0, or -1 for local so padding cells always score less
+     * than the real cell they derive from
+     */
+    private short[] profile(int c) {
+        short[] profile = new short[(segLen + 1) * lanes];
+        if (local) {
+            Arrays.fill(profile, (short) -1);
+        }
+        int[] scores = referenceProfile[c];
+        for (int i = 1; i < rows + 1; i++) {
+            profile[index(i)] = (short) scores[i - 1];
+        }
+        return profile;
+    }
+
+    /**
+     * Fills slot 0 of a column with the cells diagonally above segment 0 of
+     * the next column
+     */
+    private void shift(short[] match, short[] gap, int j) {
+        match[0] = (short) rowZeroMatch(j);
+        gap[0] = (short) rowZeroGap(j);
+        for (int k = 1; k < lanes; k++) {
+            match[k] = match[segLen * lanes + k - 1];
+            gap[k] = gap[segLen * lanes + k - 1];
+        }
+    }
+
+    /**
+     * @return the score score(seqi, seqj, minScoreOfInterest) reports, or
+     * null if the scores may not fit in 16 bits
+     */
+    PairwiseScore score(char[] seqi, char[] seqj, int minScoreOfInterest) {
+        final int rows = seqi.length;
+        final int cols = seqj.length;
+        this.rows = rows;
+        this.segLen = (rows + lanes - 1) / lanes;
+        final int size = (segLen + 1) * lanes;
+        if (gapOpen > 0 || gapExtend > 0) {
+            return null;
+        }
+
+        byte[] codes = matrix.encode(seqj);
+        referenceProfile = matrix.buildReferenceProfile(matrix.encode(seqi));
+        profiles = new short[matrix.getAlphabetSize()][];
+        int minScore = 0, maxScore = 0;
+        for (int j = 0; j < cols; j++) {
+            if (profiles[codes[j]] == null) {
+                short[] profile = profiles[codes[j]] = profile(codes[j]);
+                for (int index = 0; index < size; index++) {
+                    minScore = Math.min(minScore, profile[index]);
+                    maxScore = Math.max(maxScore, profile[index]);
+                }
+            }
+        }
+        long shorter = Math.min(segLen * lanes, cols), longer = Math.max(segLen * lanes, cols);
+        long lowest = 2L * gapOpen + (longer + 1) * gapExtend + shorter * minScore;
+        if (lowest <= Short.MIN_VALUE || shorter * maxScore > Short.MAX_VALUE) {
+            return null;
+        }
+
+        workspace.ensureStripeCapacity(size);
+        short[] pM = workspace.stripePrevMatch, pG = workspace.stripePrevGap;
+        short[] cM = workspace.stripeCurMatch, cG = workspace.stripeCurGap;
+        PairwiseAligner.EndCells ends = new PairwiseAligner.EndCells();
+        final boolean prune = minScoreOfInterest > Integer.MIN_VALUE;
+        final int maxDiag = Math.max(0, matrix.getMaxScore());
+
+        for (int index = 0; index < size; index++) {
+            pM[index] = 0;
+            pG[index] = (short) gapExtend;
+        }
+        if (mode == AlignmentMode.global) {
+            for (int i = 1; i < rows + 1; i++) {
+                pM[index(i)] = (short) ((i - 1) * gapExtend + gapOpen);
+                pG[index(i)] = (short) (pM[index(i)] + gapExtend);
+            }
+        }
+        shift(pM, pG, 0);
+
+        for (int j = 1; j < cols + 1; j++) {
+            short[] profile = profiles[codes[j - 1]];
+
+            // Match scores and the horizontal half of the gap scores only
+            // depend on the previous column, the vertical chain into a cell
+            // is max(M + open, G + extend) of the cell above and is carried
+            // down each lane as if nothing came in from the lane before
+            vF[0] = Math.max(rowZeroMatch(j) + gapOpen, rowZeroGap(j) + gapExtend);
+            if (local) {
+                vF[0] = Math.min(vF[0], 0);
+            }
+            for (int k = 1; k < lanes; k++) {
+                vF[k] = minusInf;
+            }
+            Arrays.fill(laneMax, minusInf);
+
+            if (local) {
+                fillLocal(pM, pG, cM, cG, profile, size);
+            } else {
+                fill(pM, pG, cM, cG, profile, size);
+            }
+
+            // then what flows out of lane k - 1 into lane k, only extension
+            // penalties apply to it inside a lane
+            carry[0] = minusInf;
+            for (int k = 1; k < lanes; k++) {
+                carry[k] = Math.max(vF[k - 1], carry[k - 1] + segLen * gapExtend);
+            }
+            int offset = 0;
+            for (int base = lanes; base < size; base += lanes) {
+                for (int k = 1; k < lanes; k++) {
+                    cG[base + k] = (short) Math.max(cG[base + k], carry[k] + offset);
+                }
+                offset += gapExtend;
+            }
+            shift(cM, cG, j);
+
+            // laneMax includes the padding cells so it's only an upper bound
+            // on the best cell in the column
+            if (local) {
+                int colMax = Integer.MIN_VALUE;
+                for (int k = 0; k < lanes; k++) {
+                    colMax = Math.max(colMax, laneMax[k]);
+                }
+                if (colMax >= ends.bestLocal) {
+                    int best = Integer.MIN_VALUE, bestI = 0;
+                    for (int i = 1; i < rows + 1; i++) {
+                        if (cM[index(i)] > best) {
+                            best = cM[index(i)];
+                            bestI = i;
+                        }
+                    }
+                    if (best > ends.bestLocal || (best == ends.bestLocal && bestI < ends.localI)) {
+                        ends.local(best, bestI, j, predecessor(bestI, j, pM, pG, cM, cG, profile));
+                    }
+                }
+            }
+
+            if (cM[index(rows)] > ends.bestBottom) {
+                ends.bestBottom = cM[index(rows)];
+                ends.bottomJ = j;
+                ends.bottomPred = predecessor(rows, j, pM, pG, cM, cG, profile);
+            }
+
+            if (j == cols) {
+                for (int i = 1; i < rows + 1; i++) {
+                    if (cM[index(i)] > ends.bestRight) {
+                        ends.bestRight = cM[index(i)];
+                        ends.rightI = i;
+                        ends.rightPred = predecessor(i, j, pM, pG, cM, cG, profile);
+                    }
+                }
+                ends.cornerPred = predecessor(rows, j, pM, pG, cM, cG, profile);
+            } else if (prune && j % PairwiseAligner.EndCells.pruneInterval == 0) {
+                // padding cells never feed real cells so they're skipped
+                int remaining = cols - j;
+                int bound = Math.max(ends.bestPicked(), rowZeroMatch(j + 1) + maxDiag * Math.min(remaining - 1, rows));
+                for (int k = 0; k < lanes; k++) {
+                    for (int s = 0, i = k * segLen + 1; s < segLen && i <= rows; s++, i++) {
+                        int index = (s + 1) * lanes + k;
+                        bound = Math.max(bound, Math.max(cM[index], cG[index]) + maxDiag * Math.min(remaining, rows - i));
+                    }
+                }
+                if (bound < minScoreOfInterest) {
+                    return PairwiseScore.pruned(bound);
+                }
+            }
+
+            short[] tmp = pM;
+            pM = cM;
+            cM = tmp;
+            tmp = pG;
+            pG = cG;
+            cG = tmp;
+        }
+
+        return ends.toScore(mode, rows, cols);
+    }
+
+    /**
+     * Fills every segment of the column, kept apart from fillLocal so
+     * neither inner loop branches on the mode
+     */
+    private void fill(short[] pM, short[] pG, short[] cM, short[] cG, short[] profile, int size) {
+        final int[] vF = this.vF;
+        for (int base = lanes; base < size; base += lanes) {
+            for (int k = 0; k < lanes; k++) {
+                int m = Math.max(pM[base - lanes + k], pG[base - lanes + k]) + profile[base + k];
+                int g = Math.max(Math.max(pG[base + k] + gapExtend, pM[base + k] + gapOpen), vF[k]);
+                vF[k] = Math.max(m + gapOpen, g + gapExtend);
+                cM[base + k] = (short) m;
+                cG[base + k] = (short) g;
+            }
+        }
+    }
+
+    /**
+     * Local mode fill, scores are clamped and the lane maximums tracked
+     */
+    private void fillLocal(short[] pM, short[] pG, short[] cM, short[] cG, short[] profile, int size) {
+        final int[] vF = this.vF;
+        for (int base = lanes; base < size; base += lanes) {
+            for (int k = 0; k < lanes; k++) {
+                int m = Math.max(Math.max(pM[base - lanes + k], pG[base - lanes + k]) + profile[base + k], 0);
+                int g = Math.min(Math.max(Math.max(pG[base + k] + gapExtend, pM[base + k] + gapOpen), vF[k]), 0);
+                vF[k] = Math.min(Math.max(m + gapOpen, g + gapExtend), 0);
+                laneMax[k] = Math.max(laneMax[k], m);
+                cM[base + k] = (short) m;
+                cG[base + k] = (short) g;
+            }
+        }
+    }
+
+    /**
+     * Match score of the cell the traceback steps to from (i, j)
+     */
+    private int predecessor(int i, int j, short[] pM, short[] pG, short[] cM, short[] cG, short[] profile) {
+        int diagMatch, diagGap, vertMatch, vertGap;
+        if (i == 1) {
+            diagMatch = rowZeroMatch(j - 1);
+            diagGap = rowZeroGap(j - 1);
+            vertMatch = rowZeroMatch(j);
+            vertGap = rowZeroGap(j);
+        } else {
+            diagMatch = pM[index(i - 1)];
+            diagGap = pG[index(i - 1)];
+            vertMatch = cM[index(i - 1)];
+            vertGap = cG[index(i - 1)];
+        }
+        return aligner.predecessorMatch(diagMatch, diagGap, vertMatch, vertGap, pM[index(i)], pG[index(i)], profile[index(i)]);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+/**
+ * The moves of a traceback in the order they were taken (from the end of
+ * the alignment back to the start) along with the match score of the cell
+ * each move stepped to
+ *
+ * @author fishjord
+ */
+final class TracePath {
+
+    byte[] moves = new byte[64];
+    int[] scores = new int[64];
+    int length;
+
+    void add(byte move, int score) {
+        if (length == moves.length) {
+            byte[] newMoves = new byte[length * 2];
+            int[] newScores = new int[length * 2];
+            System.arraycopy(moves, 0, newMoves, 0, length);
+            System.arraycopy(scores, 0, newScores, 0, length);
+            moves = newMoves;
+            scores = newScores;
+        }
+        moves[length] = move;
+        scores[length] = score;
+        length++;
+    }
+}
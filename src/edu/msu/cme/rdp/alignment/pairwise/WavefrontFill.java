@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.alignment.AlignmentMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fills the full dynamic programming matrix of PairwiseAligner in tiles, the
+ * tiles on one anti-diagonal don't depend on each other and are filled in
+ * parallel. A tile only needs the match scores left of and above it (read
+ * from the match plane, written by earlier anti-diagonals) and the gap
+ * scores of the row above and the column to its left, which are kept for
+ * every tile boundary. Every cell is computed exactly as
+ * PairwiseAligner.populateMatrix computes it so the matrix is identical,
+ * including the check for scores that don't fit a 16 bit match plane.
+ *
+ * Tiles are a multiple of 4 columns wide so no two tiles write the same
+ * byte of the packed trace.
+ *
+ * @author fishjord
+ */
+final class WavefrontFill {
+
+    static final int tileRows = 256;
+    static final int tileCols = 256;
+    private final AlignmentMode mode;
+    private final AlignmentWorkspace workspace;
+    private final ExecutorService executor;
+    private final int gapOpen;
+    private final int gapExtend;
+    private byte[] codes;
+    private int[][] profile;
+    private int rows, cols;
+    /**
+     * bottomGap[t] holds the gap scores of the last row above tile row t
+     * (row 0 for t = 0), rightGap[t] those of the last column left of tile
+     * column t (column 0 for t = 0)
+     */
+    private int[][] bottomGap;
+    private int[][] rightGap;
+
+    WavefrontFill(ScoringMatrix matrix, AlignmentMode mode, AlignmentWorkspace workspace, ExecutorService executor) {
+        this.mode = mode;
+        this.workspace = workspace;
+        this.executor = executor;
+        this.gapOpen = matrix.getGapOpen();
+        this.gapExtend = matrix.getGapExtend();
+    }
+
+    /**
+     * Fills rows 1 to seqi.length, the workspace must already hold row 0 and
+     * column 0 of the match plane and trace
+     *
+     * @param rowZeroGap gap scores of row 0
+     * @return false if the match plane is 16 bit and a score didn't fit
+     */
+    boolean fill(byte[] codes, int[][] profile, int[] rowZeroGap) {
+        this.codes = codes;
+        this.profile = profile;
+        this.rows = codes.length;
+        this.cols = profile[0].length + 1;
+        final int tilesDown = (rows + tileRows - 1) / tileRows;
+        final int tilesAcross = (cols + tileCols - 1) / tileCols;
+
+        bottomGap = new int[tilesDown][];
+        bottomGap[0] = new int[cols];
+        System.arraycopy(rowZeroGap, 0, bottomGap[0], 0, cols);
+        for (int t = 1; t < tilesDown; t++) {
+            bottomGap[t] = new int[cols];
+            bottomGap[t][0] = workspace.matchAt(t * tileRows * cols) + gapExtend;
+        }
+        rightGap = new int[tilesAcross][];
+        rightGap[0] = new int[rows + 1];
+        for (int i = 1; i < rows + 1; i++) {
+            rightGap[0][i] = workspace.matchAt(i * cols) + gapExtend;
+        }
+        for (int t = 1; t < tilesAcross; t++) {
+            rightGap[t] = new int[rows + 1];
+        }
+
+        List<Future<Boolean>> running = new ArrayList<Future<Boolean>>();
+        boolean fits = true;
+        for (int diagonal = 0; fits && diagonal < tilesDown + tilesAcross - 1; diagonal++) {
+            int first = Math.max(0, diagonal - tilesAcross + 1);
+            int last = Math.min(diagonal, tilesDown - 1);
+
+            // the calling thread fills the first tile itself
+            for (int tileRow = first + 1; tileRow <= last; tileRow++) {
+                final int down = tileRow, across = diagonal - tileRow;
+                running.add(executor.submit(new Callable<Boolean>() {
+
+                    public Boolean call() {
+                        return fillTile(down, across);
+                    }
+                }));
+            }
+            fits = fillTile(first, diagonal - first);
+
+            try {
+                for (Future<Boolean> future : running) {
+                    fits &= future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while filling the alignment matrix", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to fill alignment matrix tile", e.getCause());
+            }
+            running.clear();
+        }
+
+        bottomGap = rightGap = null;
+        this.codes = null;
+        this.profile = null;
+        return fits;
+    }
+
+    /**
+     * @return false if the match plane is 16 bit and a score didn't fit
+     */
+    private boolean fillTile(int down, int across) {
+        final boolean narrow = workspace.narrow;
+        final int[] matchPlane = workspace.match;
+        final short[] narrowPlane = workspace.narrowMatch;
+        final byte[] tracePlane = workspace.trace;
+        final int traceStride = workspace.traceStride;
+        final int firstRow = down * tileRows + 1;
+        final int lastRow = Math.min(firstRow + tileRows - 1, rows);
+        final int firstCol = across * tileCols;
+        final int lastCol = Math.min(firstCol + tileCols, cols) - 1;
+        final int start = Math.max(firstCol, 1);
+        final int[] leftGap = rightGap[across];
+
+        // index 0 is the column left of the tile
+        int[] prevMatch = new int[lastCol - firstCol + 2];
+        int[] curMatch = new int[prevMatch.length];
+        int[] prevGap = new int[prevMatch.length];
+        int[] curGap = new int[prevMatch.length];
+        int offset = firstCol - 1;
+        if (firstCol == 0) {
+            System.arraycopy(bottomGap[down], 0, prevGap, 1, prevGap.length - 1);
+        } else {
+            System.arraycopy(bottomGap[down], firstCol - 1, prevGap, 0, prevGap.length);
+        }
+        for (int j = start - 1; j <= lastCol; j++) {
+            prevMatch[j - offset] = workspace.matchAt((firstRow - 1) * cols + j);
+        }
+        int overflow = 0;
+
+        for (int i = firstRow; i <= lastRow; i++) {
+            int row = i * cols;
+            int traceRow = (i * traceStride) >> 2;
+            final int[] scores = profile[codes[i - 1]];
+            curMatch[start - 1 - offset] = workspace.matchAt(row + start - 1);
+            curGap[start - 1 - offset] = leftGap[i];
+            int packed = (firstCol == 0) ? PairwiseAligner.left : 0;
+
+            for (int j = start; j <= lastCol; j++) {
+                int k = j - offset;
+                int sxy = scores[j - 1];
+
+                int scoreUp = Math.max(prevGap[k] + gapExtend, prevMatch[k] + gapOpen);
+                int scoreLeft = Math.max(curGap[k - 1] + gapExtend, curMatch[k - 1] + gapOpen);
+                int m = Math.max(prevMatch[k - 1], prevGap[k - 1]) + sxy;
+
+                if (mode == AlignmentMode.local) {
+                    curMatch[k] = (m < 0) ? 0 : m;
+                    curGap[k] = Math.min(0, Math.max(scoreLeft, scoreUp));
+                } else {
+                    curMatch[k] = m;
+                    curGap[k] = Math.max(scoreLeft, scoreUp);
+                }
+
+                if (narrow) {
+                    narrowPlane[row + j] = (short) curMatch[k];
+                    overflow |= (curMatch[k] - Short.MIN_VALUE) >>> 16;
+                } else {
+                    matchPlane[row + j] = curMatch[k];
+                }
+
+                int traceVal;
+                if (m >= scoreLeft && m >= scoreUp) {
+                    traceVal = PairwiseAligner.diag;
+                } else if (scoreLeft >= m && scoreLeft >= scoreUp) {
+                    traceVal = PairwiseAligner.up;
+                } else {
+                    traceVal = PairwiseAligner.left;
+                }
+
+                packed |= traceVal << ((j & 3) << 1);
+                if ((j & 3) == 3) {
+                    tracePlane[traceRow + (j >> 2)] = (byte) packed;
+                    packed = 0;
+                }
+            }
+            if ((lastCol & 3) != 3) {
+                tracePlane[traceRow + (lastCol >> 2)] = (byte) packed;
+            }
+
+            if (across + 1 < rightGap.length) {
+                rightGap[across + 1][i] = curGap[lastCol - offset];
+            }
+            int[] tmp = prevGap;
+            prevGap = curGap;
+            curGap = tmp;
+            tmp = prevMatch;
+            prevMatch = curMatch;
+            curMatch = tmp;
+        }
+
+        if (down + 1 < bottomGap.length) {
+            System.arraycopy(prevGap, start - offset, bottomGap[down + 1], start, lastCol - start + 1);
+        }
+        return overflow == 0;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+/**
+ * Gapped X-drop extension out of an exact seed match, the seed is extended
+ * to the right and (on the reversed prefixes) to the left. Each extension
+ * fills one row of seqi at a time but only keeps the cells that score no
+ * more than xdrop below the best score seen so far, the columns computed for
+ * a row run from the first to one past the last live cell of the row above
+ * (further while the horizontal gap keeps cells alive). An extension stops
+ * at the first row without live cells, so the work depends on the length
+ * of the alignment and the width of the live region rather than on the
+ * lengths of the sequences.
+ *
+ * Gaps are scored the way PairwiseAligner scores them (a single gap state
+ * costing gapOpen after a match column and gapExtend after a gap column)
+ * but each cell remembers which state it was entered from, so the column
+ * scores of the alignment always add up to its score.
+ *
+ * @author fishjord
+ */
+final class XDropAligner {
+
+    private static final int dead = Integer.MIN_VALUE / 4;
+    /**
+     * Trace bits, the match state was entered from the gap state of the
+     * diagonal cell, the gap state was entered from the cell above (i - 1, j)
+     * rather than the one to the left, the gap state was entered from a gap
+     * state
+     */
+    private static final byte matchFromGap = 1;
+    private static final byte gapFromUp = 2;
+    private static final byte gapFromGap = 4;
+    private final ScoringMatrix matrix;
+    private final int gapOpen;
+    private final int gapExtend;
+    private final int xdrop;
+    /**
+     * Trace of the live region, row i's cells start at rowOffset[i] and
+     * cover columns rowLo[i] up to rowHi[i]
+     */
+    private byte[] trace = new byte[1024];
+    private int[] rowOffset = new int[64];
+    private int[] rowLo = new int[64];
+    private int[] rowHi = new int[64];
+    private int bestI, bestJ, bestScore;
+
+    XDropAligner(ScoringMatrix matrix, int xdrop) {
+        this.matrix = matrix;
+        this.gapOpen = matrix.getGapOpen();
+        this.gapExtend = matrix.getGapExtend();
+        this.xdrop = xdrop;
+    }
+
+    /**
+     * Aligns seqi and seqj through the seed, seqi[seedi + k] is aligned to
+     * seqj[seedj + k] for every k below seedLength
+     */
+    PairwiseAlignment align(char[] seqi, char[] seqj, int seedi, int seedj, int seedLength) {
+        if (seedLength < 1 || seedi < 0 || seedj < 0 || seedi + seedLength > seqi.length || seedj + seedLength > seqj.length) {
+            throw new IllegalArgumentException("Seed doesn't fit in the sequences");
+        }
+
+        PairwiseAlignment.OpsBuilder ops = new PairwiseAlignment.OpsBuilder();
+
+        extend(seqi, seqj, seedi - 1, seedj - 1, -1, seedi, seedj);
+        int starti = seedi - bestI, startj = seedj - bestJ;
+        // traced back from the outer end towards the seed, already left to right
+        traceback(ops);
+
+        ops.add(PairwiseAlignment.OP_MATCH, seedLength);
+
+        extend(seqi, seqj, seedi + seedLength, seedj + seedLength, 1, seqi.length - seedi - seedLength, seqj.length - seedj - seedLength);
+        int endi = seedi + seedLength + bestI, endj = seedj + seedLength + bestJ;
+        PairwiseAlignment.OpsBuilder right = new PairwiseAlignment.OpsBuilder();
+        traceback(right);
+        int[] rightOps = right.toArray();
+        for (int index = rightOps.length - 1; index >= 0; index--) {
+            ops.add(rightOps[index] & 3, rightOps[index] >>> 2);
+        }
+
+        int[] runs = ops.toArray();
+        return new PairwiseAlignment(seqi, seqj, starti, startj, runs, columnScores(seqi, seqj, starti, startj, runs), starti, endi, startj, endj);
+    }
+
+    /**
+     * Running score of each column of the alignment
+     */
+    private int[] columnScores(char[] seqi, char[] seqj, int starti, int startj, int[] runs) {
+        int columns = 0;
+        for (int run : runs) {
+            columns += run >>> 2;
+        }
+
+        int[] ret = new int[columns];
+        int i = starti, j = startj, column = 0, score = 0;
+        boolean inGap = false;
+        for (int run : runs) {
+            int op = run & 3;
+            for (int count = run >>> 2; count > 0; count--) {
+                if (op == PairwiseAlignment.OP_MATCH) {
+                    score += matrix.score(seqi[i++], seqj[j++]);
+                    inGap = false;
+                } else {
+                    score += inGap ? gapExtend : gapOpen;
+                    inGap = true;
+                    if (op == PairwiseAlignment.OP_GAP_J) {
+                        i++;
+                    } else {
+                        j++;
+                    }
+                }
+                ret[column++] = score;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Fills the live region of the extension starting just outside the
+     * seed, row r (column c) of the extension is residue firsti + step * (r - 1)
+     * of seqi (firstj + step * (c - 1) of seqj). Leaves the best cell in
+     * bestI, bestJ and bestScore.
+     */
+    private void extend(char[] seqi, char[] seqj, int firsti, int firstj, int step, int rows, int cols) {
+        byte[] codes = new byte[cols];
+        for (int c = 0; c < cols; c++) {
+            codes[c] = encode(seqj[firstj + step * c]);
+        }
+        int[][] profile = matrix.buildProfile(codes);
+
+        int[] prevM = new int[cols + 1];
+        int[] prevG = new int[cols + 1];
+        int[] curM = new int[cols + 1];
+        int[] curG = new int[cols + 1];
+        bestI = bestJ = bestScore = 0;
+
+        // row 0, only the horizontal gap from the seed
+        prevM[0] = 0;
+        prevG[0] = dead;
+        int hi = 0;
+        for (int j = 1; j <= cols; j++) {
+            int g = (j == 1) ? gapOpen : prevG[j - 1] + gapExtend;
+            if (g < bestScore - xdrop) {
+                break;
+            }
+            prevM[j] = dead;
+            prevG[j] = g;
+            hi = j;
+        }
+        int offset = startRow(0, 0, hi, 0);
+        for (int j = 0; j <= hi; j++) {
+            trace[offset + j] = (j > 1) ? gapFromGap : 0;
+        }
+        int lo = 0;
+
+        for (int i = 1; i <= rows; i++) {
+            final int[] scores = profile[encode(seqi[firsti + step * (i - 1)])];
+            int newLo = -1, newHi = -1;
+            int floor = Math.max(bestScore - xdrop, dead / 2);
+            offset = startRow(i, lo, (hi < cols) ? hi + 1 : hi, rowOffset[i - 1] + (rowHi[i - 1] - rowLo[i - 1] + 1));
+            int j = lo;
+            for (;; j++) {
+                int m = dead;
+                byte traceVal = 0;
+                if (j > lo && j - 1 <= hi) {
+                    int diagM = prevM[j - 1], diagG = prevG[j - 1];
+                    m = Math.max(diagM, diagG) + scores[j - 1];
+                    if (diagG > diagM) {
+                        traceVal = matchFromGap;
+                    }
+                }
+
+                int g = dead;
+                int gapTrace = 0;
+                if (j <= hi) {
+                    int upG = prevG[j] + gapExtend, upM = prevM[j] + gapOpen;
+                    if (upG > upM) {
+                        g = upG;
+                        gapTrace = gapFromUp | gapFromGap;
+                    } else {
+                        g = upM;
+                        gapTrace = gapFromUp;
+                    }
+                }
+                if (j > lo) {
+                    int leftG = curG[j - 1] + gapExtend, leftM = curM[j - 1] + gapOpen;
+                    if (leftG > g) {
+                        g = leftG;
+                        gapTrace = gapFromGap;
+                    }
+                    if (leftM > g) {
+                        g = leftM;
+                        gapTrace = 0;
+                    }
+                }
+
+                boolean alive = m >= floor || g >= floor;
+                if (!alive) {
+                    m = g = dead;
+                } else {
+                    if (newLo == -1) {
+                        newLo = j;
+                    }
+                    newHi = j;
+                    if (m > bestScore) {
+                        bestScore = m;
+                        bestI = i;
+                        bestJ = j;
+                    }
+                }
+                curM[j] = m;
+                curG[j] = g;
+                trace[offset + j - lo] = (byte) (traceVal | gapTrace);
+
+                if (j == cols || (j > hi && !alive)) {
+                    break;
+                }
+                if (j == rowHi[i]) {
+                    offset = growRow(i, j + 1);
+                }
+            }
+            rowHi[i] = j;
+
+            if (newLo == -1) {
+                break;
+            }
+
+            lo = newLo;
+            hi = newHi;
+            int[] tmp = prevM;
+            prevM = curM;
+            curM = tmp;
+            tmp = prevG;
+            prevG = curG;
+            curG = tmp;
+        }
+    }
+
+    private byte encode(char c) {
+        int code = matrix.encode(c);
+        if (code < 0) {
+            throw new IllegalArgumentException("Cannot score " + c);
+        }
+        return (byte) code;
+    }
+
+    /**
+     * Reserves trace space for columns lo to hi of row i at offset
+     */
+    private int startRow(int i, int lo, int hi, int offset) {
+        if (i == rowOffset.length) {
+            int[] tmp = new int[i * 2];
+            System.arraycopy(rowOffset, 0, tmp, 0, i);
+            rowOffset = tmp;
+            tmp = new int[i * 2];
+            System.arraycopy(rowLo, 0, tmp, 0, i);
+            rowLo = tmp;
+            tmp = new int[i * 2];
+            System.arraycopy(rowHi, 0, tmp, 0, i);
+            rowHi = tmp;
+        }
+        rowOffset[i] = offset;
+        rowLo[i] = lo;
+        rowHi[i] = hi;
+        ensureTrace(offset + hi - lo + 1);
+        return offset;
+    }
+
+    /**
+     * Row i ran past its reserved columns, makes room up to column hi
+     */
+    private int growRow(int i, int hi) {
+        rowHi[i] = hi;
+        ensureTrace(rowOffset[i] + hi - rowLo[i] + 1);
+        return rowOffset[i];
+    }
+
+    private void ensureTrace(int size) {
+        if (size > trace.length) {
+            byte[] tmp = new byte[Math.max(size, trace.length * 2)];
+            System.arraycopy(trace, 0, tmp, 0, trace.length);
+            trace = tmp;
+        }
+    }
+
+    /**
+     * Adds the moves from the best cell of the last extension back to its
+     * origin, outermost first
+     */
+    private void traceback(PairwiseAlignment.OpsBuilder ops) {
+        int i = bestI, j = bestJ;
+        boolean inMatch = true;
+
+        while (i > 0 || j > 0) {
+            byte traceVal = trace[rowOffset[i] + j - rowLo[i]];
+            if (inMatch) {
+                ops.add(PairwiseAlignment.OP_MATCH, 1);
+                inMatch = (traceVal & matchFromGap) == 0;
+                i--;
+                j--;
+            } else {
+                if ((traceVal & gapFromUp) != 0) {
+                    ops.add(PairwiseAlignment.OP_GAP_J, 1);
+                    i--;
+                } else {
+                    ops.add(PairwiseAlignment.OP_GAP_I, 1);
+                    j--;
+                }
+                inMatch = (traceVal & gapFromGap) == 0;
+            }
+        }
+    }
+}
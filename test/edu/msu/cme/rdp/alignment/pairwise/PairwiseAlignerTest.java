@@ -18,6 +18,16 @@ package edu.msu.cme.rdp.alignment.pairwise;
 
 import edu.msu.cme.rdp.alignment.AlignmentMode;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -88,4 +98,491 @@ public class PairwiseAlignerTest {
         assertEquals("GTGGAACTTATG-AAGTC-AATG-AAGCTAT", result.getAlignedSeqi());
         assertEquals("GTGGAACTTATGAAAGTCAAATGAAAGCTAT", result.getAlignedSeqj());
     }
+
+    /**
+     * An aligner whose workspace was grown by a large alignment must still
+     * give the baseline results for the smaller alignments that follow
+     */
+    @Test
+    public void testAlignerReuse() {
+        ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
+        String bases = "ACGT";
+        StringBuilder largeRef = new StringBuilder();
+        StringBuilder largeQuery = new StringBuilder();
+        Random rand = new Random(3);
+        for (int index = 0; index < 400; index++) {
+            char base = bases.charAt(rand.nextInt(4));
+            largeRef.append(base);
+            int r = rand.nextInt(20);
+            if (r == 0) {
+                continue;
+            }
+            largeQuery.append(r == 1 ? bases.charAt(rand.nextInt(4)) : base);
+        }
+        String refSeq = "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA";
+        String querySeq = "TGCGCCATGCCGATTCGCGAAAACAAGGCGCAGGAAATCTACATC";
+        String shortSeq = "GCCATGCCGATT";
+
+        // mode, large score, then score, seqi and seqj for refSeq/querySeq and refSeq/shortSeq
+        Object[][] expected = {
+            {AlignmentMode.local, 237,
+                126, "TTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAA",
+                "TGCGCCATGCCGATTCGCGAAAACAAGGCGCAGGAAA",
+                55, "GCCATGCCGATT",
+                "GCCATGCCGATT"},
+            {AlignmentMode.glocal, 1566,
+                181, "TGTGCGGCGGCTTCGCCATGCCGATTTCGCG-AAACAAGGCGCAGGAAAATCTACATCGTGATA",
+                "-----------TGCGCCATGCCGA-TTCGCGAAAACAAGGCGCAGG-AAATCTACATC------",
+                60, "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA",
+                "--------------GCCATGCCGATT-------------------------------------"},
+            {AlignmentMode.overlap, 1566,
+                181, "TGTGCGGCGGCTTCGCCATGCCGATTTCGCG-AAACAAGGCGCAGGAAAATCTACATCGTGATA",
+                "-----------TGCGCCATGCCGA-TTCGCGAAAACAAGGCGCAGG-AAATCTACATC------",
+                60, "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA",
+                "--------------GCCATGCCGATT-------------------------------------"},
+            {AlignmentMode.overlap_trim, 1566,
+                176, "TTCGCCATGCCGATTTCGCG-AAACAAGGCGCAGGAAAATCTACATC",
+                "TGCGCCATGCCGA-TTCGCGAAAACAAGGCGCAGG-AAATCTACATC",
+                55, "GCCATGCCGATT",
+                "GCCATGCCGATT"},
+            {AlignmentMode.global, 1556,
+                147, "TGTGCGGCGGCTTCGCCATGCCGATTTCGCG-AAACAAGGCGCAGGAAAATCTACATCGTGATA",
+                "--T------G---CGCCATGCCGA-TTCGCGAAAACAAGGCGCAGG-AAATCTACATC------",
+                -8, "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA",
+                "-------------------GCC-A--T-----------GC-C--G---------A---T--T-"},
+        };
+
+        for (Object[] row : expected) {
+            PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, (AlignmentMode) row[0]);
+
+            PairwiseAlignment result = aligner.align(largeRef.toString(), largeQuery.toString());
+            assertEquals(row[1], result.getScore());
+
+            result = aligner.align(refSeq, querySeq);
+            assertEquals(row[2], result.getScore());
+            assertEquals(row[3], result.getAlignedSeqi());
+            assertEquals(row[4], result.getAlignedSeqj());
+
+            result = aligner.align(refSeq, shortSeq);
+            assertEquals(row[5], result.getScore());
+            assertEquals(row[6], result.getAlignedSeqi());
+            assertEquals(row[7], result.getAlignedSeqj());
+        }
+    }
+
+    /**
+     * The linear space traceback must give the same alignment and column
+     * scores as the full matrix traceback
+     */
+    @Test
+    public void testLinearSpaceAlign() {
+        ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
+        StringBuilder ref = new StringBuilder();
+        StringBuilder query = new StringBuilder();
+        Random rand = new Random(1);
+        for (int index = 0; index < 600; index++) {
+            char base = "ACGT".charAt(rand.nextInt(4));
+            ref.append(base);
+            if (rand.nextInt(20) != 0) {
+                query.append(rand.nextInt(15) == 0 ? "ACGT".charAt(rand.nextInt(4)) : base);
+            }
+        }
+        String refSeq = ref.toString();
+        String querySeq = query.substring(50, 500);
+
+        for (AlignmentMode mode : new AlignmentMode[]{AlignmentMode.global, AlignmentMode.glocal}) {
+            PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, mode);
+            aligner.setLinearSpaceThreshold(0);
+
+            PairwiseAlignment expected = PairwiseAligner.align(refSeq, querySeq, scoringMatrix, mode);
+            PairwiseAlignment result = aligner.align(refSeq, querySeq);
+
+            assertEquals(expected.getAlignedSeqi(), result.getAlignedSeqi());
+            assertEquals(expected.getAlignedSeqj(), result.getAlignedSeqj());
+            assertEquals(expected.getScores(), result.getScores());
+            assertEquals(expected.getScore(), result.getScore());
+            assertEquals(expected.getStarti(), result.getStarti());
+            assertEquals(expected.getEndi(), result.getEndi());
+        }
+    }
+
+    @Test
+    public void testAlignBanded() {
+        String protRef = "TRLILNSKAQTTVMDLARERGTVEDLELEDVLVEGHLGVRCAESGGPEPGVGCAGRGVITAINFLEENGAYTEDTDYVFYDVLGDVVCGGFAMPIRENKAKEIYIVT";
+        String protQuery = "ergedleledvlveghlgvrcaesggpepgvgcagrgvitainfleengayt";
+        String nuclRef = "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA";
+        String nuclQuery = "TGCGCCATGCCGATTCGCGAAAACAAGGCGCAGGAAATCTACATC";
+
+        for (AlignmentMode mode : AlignmentMode.values()) {
+            assertBandedMatches(protRef, protQuery, ScoringMatrix.getDefaultProteinMatrix(), mode);
+            assertBandedMatches(nuclRef, nuclQuery, ScoringMatrix.getDefaultNuclMatrix(), mode);
+            // no shared k-mers, falls back to the full matrix
+            assertBandedMatches("ACGTACGTAC", "TTTTTTTTTTTT", ScoringMatrix.getDefaultNuclMatrix(), mode);
+        }
+    }
+
+    /**
+     * Random pairs against the full matrix: a band covering every diagonal
+     * must give the full matrix's alignment, a narrow band never a better
+     * score than the full matrix
+     */
+    @Test
+    public void testAlignBandedRandom() {
+        Random rand = new Random(42);
+        AlignmentMode[] modes = {AlignmentMode.global, AlignmentMode.glocal, AlignmentMode.local, AlignmentMode.overlap, AlignmentMode.overlap_trim};
+        for (ScoringMatrix matrix : new ScoringMatrix[]{ScoringMatrix.getDefaultNuclMatrix(), ScoringMatrix.getSimpleScoringMatrix(0, -1)}) {
+            for (AlignmentMode mode : modes) {
+                PairwiseAligner aligner = new PairwiseAligner(matrix, mode);
+                for (int trial = 0; trial < 100; trial++) {
+                    StringBuilder ref = new StringBuilder();
+                    StringBuilder query = new StringBuilder();
+                    int length = 1 + rand.nextInt(80);
+                    for (int index = 0; index < length; index++) {
+                        char base = "ACGT".charAt(rand.nextInt(4));
+                        ref.append(base);
+                        int edit = rand.nextInt(10);
+                        if (edit == 0) {
+                            query.append("ACGT".charAt(rand.nextInt(4)));
+                        } else if (edit == 1) {
+                            query.append(base).append("ACGT".charAt(rand.nextInt(4)));
+                        } else if (edit != 2) {
+                            query.append(base);
+                        }
+                    }
+                    if (query.length() == 0) {
+                        continue;
+                    }
+                    char[] seqi = ref.toString().toCharArray();
+                    char[] seqj = query.toString().toCharArray();
+                    PairwiseAlignment expected = aligner.align(ref.toString(), query.toString());
+
+                    BandedMatrix band = new BandedMatrix(matrix, mode, new AlignmentWorkspace());
+                    band.align(seqi, seqj, 1 - seqi.length, seqj.length - 1);
+                    PairwiseAlignment result = aligner.buildAlignment(seqi, seqj, band.endi, band.endj, band.fillFromJ, band.tailScore, band.path);
+                    assertEquals(expected.getAlignedSeqi(), result.getAlignedSeqi());
+                    assertEquals(expected.getAlignedSeqj(), result.getAlignedSeqj());
+                    assertEquals(expected.getScores(), result.getScores());
+                    assertEquals(expected.getStarti(), result.getStarti());
+                    assertEquals(expected.getStartj(), result.getStartj());
+
+                    PairwiseAlignment banded = aligner.alignBanded(ref.toString(), query.toString());
+                    assertTrue(banded.getScore() <= expected.getScore());
+                    assertEquals(banded.getScore(), aligner.scoreBanded(ref.toString(), query.toString()).getScore());
+                }
+            }
+        }
+    }
+
+    private static void assertBandedMatches(String seqi, String seqj, ScoringMatrix scoringMatrix, AlignmentMode mode) {
+        PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, mode);
+
+        PairwiseAlignment expected = PairwiseAligner.align(seqi, seqj, scoringMatrix, mode);
+        PairwiseAlignment result = aligner.alignBanded(seqi, seqj);
+        PairwiseScore score = aligner.scoreBanded(seqi, seqj);
+
+        assertEquals(expected.getAlignedSeqi(), result.getAlignedSeqi());
+        assertEquals(expected.getAlignedSeqj(), result.getAlignedSeqj());
+        assertEquals(expected.getScores(), result.getScores());
+        assertEquals(expected.getStarti(), result.getStarti());
+        assertEquals(expected.getStartj(), result.getStartj());
+        assertEquals(expected.getScore(), score.getScore());
+        assertEquals(expected.getEndi(), score.getEndi());
+        assertEquals(expected.getEndj(), score.getEndj());
+    }
+
+    /**
+     * Test of score method, the score only alignment must report the same
+     * score and end coordinates as the full alignment
+     */
+    @Test
+    public void testScore() {
+        String protRef = "TRLILNSKAQTTVMDLARERGTVEDLELEDVLVEGHLGVRCAESGGPEPGVGCAGRGVITAINFLEENGAYTEDTDYVFYDVLGDVVCGGFAMPIRENKAKEIYIVT";
+        String protQuery = "ergedleledvlveghlgvrcaesggpepgvgcagrgvitainfleengayt";
+        String nuclRef = "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA";
+        String nuclQuery = "TGCGCCATGCCGATTCGCGAAAACAAGGCGCAGGAAATCTACATC";
+
+        for (AlignmentMode mode : AlignmentMode.values()) {
+            assertScoreMatches(protRef, protQuery, ScoringMatrix.getDefaultProteinMatrix(), mode);
+            assertScoreMatches(protQuery, protRef, ScoringMatrix.getDefaultProteinMatrix(), mode);
+            assertScoreMatches(nuclRef, nuclQuery, ScoringMatrix.getDefaultNuclMatrix(), mode);
+            assertScoreMatches(nuclQuery, nuclRef, ScoringMatrix.getDefaultNuclMatrix(), mode);
+        }
+    }
+
+    @Test
+    public void testStripedScore() {
+        Random rand = new Random(7);
+        StringBuilder ref = new StringBuilder();
+        StringBuilder query = new StringBuilder();
+        for (int index = 0; index < 300; index++) {
+            char base = "ACGT".charAt(rand.nextInt(4));
+            ref.append(base);
+            if (rand.nextInt(10) != 0) {
+                query.append(rand.nextInt(10) == 0 ? "ACGT".charAt(rand.nextInt(4)) : base);
+            }
+        }
+
+        // the second matrix's scores don't fit in 16 bits, so the scalar fill is used
+        ScoringMatrix[] matrices = {ScoringMatrix.getDefaultNuclMatrix(), ScoringMatrix.getSimpleScoringMatrix(1000, -1500)};
+        for (ScoringMatrix scoringMatrix : matrices) {
+            for (AlignmentMode mode : AlignmentMode.values()) {
+                PairwiseAligner striped = new PairwiseAligner(scoringMatrix, mode);
+                PairwiseAligner scalar = new PairwiseAligner(scoringMatrix, mode);
+                striped.setStripedScoring(true);
+                scalar.setStripedScoring(false);
+
+                String[][] pairs = {{ref.toString(), query.toString()}, {query.toString(), ref.toString()}, {ref.substring(100, 117), query.toString()}};
+                for (String[] pair : pairs) {
+                    PairwiseScore expected = scalar.score(pair[0], pair[1]);
+                    PairwiseScore result = striped.score(pair[0], pair[1]);
+                    assertEquals(expected.getScore(), result.getScore());
+                    assertEquals(expected.getEndi(), result.getEndi());
+                    assertEquals(expected.getEndj(), result.getEndj());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBuildProfile() {
+        ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultProteinMatrix();
+        char[] query = "MSKIEDWVQGYEFh".toCharArray();
+        char[] ref = "gwVEEMlktQ".toCharArray();
+
+        int[][] profile = scoringMatrix.buildProfile(scoringMatrix.encode(query));
+        int[][] refProfile = scoringMatrix.buildReferenceProfile(scoringMatrix.encode(ref));
+        assertEquals(scoringMatrix.getAlphabetSize(), profile.length);
+        for (int i = 0; i < ref.length; i++) {
+            for (int j = 0; j < query.length; j++) {
+                assertEquals(scoringMatrix.score(ref[i], query[j]), profile[scoringMatrix.encode(ref[i])][j]);
+                assertEquals(scoringMatrix.score(ref[i], query[j]), refProfile[scoringMatrix.encode(query[j])][i]);
+            }
+        }
+
+        assertEquals(-1, scoringMatrix.encode('-'));
+        try {
+            scoringMatrix.encode("AC-GT".toCharArray());
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testScorePruning() {
+        ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
+        String ref = "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA";
+        String query = "TGCGCCATGCCGATTCGCGAAAACAAGGCGCAGGAAATCTACATC";
+        String unrelated = "CATTTAAGACCCATTTAGTTAGAGCTTAATATAATCCCTTGGCGGATCCAATTACCGAGGCA";
+
+        for (AlignmentMode mode : AlignmentMode.values()) {
+            PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, mode);
+            for (boolean striped : new boolean[]{true, false}) {
+                aligner.setStripedScoring(striped);
+                PairwiseScore expected = aligner.score(ref, query);
+
+                PairwiseScore result = aligner.score(ref, query, expected.getScore());
+                assertFalse(result.isPruned());
+                assertEquals(expected.getScore(), result.getScore());
+                assertEquals(expected.getEndi(), result.getEndi());
+                assertEquals(expected.getEndj(), result.getEndj());
+
+                result = aligner.score(unrelated, query, expected.getScore());
+                if (result.isPruned()) {
+                    assertTrue(result.getScore() < expected.getScore());
+                    assertTrue(result.getScore() >= aligner.score(unrelated, query).getScore());
+                }
+            }
+
+            PairwiseScore expected = aligner.score(ref, query);
+            int[] scores = aligner.scoreAgainstMany(query, Arrays.asList(unrelated, ref), expected.getScore());
+            assertEquals(expected.getScore(), scores[3]);
+            assertEquals(expected.getEndi(), scores[4]);
+            assertEquals(expected.getEndj(), scores[5]);
+            assertTrue(scores[1] >= 0 || scores[0] < expected.getScore());
+        }
+
+        PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, AlignmentMode.glocal);
+        assertTrue(aligner.score(unrelated, query, 200).isPruned());
+    }
+
+    @Test
+    public void testCigar() {
+        ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
+        PairwiseAlignment result = PairwiseAligner.align("ACGTTAGGCA", "CGTAGG", scoringMatrix, AlignmentMode.global);
+        assertEquals("ACGTTAGGCA", result.getAlignedSeqi());
+        assertEquals("-CG-TAGG--", result.getAlignedSeqj());
+        assertEquals("1D2M1D4M2D", result.getCigar());
+
+        PairwiseAlignment copy = new PairwiseAlignment(result.getAlignedSeqi(), result.getAlignedSeqj(), result.getScores(), result.getStarti(), result.getEndi(), result.getStartj(), result.getEndj());
+        assertEquals(result.getCigar(), copy.getCigar());
+        assertEquals(result.getScore(), copy.getScore());
+    }
+
+    @Test
+    public void testScoreAgainstMany() {
+        String nuclRef = "TGTGCGGCGGCTTCGCCATGCCGATTTCGCGAAACAAGGCGCAGGAAAATCTACATCGTGATA";
+        String nuclQuery = "TGCGCCATGCCGATTCGCGAAAACAAGGCGCAGGAAATCTACATC";
+        List<String> refs = new ArrayList<String>();
+        for (int index = 0; index < 20; index++) {
+            refs.add(nuclRef.substring(index % 7, nuclRef.length() - index));
+        }
+        refs.add("");
+        refs.add(nuclQuery);
+
+        for (AlignmentMode mode : AlignmentMode.values()) {
+            int[] scores = PairwiseAligner.scoreAgainstMany(nuclQuery, refs, ScoringMatrix.getDefaultNuclMatrix(), mode);
+            assertEquals(refs.size() * 3, scores.length);
+
+            for (int index = 0; index < refs.size(); index++) {
+                PairwiseScore expected = PairwiseAligner.score(refs.get(index), nuclQuery, ScoringMatrix.getDefaultNuclMatrix(), mode);
+                assertEquals(expected.getScore(), scores[index * 3]);
+                assertEquals(expected.getEndi(), scores[index * 3 + 1]);
+                assertEquals(expected.getEndj(), scores[index * 3 + 2]);
+            }
+        }
+    }
+
+    private static void assertScoreMatches(String seqi, String seqj, ScoringMatrix scoringMatrix, AlignmentMode mode) {
+        PairwiseAlignment expected = PairwiseAligner.align(seqi, seqj, scoringMatrix, mode);
+        PairwiseScore result = PairwiseAligner.score(seqi, seqj, scoringMatrix, mode);
+
+        assertEquals(mode.toString(), expected.getScore(), result.getScore());
+        assertEquals(mode.toString(), expected.getEndi(), result.getEndi());
+        assertEquals(mode.toString(), expected.getEndj(), result.getEndj());
+    }
+
+    @Test
+    public void testXDrop() {
+        ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
+        String ref = "GGGGGGGGGGACGTTAGGCATTGACCGATAGCTAGGCATCCCCCCCCCC";
+        String query = "ACGTTAGGCATTGACCGATTAGCTAGGCAT";
+
+        PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, AlignmentMode.xdrop);
+        PairwiseAlignment result = aligner.align(ref, query);
+        assertEquals(10, result.getStarti());
+        assertEquals(39, result.getEndi());
+        assertEquals(0, result.getStartj());
+        assertEquals(query.length(), result.getEndj());
+        assertEquals(ref.substring(10, 39), result.getAlignedSeqi().replace("-", ""));
+        assertEquals(query, result.getAlignedSeqj().replace("-", ""));
+        assertEquals("19M1I10M", result.getCigar());
+        assertEquals(aligner.score(ref, query).getScore(), result.getScore());
+
+        // with no drop allowed the extension stops at the inserted base
+        aligner.setXDrop(0);
+        result = aligner.alignFromSeed(ref, query, 10, 0, 8);
+        assertEquals("19M", result.getCigar());
+        assertEquals(29, result.getEndi());
+    }
+
+    @Test
+    public void testUnitCostAlign() throws IOException {
+        ScoringMatrix scoringMatrix = new ScoringMatrix(ScoringMatrix.class.getResourceAsStream("/data/simple_scoringmatrix.txt"), -1, -1);
+        assertTrue(scoringMatrix.isUnitCost());
+        assertFalse(ScoringMatrix.getDefaultNuclMatrix().isUnitCost());
+
+        StringBuilder ref = new StringBuilder();
+        for (int index = 0; index < 150; index++) {
+            ref.append("ACGGTCATTG".charAt((index * 7) % 10));
+        }
+        // two deletions and a substitution, spread over three 64 base blocks
+        StringBuilder query = new StringBuilder(ref);
+        query.deleteCharAt(120);
+        query.setCharAt(70, (ref.charAt(70) == 'A') ? 'C' : 'A');
+        query.deleteCharAt(10);
+
+        PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, AlignmentMode.global);
+        PairwiseAlignment result = aligner.align(ref.toString(), query.toString());
+        assertEquals(ref.toString(), result.getAlignedSeqi().replace("-", ""));
+        assertEquals(query.toString(), result.getAlignedSeqj().replace("-", ""));
+        assertEquals(-3, result.getScore());
+        assertEquals(result.getScore(), aligner.score(ref.toString(), query.toString()).getScore());
+    }
+
+    @Test
+    public void testWavefrontAlign() {
+        ScoringMatrix scoringMatrix = ScoringMatrix.getDefaultNuclMatrix();
+        StringBuilder ref = new StringBuilder();
+        StringBuilder query = new StringBuilder();
+        for (int index = 0; index < 700; index++) {
+            ref.append("ACGGTCATTGCA".charAt((index * index + 3 * index) % 12));
+        }
+        for (int index = 50; index < 650; index++) {
+            if (index % 37 != 0) {
+                query.append((index % 53 == 0) ? 'T' : ref.charAt(index));
+            }
+        }
+
+        for (AlignmentMode mode : new AlignmentMode[]{AlignmentMode.global, AlignmentMode.local, AlignmentMode.overlap}) {
+            PairwiseAlignment expected = new PairwiseAligner(scoringMatrix, mode).align(ref.toString(), query.toString());
+            PairwiseAligner aligner = new PairwiseAligner(scoringMatrix, mode);
+            aligner.setWavefrontThreshold(0);
+            PairwiseAlignment result = aligner.align(ref.toString(), query.toString());
+
+            assertEquals(mode.toString(), expected.getAlignedSeqi(), result.getAlignedSeqi());
+            assertEquals(mode.toString(), expected.getAlignedSeqj(), result.getAlignedSeqj());
+            assertEquals(mode.toString(), expected.getScores(), result.getScores());
+            assertEquals(mode.toString(), expected.getStarti(), result.getStarti());
+            assertEquals(mode.toString(), expected.getEndj(), result.getEndj());
+        }
+    }
+
+    @Test
+    public void testNarrowOverflow() {
+        // positive gap scores let the path scores run past a short although
+        // the best diagonal doesn't, the 16 bit fill has to be redone
+        ScoringMatrix scoringMatrix = ScoringMatrix.getSimpleScoringMatrix(100, 90);
+        StringBuilder seqi = new StringBuilder();
+        StringBuilder seqj = new StringBuilder();
+        for (int index = 0; index < 300; index++) {
+            seqi.append("acgt".charAt((index * 7 + index / 3) % 4));
+            seqj.append("acgt".charAt((index * 5 + index / 7) % 4));
+        }
+
+        PairwiseAlignment result = new PairwiseAligner(scoringMatrix, AlignmentMode.overlap).align(seqi.toString(), seqj.toString());
+        assertEquals(53830, result.getScore());
+        assertEquals(53830, (int) result.getScores().get(result.getScores().size() - 1));
+        assertEquals(1, result.getStarti());
+        assertEquals(300, result.getEndj());
+    }
+
+    @Test
+    public void testScoringMatrixRegistry() throws Exception {
+        ScoringMatrix matrix = ScoringMatrixRegistry.getResourceMatrix("/data/NUC.4.4", ScoringMatrix.DEFAULT_GAP_OPEN_PEALTY, ScoringMatrix.DEFAULT_GAP_EXT_PENALTY, ScoringMatrix.DEFAULT_FRAME_SHIFT_PENALTY);
+        assertSame(matrix, ScoringMatrix.getDefaultNuclMatrix());
+        assertNotSame(matrix, ScoringMatrixRegistry.getResourceMatrix("/data/NUC.4.4", -5, ScoringMatrix.DEFAULT_GAP_EXT_PENALTY, ScoringMatrix.DEFAULT_FRAME_SHIFT_PENALTY));
+
+        int size = matrix.getAlphabetSize();
+        int[] table = matrix.getScoreTable();
+        String residues = "acgtnACGTN";
+        byte[] codes = matrix.encode(residues.toCharArray());
+        for (int a = 0; a < residues.length(); a++) {
+            for (int b = 0; b < residues.length(); b++) {
+                assertEquals(matrix.score(residues.charAt(a), residues.charAt(b)), table[codes[a] * size + codes[b]]);
+            }
+        }
+    }
+
+    /**
+     * A matrix read back through JAXB scores like the one written
+     */
+    @Test
+    public void testScoringMatrixUnmarshal() throws Exception {
+        ScoringMatrix matrix = ScoringMatrix.getDefaultProteinMatrix();
+        JAXBContext context = JAXBContext.newInstance(ScoringMatrix.class);
+        StringWriter xml = new StringWriter();
+        context.createMarshaller().marshal(new JAXBElement<ScoringMatrix>(new QName("matrix"), ScoringMatrix.class, matrix), xml);
+        ScoringMatrix read = context.createUnmarshaller().unmarshal(new StreamSource(new StringReader(xml.toString())), ScoringMatrix.class).getValue();
+
+        assertEquals(matrix.getMaxScore(), read.getMaxScore());
+        assertEquals(matrix.isUnitCost(), read.isUnitCost());
+        assertArrayEquals(matrix.getScoreTable(), read.getScoreTable());
+        assertArrayEquals(matrix.encode("ARNDCw*".toCharArray()), read.encode("ARNDCw*".toCharArray()));
+        assertEquals(matrix.score('W', 'y'), read.score('W', 'y'));
+
+        String refSeq = "TRLILNSKAQTTVMDLARERGTVEDLELEDVLVEGHLGVRCAESGGPEPGVGCAGRGVITAINFLEENGAYTEDTDYVFYDVLGDVVCGGFAMPIRENKAKEIYIVT";
+        String querySeq = "ergedleledvlveghlgvrcaesggpepgvgcagrgvitainfleengayt";
+        assertEquals(PairwiseAligner.align(refSeq, querySeq, matrix, AlignmentMode.glocal).getScore(),
+                PairwiseAligner.align(refSeq, querySeq, read, AlignmentMode.glocal).getScore());
+    }
 }
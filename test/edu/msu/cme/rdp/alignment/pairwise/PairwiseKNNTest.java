@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.alignment.pairwise;
+
+import edu.msu.cme.rdp.alignment.AlignmentMode;
+import edu.msu.cme.rdp.alignment.pairwise.rna.OverlapCheckFailedException;
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import edu.msu.cme.rdp.readseq.readers.SequenceReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class PairwiseKNNTest {
+
+    private static final String bases = "ACGT";
+
+    private static String randomSeq(Random rand, int length) {
+        StringBuilder ret = new StringBuilder();
+        for (int index = 0; index < length; index++) {
+            ret.append(bases.charAt(rand.nextInt(4)));
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Writes count random sequences named prefix0, prefix1...
+     */
+    private static File writeSeqs(String prefix, int count, long seed) throws IOException {
+        Random rand = new Random(seed);
+        File ret = File.createTempFile("knn" + prefix, ".fasta");
+        ret.deleteOnExit();
+        PrintStream out = new PrintStream(ret);
+        for (int index = 0; index < count; index++) {
+            out.println(">" + prefix + index + " desc" + index);
+            out.println(randomSeq(rand, 80 + rand.nextInt(40)));
+        }
+        out.close();
+        return ret;
+    }
+
+    /**
+     * A PairwiseKNN whose findMatch throws failure for the query named fail
+     */
+    private static PairwiseKNN failingKNN(File refFile, final String fail, final Throwable failure) throws IOException {
+        return new PairwiseKNN(refFile, AlignmentMode.glocal, 1, 0, 0) {
+
+            @Override
+            public List<Neighbor> findMatch(Sequence seq, boolean removeBaseN) throws IOException, OverlapCheckFailedException {
+                if (seq.getSeqName().equals(fail)) {
+                    if (failure instanceof Error) {
+                        throw (Error) failure;
+                    }
+                    throw new IOException(failure);
+                }
+                return super.findMatch(seq, removeBaseN);
+            }
+        };
+    }
+
+    /**
+     * A failing query is reported and skipped, the others come out in order
+     */
+    @Test(timeout = 60000)
+    public void testPipelineQueryFailure() throws Exception {
+        File refFile = writeSeqs("r", 20, 1);
+        File queryFile = writeSeqs("q", 30, 2);
+        PairwiseKNN knn = failingKNN(refFile, "q3", new Exception("test failure"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int failed = new KNNPipeline(knn, false, 4, 2, true, KNNPipeline.Format.text).run(new SequenceReader(queryFile), out);
+        assertEquals(1, failed);
+
+        String[] lines = out.toString().split("\n");
+        int next = 0;
+        for (String line : lines) {
+            if (line.startsWith("@")) {
+                String name = line.substring(1, line.indexOf('\t'));
+                assertEquals("q" + ((next == 3) ? ++next : next), name);
+                next++;
+            }
+        }
+        assertEquals(30, next);
+    }
+
+    /**
+     * An Error in a worker must fail the run rather than hang it, with one
+     * worker (nothing left to take queries) and with several
+     */
+    @Test(timeout = 60000)
+    public void testPipelineWorkerError() throws Exception {
+        File refFile = writeSeqs("r", 20, 1);
+        File queryFile = writeSeqs("q", 50, 2);
+        for (int threads : new int[]{1, 4}) {
+            PairwiseKNN knn = failingKNN(refFile, "q3", new StackOverflowError("test error"));
+            try {
+                new KNNPipeline(knn, false, threads, 2, true, KNNPipeline.Format.text).run(new SequenceReader(queryFile), new ByteArrayOutputStream());
+                fail("Worker error wasn't reported");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof StackOverflowError);
+            }
+        }
+    }
+
+    /**
+     * A writer that can't write must fail the run rather than leave the
+     * reader waiting for the writer to make room
+     */
+    @Test(timeout = 60000)
+    public void testPipelineWriterFailure() throws Exception {
+        File refFile = writeSeqs("r", 20, 1);
+        File queryFile = writeSeqs("q", 50, 2);
+        OutputStream full = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+
+        for (boolean ordered : new boolean[]{false, true}) {
+            PairwiseKNN knn = new PairwiseKNN(refFile, AlignmentMode.glocal, 1, 0, 0);
+            try {
+                new KNNPipeline(knn, false, 2, 2, ordered, KNNPipeline.Format.text).run(new SequenceReader(queryFile), full);
+                fail("Writer failure wasn't reported");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    /**
+     * The index round trips the references and ranks the reference a query
+     * was cut from first
+     */
+    @Test
+    public void testKmerIndex() throws Exception {
+        File refFile = writeSeqs("r", 50, 3);
+        File indexFile = File.createTempFile("knn", ".kidx");
+        indexFile.deleteOnExit();
+        KmerIndex.write(refFile, indexFile, 8);
+
+        assertTrue(KmerIndex.isIndex(indexFile));
+        assertFalse(KmerIndex.isIndex(refFile));
+
+        KmerIndex index = KmerIndex.open(indexFile);
+        List<Sequence> refs = SequenceReader.readFully(refFile);
+        assertEquals(refs.size(), index.size());
+        assertEquals(8, index.getWordSize());
+        for (int ref = 0; ref < refs.size(); ref++) {
+            assertEquals(refs.get(ref).getSeqName(), index.getSequences().getName(ref));
+            assertEquals(refs.get(ref).getSeqString(), index.getSequences().getSequence(ref).getSeqString());
+        }
+
+        for (int ref = 0; ref < refs.size(); ref += 7) {
+            String seq = refs.get(ref).getSeqString();
+            Sequence query = new Sequence("q" + ref, "", seq.substring(10, seq.length() - 10));
+            int[] shared = new int[5];
+            int[] top = index.findTopK(query, 5, shared);
+            assertTrue(top.length > 0);
+            assertEquals(ref, top[0]);
+            assertEquals(KmerIndex.kmers(query.getSeqString(), index.getSequenceType(), 8).length, shared[0]);
+            for (int t = 1; t < top.length; t++) {
+                assertTrue(shared[t] <= shared[t - 1]);
+            }
+            assertEquals(refs.get(ref).getSeqName(), index.findTopKMatch(query, 1).get(0).getSeqName());
+        }
+    }
+
+    /**
+     * A server answers the same as aligning locally, and turns away a
+     * string length it can't have been sent, before and after it accepted
+     * the batch
+     */
+    @Test(timeout = 60000)
+    public void testServer() throws Exception {
+        File refFile = writeSeqs("r", 20, 1);
+        File queryFile = writeSeqs("q", 30, 2);
+        PairwiseKNN knn = new PairwiseKNN(refFile, AlignmentMode.glocal, 2, 0, 0);
+        final Map<String, PairwiseKNN> refSets = new HashMap<String, PairwiseKNN>();
+        refSets.put("refs", knn);
+
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(null));
+        Thread serving = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    new KNNServer(refSets, 2).serve(server);
+                } catch (IOException ignore) {
+                }
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            KNNClient.query(server.getLocalPort(), "refs", SequenceType.Nucleotide, new SequenceReader(queryFile), false, "queries", new PrintStream(out));
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            PrintStream expectedOut = new PrintStream(expected);
+            expectedOut.println("#query file: queries db file: refs " + knn.describe());
+            expectedOut.println(PairwiseKNN.columnHeader);
+            for (Sequence seq : SequenceReader.readFully(queryFile)) {
+                expectedOut.print(knn.formatNeighbors(seq, knn.findMatch(seq, false)));
+            }
+            expectedOut.close();
+            assertEquals(expected.toString(), out.toString());
+
+            Socket socket = new Socket(InetAddress.getByName(null), server.getLocalPort());
+            DataOutputStream sockOut = new DataOutputStream(socket.getOutputStream());
+            DataInputStream sockIn = new DataInputStream(socket.getInputStream());
+            sockOut.writeInt(KNNServer.magic);
+            sockOut.writeInt(Integer.MAX_VALUE);
+            sockOut.flush();
+            assertEquals(KNNServer.error, sockIn.readInt());
+            assertTrue(Utf8Strings.read(sockIn).startsWith("Bad string length"));
+            socket.close();
+
+            socket = new Socket(InetAddress.getByName(null), server.getLocalPort());
+            sockOut = new DataOutputStream(socket.getOutputStream());
+            sockIn = new DataInputStream(socket.getInputStream());
+            sockOut.writeInt(KNNServer.magic);
+            Utf8Strings.write(sockOut, "refs");
+            Utf8Strings.write(sockOut, SequenceType.Nucleotide.toString());
+            sockOut.writeBoolean(false);
+            sockOut.writeBoolean(true);
+            Utf8Strings.write(sockOut, "q0");
+            Utf8Strings.write(sockOut, "");
+            Utf8Strings.write(sockOut, randomSeq(new Random(3), 100));
+            sockOut.writeBoolean(true);
+            sockOut.writeInt(-5);
+            sockOut.flush();
+            assertEquals(KNNServer.ok, sockIn.readInt());
+            Utf8Strings.read(sockIn);
+            assertTrue(Utf8Strings.read(sockIn).startsWith("@q0"));
+            assertEquals(KNNServer.failedResults, sockIn.readInt());
+            assertTrue(Utf8Strings.read(sockIn).startsWith("Bad string length"));
+            socket.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Merged shards find the same neighbors as one search, with references
+     * sharing a name and a sequence so ties have to be broken on position
+     */
+    @Test(timeout = 60000)
+    public void testShardMerge() throws Exception {
+        Random rand = new Random(4);
+        File refFile = File.createTempFile("knnr", ".fasta");
+        refFile.deleteOnExit();
+        File queryFile = File.createTempFile("knnq", ".fasta");
+        queryFile.deleteOnExit();
+        PrintStream refOut = new PrintStream(refFile);
+        PrintStream queryOut = new PrintStream(queryFile);
+        String[] seqs = new String[20];
+        for (int index = 0; index < 30; index++) {
+            String seq = (index < seqs.length) ? randomSeq(rand, 80 + rand.nextInt(40)) : seqs[index - seqs.length];
+            if (index < seqs.length) {
+                seqs[index] = seq;
+                queryOut.println(">q" + index);
+                queryOut.println(seq.substring(5, seq.length() - 5));
+            }
+            refOut.println(">r" + (index % seqs.length) + " desc" + index);
+            refOut.println(seq);
+        }
+        refOut.close();
+        queryOut.close();
+
+        String header = "#test";
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream expectedOut = new PrintStream(expected);
+        expectedOut.println(header);
+        expectedOut.println(PairwiseKNN.columnHeader);
+        new KNNPipeline(new PairwiseKNN(refFile, AlignmentMode.glocal, 3, 0, 0), false, 2, 2, true, KNNPipeline.Format.text).run(new SequenceReader(queryFile), expectedOut);
+        expectedOut.close();
+
+        int numShards = 3;
+        List<File> parts = new ArrayList<File>();
+        for (int shard = 0; shard < numShards; shard++) {
+            File part = File.createTempFile("knns", ".part");
+            part.deleteOnExit();
+            DataOutputStream partOut = new DataOutputStream(new FileOutputStream(part));
+            KNNMerge.writeHeader(partOut, shard, numShards, 3, header);
+            new KNNPipeline(new PairwiseKNN(refFile, AlignmentMode.glocal, 3, 0, 0, shard, numShards), false, 2, 2, true, KNNPipeline.Format.partial).run(new SequenceReader(queryFile), partOut);
+            partOut.writeBoolean(false);
+            partOut.close();
+            parts.add(part);
+        }
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        PrintStream mergedOut = new PrintStream(merged);
+        KNNMerge.merge(parts, mergedOut);
+        mergedOut.close();
+
+        assertEquals(expected.toString(), merged.toString());
+    }
+
+    /**
+     * The adaptive prefilter aligns the candidates within the ratio of the
+     * best k-mer score, logs and counts every query including cache hits,
+     * and still finds the reference a query was cut from
+     */
+    @Test(timeout = 60000)
+    public void testAdaptivePrefilter() throws Exception {
+        File refFile = writeSeqs("r", 40, 5);
+        File indexFile = File.createTempFile("knn", ".kidx");
+        indexFile.deleteOnExit();
+        KmerIndex.write(refFile, indexFile, 8);
+        KmerIndex index = KmerIndex.open(indexFile);
+        List<Sequence> refs = SequenceReader.readFully(refFile);
+
+        PairwiseKNN knn = new PairwiseKNN(indexFile, AlignmentMode.glocal, 1, 0, 10);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream logOut = new PrintStream(log);
+        knn.setAdaptivePrefilter(.5, 2, logOut);
+        knn.setCacheSize(100);
+
+        List<Sequence> queries = new ArrayList<Sequence>();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int ref = 0; ref < 10; ref++) {
+                String seq = refs.get(ref).getSeqString();
+                queries.add(new Sequence("q" + ref, "", seq.substring(10, seq.length() - 10)));
+            }
+        }
+        for (int query = 0; query < queries.size(); query++) {
+            List<PairwiseKNN.Neighbor> neighbors = knn.findMatch(queries.get(query), false);
+            assertEquals(refs.get(query % 10).getSeqName(), neighbors.get(0).getDbSeq().getSeqName());
+        }
+        logOut.close();
+        assertEquals(10, knn.getCache().getHits());
+
+        String[] lines = log.toString().split("\n");
+        assertEquals(queries.size(), lines.length);
+        int[] histogram = new int[11];
+        for (int query = 0; query < lines.length; query++) {
+            String[] fields = lines[query].split("\t");
+            int[] shared = new int[10];
+            int[] top = index.findTopK(queries.get(query), 10, shared);
+            int depth = 0;
+            while (depth < top.length && shared[depth] >= .5 * shared[0]) {
+                depth++;
+            }
+            depth = Math.min(top.length, Math.max(depth, 2));
+
+            assertEquals(queries.get(query).getSeqName(), fields[0]);
+            assertEquals(depth, Integer.parseInt(fields[1]));
+            assertEquals(top.length, Integer.parseInt(fields[2]));
+            assertEquals(shared[0], Double.parseDouble(fields[3]), 0);
+            histogram[depth]++;
+        }
+
+        String stats = knn.getDepthStats();
+        for (int depth = 0; depth < histogram.length; depth++) {
+            assertEquals(histogram[depth] > 0, stats.contains(" " + depth + ":" + histogram[depth]));
+        }
+    }
+
+    /**
+     * knn-view of a binary output prints the same as the text output, with
+     * queries cut from references that share a name with an earlier one
+     */
+    @Test(timeout = 60000)
+    public void testBinaryDuplicateNames() throws Exception {
+        Random rand = new Random(6);
+        File refFile = File.createTempFile("knnr", ".fasta");
+        refFile.deleteOnExit();
+        File queryFile = File.createTempFile("knnq", ".fasta");
+        queryFile.deleteOnExit();
+        PrintStream refOut = new PrintStream(refFile);
+        PrintStream queryOut = new PrintStream(queryFile);
+        for (int index = 0; index < 20; index++) {
+            String seq = randomSeq(rand, 80 + rand.nextInt(40));
+            refOut.println(">r" + (index % 10) + " desc" + index);
+            refOut.println(seq);
+            if (index >= 10) {
+                queryOut.println(">q" + index);
+                queryOut.println(seq.substring(5, seq.length() - 5));
+            }
+        }
+        refOut.close();
+        queryOut.close();
+        File indexFile = File.createTempFile("knn", ".kidx");
+        indexFile.deleteOnExit();
+        KmerIndex.write(refFile, indexFile, 8);
+
+        String header = "#test";
+        for (PairwiseKNN knn : new PairwiseKNN[]{new PairwiseKNN(refFile, AlignmentMode.glocal, 2, 0, 0), new PairwiseKNN(indexFile, AlignmentMode.glocal, 2, 0, 0),
+                    new PairwiseKNN(indexFile, AlignmentMode.glocal, 2, 0, 5)}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            PrintStream expectedOut = new PrintStream(expected);
+            expectedOut.println(header);
+            expectedOut.println(PairwiseKNN.columnHeader);
+            new KNNPipeline(knn, false, 2, 2, true, KNNPipeline.Format.text).run(new SequenceReader(queryFile), expectedOut);
+            expectedOut.close();
+            assertTrue(expected.toString().contains("\tr0\tdesc10"));
+
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            DataOutputStream binaryOut = new DataOutputStream(binary);
+            knn.writeBinaryHeader(binaryOut, header, true);
+            new KNNPipeline(knn, false, 2, 2, true, KNNPipeline.Format.binary).run(new SequenceReader(queryFile), binaryOut);
+            binaryOut.writeBoolean(false);
+            binaryOut.close();
+
+            ByteArrayOutputStream viewed = new ByteArrayOutputStream();
+            KNNBinary.view(new KNNBinary.Reader(new ByteArrayInputStream(binary.toByteArray())), new PrintStream(viewed));
+            assertEquals(expected.toString(), viewed.toString());
+        }
+    }
+
+    @Test
+    public void testPackedSequenceStore() throws Exception {
+        String[] seqs = {"ACGTACGTNNNNNACGTAcgtRYACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC",
+            "acguuacgunacgu", "", "ACGT-..ACGT"};
+        String[] proteins = {"MKVLAAGIVGLLLAXWYHERDKNQ*STPFC", "mkvlaaGIVg"};
+        File file = File.createTempFile("packed", ".store");
+        file.deleteOnExit();
+
+        PackedSequenceStore.Writer nucl = new PackedSequenceStore.Writer(SequenceType.Nucleotide, file.getParentFile());
+        for (int index = 0; index < seqs.length; index++) {
+            nucl.add(new Sequence("s" + index, "desc " + index, seqs[index]));
+        }
+        PackedSequenceStore.Writer prot = new PackedSequenceStore.Writer(SequenceType.Protein, file.getParentFile());
+        for (int index = 0; index < proteins.length; index++) {
+            prot.add(new Sequence("p" + index, "", proteins[index]));
+        }
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        long protPos = nucl.writeTo(out, 0);
+        prot.writeTo(out, protPos);
+        out.close();
+
+        MappedFile mapped = new MappedFile(file);
+        PackedSequenceStore store = new PackedSequenceStore(mapped, 0, SequenceType.Nucleotide);
+        assertEquals(seqs.length, store.size());
+        for (int index = 0; index < seqs.length; index++) {
+            assertEquals(seqs[index], store.getSequence(index).getSeqString());
+            assertEquals("desc " + index, store.getSequence("s" + index).getDesc());
+        }
+        ScoringMatrix matrix = ScoringMatrix.getDefaultNuclMatrix();
+        assertArrayEquals(matrix.encode(seqs[0].toCharArray()), store.decodeEncoded(0, matrix));
+
+        store = new PackedSequenceStore(mapped, protPos, SequenceType.Protein);
+        for (int index = 0; index < proteins.length; index++) {
+            assertEquals(proteins[index], store.getSequence("p" + index).getSeqString());
+        }
+    }
+
+    @Test
+    public void testQueryCache() {
+        QueryCache<Integer> cache = new QueryCache<Integer>(16);
+        assertNull(cache.get("ACGT"));
+        cache.put("ACGT", 1);
+        assertEquals(1, (int) cache.get("ACGT"));
+        assertNull(cache.get("acgt"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        for (int index = 0; index < 1000; index++) {
+            cache.put("ACGT" + index, index);
+        }
+        assertTrue(cache.size() <= 16);
+        assertEquals(999, (int) cache.get("ACGT999"));
+    }
+
+    @Test
+    public void testStrandClassifier() {
+        StringBuilder ref = new StringBuilder();
+        StringBuilder rc = new StringBuilder();
+        StringBuilder other = new StringBuilder();
+        for (int index = 0; index < 400; index++) {
+            ref.append("ACGT".charAt((index * index * 7 + index / 3) % 4));
+            other.append("ACGT".charAt((index * 13 + index * index / 5) % 4));
+        }
+        for (int index = ref.length() - 1; index >= 0; index--) {
+            rc.append("TGCA".charAt("ACGT".indexOf(ref.charAt(index))));
+        }
+
+        StrandClassifier classifier = new StrandClassifier(StrandClassifier.defaultWordSize);
+        classifier.add(ref.toString());
+        assertEquals(StrandClassifier.Strand.forward, classifier.classify(ref.substring(50, 300).toLowerCase()));
+        assertEquals(StrandClassifier.Strand.reverse, classifier.classify(rc.substring(20, 200)));
+        assertEquals(StrandClassifier.Strand.both, classifier.classify(other.toString()));
+        assertEquals(1, classifier.getBoth());
+    }
+
+    @Test
+    public void testReferenceClusters() throws Exception {
+        ScoringMatrix matrix = ScoringMatrix.getDefaultNuclMatrix();
+        StringBuilder seed = new StringBuilder();
+        for (int index = 0; index < 200; index++) {
+            seed.append("ACGT".charAt((index * index * 7 + index / 3) % 4));
+        }
+        String a = seed.toString();
+        String b = a.substring(0, 100) + "T" + a.substring(101);
+        String c = a.substring(0, 50) + a.substring(51, 150) + "GG" + a.substring(150);
+        StringBuilder other = new StringBuilder();
+        for (int index = 0; index < 200; index++) {
+            other.append("ACGT".charAt((index * 13 + index * index / 5) % 4));
+        }
+        List<Sequence> refs = new ArrayList<Sequence>();
+        for (String ref : new String[]{a, b, c, other.toString()}) {
+            refs.add(new Sequence("r" + refs.size(), "", ref));
+        }
+
+        ReferenceClusters clusters = ReferenceClusters.build(refs, matrix, .03);
+        assertEquals(2, clusters.size());
+        assertArrayEquals(new int[]{0, 1, 2}, clusters.getMembers(0));
+        assertEquals(1, ReferenceClusters.editDistance(matrix.encode(a.toCharArray()), matrix.encode(b.toCharArray()), 5));
+        assertEquals(1, ReferenceClusters.semiGlobalDistance(matrix.encode(b.substring(20, 180).toCharArray()), matrix.encode(a.toCharArray())));
+
+        // no member scores above its cluster's bound
+        assertTrue(clusters.prepare(refs, matrix));
+        String query = c.substring(10, 170);
+        int[] bounds = clusters.scoreBounds(matrix.encode(query.toCharArray()), null);
+        for (int cl = 0; cl < clusters.size(); cl++) {
+            for (int member : clusters.getMembers(cl)) {
+                int score = PairwiseAligner.score(refs.get(member).getSeqString(), query, matrix, AlignmentMode.glocal).getScore();
+                assertTrue(score <= bounds[cl]);
+            }
+        }
+
+        // only used with the references they were built from
+        File clusterFile = File.createTempFile("clusters", ".clusters");
+        clusterFile.deleteOnExit();
+        clusters.write(clusterFile);
+        clusters = ReferenceClusters.read(clusterFile);
+        assertTrue(clusters.prepare(refs, matrix));
+        refs.set(3, new Sequence("renamed", "", other.toString()));
+        try {
+            clusters.prepare(refs, matrix);
+            fail("Clusters were used with other references");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testKNNBinary() throws Exception {
+        String ref = "ACGTTGCAAGGCTTACGATCGGATCCA";
+        String query = "TTGCAAGCTTACGTTCGGAT";
+        PairwiseKNN.Neighbor n = new PairwiseKNN.Neighbor();
+        n.alignment = PairwiseAligner.align(ref, query, ScoringMatrix.getDefaultNuclMatrix(), AlignmentMode.glocal);
+        n.alignment.setIdent(.9);
+        n.reverse = true;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        KNNBinary.writeHeader(out, "#header", true, Arrays.asList("r0", "r1"), Arrays.asList("", "desc"));
+        out.write(KNNBinary.formatQuery(7, "q", query.length(), Arrays.asList(n), new int[]{1}, true));
+        out.writeBoolean(false);
+        out.close();
+
+        KNNBinary.Reader reader = new KNNBinary.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("#header", reader.getHeader());
+        assertEquals("desc", reader.getRefDesc(1));
+        KNNBinary.QueryResult result = reader.next();
+        assertEquals(7, result.getIndex());
+        assertEquals(query.length(), result.getLength());
+        KNNBinary.Hit hit = result.getHits().get(0);
+        assertEquals(1, hit.getRank());
+        assertTrue(hit.isReverse());
+        assertEquals(n.alignment.getScore(), hit.getScore());
+        assertEquals(.9, hit.getIdent(), 0);
+        assertEquals(n.alignment.getStarti(), hit.getRefStart());
+        assertEquals(1, hit.getRef());
+        assertEquals(n.alignment.getAlignedSeqj(), hit.getAlignedQuery());
+        assertEquals(n.alignment.getAlignedSeqi(), hit.getAlignedRef());
+        assertNull(reader.next());
+    }
+}